@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.Annotation;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Link;
+import io.opencensus.trace.MessageEvent;
+import io.opencensus.trace.Span.Kind;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Span shapes seen in production, shared by the benchmarks.
+ */
+final class BenchmarkSpans {
+  enum Shape {
+    // A server span without a parent.
+    ROOT,
+    // A server span continuing a trace from another process.
+    REMOTE_PARENT,
+    // A client span with a SQL query, which becomes a subsegment.
+    SQL,
+    // A server span with the full set of HTTP attributes.
+    HTTP,
+    // A span with many custom attributes, which become annotations.
+    MANY_ATTRIBUTES
+  }
+
+  private static final long START_MILLIS = 1519629870001L;
+  private static final Tracestate TRACESTATE = Tracestate.builder().build();
+
+  private BenchmarkSpans() {}
+
+  static SpanData create(Shape shape, Random random) {
+    SpanContext context =
+        SpanContext.create(
+            TraceId.generateRandomId(random),
+            SpanId.generateRandomId(random),
+            TraceOptions.builder().setIsSampled(true).build(),
+            TRACESTATE);
+    Map<String, AttributeValue> attributes = new HashMap<String, AttributeValue>();
+    SpanId parent = null;
+    Boolean remoteParent = null;
+    Kind kind = Kind.SERVER;
+    String name = "Recv.com.example.OrderService/PlaceOrder";
+    switch (shape) {
+      case ROOT:
+        break;
+      case REMOTE_PARENT:
+        parent = SpanId.generateRandomId(random);
+        remoteParent = true;
+        break;
+      case SQL:
+        parent = SpanId.generateRandomId(random);
+        remoteParent = false;
+        kind = Kind.CLIENT;
+        name = "orders.select";
+        attributes.put(
+            TraceSegment.ATTRIB_SQL_EXEC,
+            AttributeValue.stringAttributeValue(
+                "SELECT id, customer_id, total FROM orders WHERE customer_id = ? LIMIT 20"));
+        break;
+      case HTTP:
+        attributes.put(TraceSegment.HTTP_METHOD, AttributeValue.stringAttributeValue("POST"));
+        attributes.put(
+            TraceSegment.HTTP_URL,
+            AttributeValue.stringAttributeValue("https://api.example.com/v1/orders?expand=items"));
+        attributes.put(
+            TraceSegment.HTTP_HOST, AttributeValue.stringAttributeValue("api.example.com"));
+        attributes.put(TraceSegment.HTTP_PATH, AttributeValue.stringAttributeValue("/v1/orders"));
+        attributes.put(TraceSegment.HTTP_ROUTE, AttributeValue.stringAttributeValue("/v1/orders"));
+        attributes.put(
+            TraceSegment.HTTP_USER_AGENT,
+            AttributeValue.stringAttributeValue("Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101"));
+        attributes.put(TraceSegment.HTTP_STATUS_CODE, AttributeValue.longAttributeValue(201));
+        break;
+      case MANY_ATTRIBUTES:
+        for (int i = 0; i < 32; i++) {
+          attributes.put("app.attribute_" + i, AttributeValue.stringAttributeValue("value-" + i));
+        }
+        attributes.put("app.retries", AttributeValue.longAttributeValue(2));
+        attributes.put("app.cached", AttributeValue.booleanAttributeValue(false));
+        break;
+      default:
+        throw new AssertionError(shape);
+    }
+    return SpanData.create(
+        context,
+        parent,
+        remoteParent,
+        name,
+        kind,
+        Timestamp.fromMillis(START_MILLIS),
+        SpanData.Attributes.create(attributes, 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<Annotation>>emptyList(), 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<MessageEvent>>emptyList(), 0),
+        SpanData.Links.create(Collections.<Link>emptyList(), 0),
+        0,
+        Status.OK,
+        Timestamp.fromMillis(START_MILLIS + 23));
+  }
+
+  /*
+   * Returns a batch mixing all shapes, as the exporter receives them.
+   */
+  static List<SpanData> batch(int size, Random random) {
+    Shape[] shapes = Shape.values();
+    List<SpanData> spans = new ArrayList<SpanData>(size);
+    for (int i = 0; i < size; i++) {
+      spans.add(create(shapes[i % shapes.length], random));
+    }
+    return spans;
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.amazonaws.services.xray.AbstractAWSXRay;
+import com.amazonaws.services.xray.model.PutTraceSegmentsRequest;
+import com.amazonaws.services.xray.model.PutTraceSegmentsResult;
+import com.amazonaws.services.xray.model.UnprocessedTraceSegment;
+import io.opencensus.trace.export.SpanData;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/*
+ * Exports batches of mixed spans through XRayExporterHandler, synchronously, against an X-Ray
+ * client which accepts every request without any I/O. This covers encoding, batching and
+ * dispatching, but not the network.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=ExportBenchmark
+ */
+@State(Scope.Benchmark)
+public class ExportBenchmark {
+  @Param({"1", "10", "100", "1000"})
+  public int batchSize;
+
+  private List<SpanData> batch;
+  private XRayExporterHandler handler;
+
+  @Setup
+  public void setup() {
+    batch = BenchmarkSpans.batch(batchSize, new Random(1));
+    handler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("order-service")
+                .setXRayClient(new AcceptingXRayClient())
+                .build(),
+            null);
+  }
+
+  @TearDown
+  public void tearDown() {
+    handler.shutdown();
+  }
+
+  /*
+   * Batches exported per second.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public List<SpanData> exportThroughput() {
+    handler.export(batch);
+    return batch;
+  }
+
+  /*
+   * The latency distribution of exporting one batch.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public List<SpanData> exportLatency() {
+    handler.export(batch);
+    return batch;
+  }
+
+  /*
+   * Accepts every segment.
+   */
+  private static final class AcceptingXRayClient extends AbstractAWSXRay {
+    private static final PutTraceSegmentsResult ACCEPTED =
+        new PutTraceSegmentsResult()
+            .withUnprocessedTraceSegments(Collections.<UnprocessedTraceSegment>emptyList());
+
+    @Override
+    public PutTraceSegmentsResult putTraceSegments(PutTraceSegmentsRequest request) {
+      return ACCEPTED;
+    }
+  }
+}
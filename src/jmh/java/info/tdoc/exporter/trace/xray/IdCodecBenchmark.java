@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.TraceId;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Compares IdCodec with the String.format based conversion it replaced.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=IdCodecBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IdCodecBenchmark {
+  private final Random random = new Random(1);
+  private final SpanId spanId = SpanId.generateRandomId(random);
+  private final TraceId traceId = TraceId.generateRandomId(random);
+  private final long epoch = 1519633440L;
+  private final byte[] bytes = new byte[TraceId.SIZE];
+  private final char[] chars = new char[IdCodec.TRACE_ID_LENGTH];
+
+  @Benchmark
+  public String spanIdFormatter() {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : Arrays.copyOfRange(spanId.getBytes(), 0, 8)) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  @Benchmark
+  public String spanIdCodec() {
+    return IdCodec.spanIdToString(spanId.getBytes());
+  }
+
+  @Benchmark
+  public char[] spanIdCodecIntoBuffer() {
+    spanId.copyBytesTo(bytes, 0);
+    IdCodec.writeHex(bytes, 0, SpanId.SIZE, chars, 0);
+    return chars;
+  }
+
+  @Benchmark
+  public String traceIdFormatter() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("1");
+    sb.append("-");
+    byte[] epochByte = ByteBuffer.allocate(8).putLong(epoch).array();
+    for (byte b : Arrays.copyOfRange(epochByte, 4, 8)) {
+      sb.append(String.format("%02x", b));
+    }
+    sb.append("-");
+    for (byte b : Arrays.copyOfRange(traceId.getBytes(), 4, 16)) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  @Benchmark
+  public String traceIdCodec() {
+    return IdCodec.traceIdToString(traceId.getBytes(), epoch);
+  }
+
+  @Benchmark
+  public char[] traceIdCodecIntoBuffer() {
+    traceId.copyBytesTo(bytes, 0);
+    IdCodec.writeTraceId(bytes, epoch, chars, 0);
+    return chars;
+  }
+
+  @Benchmark
+  public String generatedIdToString() {
+    String id = Long.toString(random.nextLong() >>> 1, 16);
+    while (id.length() < 16) {
+      id = '0' + id;
+    }
+    return id;
+  }
+
+  @Benchmark
+  public String generatedIdCodec() {
+    return IdCodec.toHex(random.nextLong() >>> 1, IdCodec.SPAN_ID_LENGTH);
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.opencensus.trace.export.SpanData;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Converts one span of each shape: building the TraceSegment model, serializing it with Jackson
+ * data binding, and encoding it directly with SegmentEncoder as the exporter does.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=SegmentConversionBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SegmentConversionBenchmark {
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  @Param({"ROOT", "REMOTE_PARENT", "SQL", "HTTP", "MANY_ATTRIBUTES"})
+  public BenchmarkSpans.Shape shape;
+
+  private SpanData span;
+  private SegmentEncoder encoder;
+
+  @Setup
+  public void setup() {
+    span = BenchmarkSpans.create(shape, new Random(1));
+    encoder = new SegmentEncoder("order-service");
+  }
+
+  @Benchmark
+  public TraceSegment traceSegment() {
+    return new TraceSegment("order-service", span);
+  }
+
+  @Benchmark
+  public String jacksonDataBind() throws JsonProcessingException {
+    return mapper.writeValueAsString(new TraceSegment("order-service", span));
+  }
+
+  @Benchmark
+  public int segmentEncoder() throws IOException {
+    return encoder.encode(span).size();
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Compares writing the leading fields of a subsegment as strings with copying the pre-encoded
+ * fragment from SegmentHeaders. Both write into a reused buffer, so the gc profiler shows the
+ * bytes allocated per span by each.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=SegmentHeadersBenchmark
+ * (add -prof gc to the JMH arguments for allocation rates)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SegmentHeadersBenchmark {
+  private static final String SPAN_NAME = "Sent.com.example.OrderService/PlaceOrder";
+  private static final double START_TIME = 1519629870.001;
+
+  private final SegmentEncoder.Buffer buffer = new SegmentEncoder.Buffer();
+  private final SegmentHeaders headers = new SegmentHeaders("order-service", 1024);
+  private JsonGenerator generator;
+
+  @Setup
+  public void setup() throws IOException {
+    generator =
+        new JsonFactory()
+            .setRootValueSeparator(null)
+            .createGenerator(buffer, JsonEncoding.UTF8);
+  }
+
+  @Benchmark
+  public int writeFields() throws IOException {
+    buffer.reset();
+    generator.writeStartObject();
+    generator.writeStringField("name", TraceSegment.fixSegmentName(SPAN_NAME));
+    generator.writeStringField("type", "subsegment");
+    generator.writeNumberField("start_time", START_TIME);
+    generator.writeEndObject();
+    generator.flush();
+    return buffer.size();
+  }
+
+  @Benchmark
+  public int writeFragment() throws IOException {
+    buffer.reset();
+    generator.writeStartObject();
+    generator.writeRaw(headers.get(SPAN_NAME, SegmentHeaders.Kind.SUBSEGMENT));
+    generator.writeNumberField("start_time", START_TIME);
+    generator.writeEndObject();
+    generator.flush();
+    return buffer.size();
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.amazonaws.services.xray.AbstractAWSXRay;
+import com.google.common.base.Ticker;
+import io.opencensus.trace.Span;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.TraceId;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/*
+ * Decides root spans with XRaySampler and its local default rule, which is the path every root
+ * span takes: one rule match, the reservoir and the fixed rate.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=XRaySamplerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class XRaySamplerBenchmark {
+  private static final List<Span> NO_LINKS = Collections.<Span>emptyList();
+
+  private XRaySampler sampler;
+  private TraceId traceId;
+  private SpanId spanId;
+
+  @Setup
+  public void setup() {
+    sampler =
+        new XRaySampler(new AbstractAWSXRay() {}, "order-service", "", Ticker.systemTicker());
+    Random random = new Random(1);
+    traceId = TraceId.generateRandomId(random);
+    spanId = SpanId.generateRandomId(random);
+  }
+
+  @Benchmark
+  public boolean shouldSample() {
+    return sampler.shouldSample(null, null, traceId, spanId, "/orders/42", NO_LINKS);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean shouldSampleContended() {
+    return sampler.shouldSample(null, null, traceId, spanId, "/orders/42", NO_LINKS);
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.GuardedBy;
+
+/*
+ * Limits the rate of segments sent with PutTraceSegments to what the account allows, learning
+ * the limit from throttling responses (AIMD).
+ *
+ * The limiter does not limit anything until the service throttles for the first time. Then the
+ * rate is set to a fraction of the rate observed over the last second, and each later throttling
+ * cuts the rate by the same factor, at most once per second so the failures of one burst count
+ * once. Every segment accepted afterwards raises the rate a little, so the rate grows by
+ * increaseRatio of the limit per second of traffic at the limit and settles just below it.
+ *
+ * Segments are admitted by a token bucket which holds at most one second of tokens. A request
+ * which takes more tokens than are available is admitted after the tokens have been earned back.
+ */
+final class AdaptiveRateLimiter {
+  static final double DEFAULT_DECREASE_FACTOR = 0.7;
+  static final double DEFAULT_INCREASE_RATIO = 0.02;
+  static final double DEFAULT_MIN_RATE = 10;
+
+  private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final double decreaseFactor;
+  private final double increaseRatio;
+  private final double minRate;
+  private final Ticker ticker;
+
+  // Segments per second; infinite until the first throttling.
+  @GuardedBy("this")
+  private double rate = Double.POSITIVE_INFINITY;
+
+  // Segments per second added per second of traffic at the limit.
+  @GuardedBy("this")
+  private double increase;
+
+  @GuardedBy("this")
+  private double tokens;
+
+  @GuardedBy("this")
+  private long lastRefillNanos;
+
+  @GuardedBy("this")
+  private long lastDecreaseNanos;
+
+  @GuardedBy("this")
+  private boolean decreased;
+
+  // Segments sent in the current and the previous second, to observe the unlimited rate.
+  @GuardedBy("this")
+  private long windowStartNanos;
+
+  @GuardedBy("this")
+  private long windowCount;
+
+  @GuardedBy("this")
+  private long previousWindowCount;
+
+  AdaptiveRateLimiter() {
+    this(DEFAULT_DECREASE_FACTOR, DEFAULT_INCREASE_RATIO, DEFAULT_MIN_RATE, Ticker.systemTicker());
+  }
+
+  AdaptiveRateLimiter(double decreaseFactor, double increaseRatio, double minRate, Ticker ticker) {
+    checkArgument(decreaseFactor > 0 && decreaseFactor < 1, "decreaseFactor must be in (0, 1).");
+    checkArgument(increaseRatio > 0, "increaseRatio must be positive.");
+    checkArgument(minRate > 0, "minRate must be positive.");
+    this.decreaseFactor = decreaseFactor;
+    this.increaseRatio = increaseRatio;
+    this.minRate = minRate;
+    this.ticker = ticker;
+    this.lastRefillNanos = ticker.read();
+    this.windowStartNanos = lastRefillNanos;
+  }
+
+  /*
+   * Blocks until the segments may be sent.
+   */
+  void acquire(int segments) {
+    long waitNanos = reserve(segments);
+    if (waitNanos > 0) {
+      Uninterruptibles.sleepUninterruptibly(waitNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /*
+   * Takes the tokens for the segments and returns how long the caller has to wait before sending
+   * them.
+   */
+  synchronized long reserve(int segments) {
+    long now = ticker.read();
+    count(now, segments);
+    if (Double.isInfinite(rate)) {
+      return 0;
+    }
+    refill(now);
+    tokens -= segments;
+    return tokens >= 0 ? 0 : (long) (-tokens / rate * SECOND_NANOS);
+  }
+
+  /*
+   * Called when the service throttled a request or reported throttled segments.
+   */
+  synchronized void onThrottled() {
+    long now = ticker.read();
+    if (decreased && now - lastDecreaseNanos < SECOND_NANOS) {
+      return;
+    }
+    double base;
+    if (Double.isInfinite(rate)) {
+      count(now, 0);
+      base = Math.max(previousWindowCount, windowCount);
+      tokens = 0;
+      lastRefillNanos = now;
+    } else {
+      refill(now);
+      base = rate;
+    }
+    rate = Math.max(minRate, base * decreaseFactor);
+    increase = rate * increaseRatio;
+    tokens = Math.min(tokens, rate);
+    decreased = true;
+    lastDecreaseNanos = now;
+  }
+
+  /*
+   * Called when the service accepted the segments.
+   */
+  synchronized void onSuccess(int segments) {
+    if (!Double.isInfinite(rate)) {
+      // A second's worth of segments at the current rate adds increase.
+      rate += increase * segments / rate;
+    }
+  }
+
+  @VisibleForTesting
+  synchronized double getRate() {
+    return rate;
+  }
+
+  @GuardedBy("this")
+  private void refill(long now) {
+    tokens = Math.min(rate, tokens + (now - lastRefillNanos) * rate / SECOND_NANOS);
+    lastRefillNanos = now;
+  }
+
+  @GuardedBy("this")
+  private void count(long now, int segments) {
+    long elapsed = now - windowStartNanos;
+    if (elapsed >= SECOND_NANOS) {
+      previousWindowCount = elapsed < 2 * SECOND_NANOS ? windowCount : 0;
+      windowCount = 0;
+      windowStartNanos = now;
+    }
+    windowCount += segments;
+  }
+}
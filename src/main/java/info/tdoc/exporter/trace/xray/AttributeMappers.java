@@ -0,0 +1,399 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+
+/**
+ * A registry of rules which turn span attributes into structured fields of a segment document
+ * instead of annotations.
+ *
+ * <p>A rule matches either one exact attribute key or every key starting with a prefix. The exact
+ * rule wins over a prefix rule, and the longest matching prefix wins over shorter ones. Attributes
+ * which match no rule are written as annotations.
+ *
+ * <p>The rules are compiled into a hash table and a prefix trie when the registry is built, so the
+ * cost of looking up an attribute depends on the length of its key, not on the number of rules.
+ *
+ * <p>Example of usage:
+ *
+ * <pre>{@code
+ * AttributeMappers mappers =
+ *     AttributeMappers.defaults().toBuilder()
+ *         .mapKey("db.instance", Target.of(Section.SQL, "url"))
+ *         .mapPrefix("app.", Target.metadata("app"))
+ *         .build();
+ * }</pre>
+ */
+public final class AttributeMappers {
+  /** The part of a segment document a mapped attribute is written to. */
+  public enum Section {
+    /** The {@code http.request} object. Values are written as strings. */
+    HTTP_REQUEST,
+    /** The {@code http.response} object. Values are written as strings. */
+    HTTP_RESPONSE,
+    /** The {@code sql} object of a subsegment. Values are written as strings. */
+    SQL,
+    /** The {@code aws} object. */
+    AWS,
+    /** A namespace of the {@code metadata} object. */
+    METADATA
+  }
+
+  /** Where an attribute matched by a rule is written. */
+  public static final class Target {
+    private final Section section;
+    @Nullable private final String namespace;
+    @Nullable private final String field;
+    private final boolean annotation;
+
+    private Target(
+        Section section, @Nullable String namespace, @Nullable String field, boolean annotation) {
+      this.section = section;
+      this.namespace = namespace;
+      this.field = field;
+      this.annotation = annotation;
+    }
+
+    /**
+     * Returns a target in the given section. The field is named after the attribute key, or the
+     * part of the key after the prefix for prefix rules.
+     *
+     * @param section the section, other than {@link Section#METADATA}.
+     * @return the {@code Target}.
+     */
+    public static Target of(Section section) {
+      checkNotNull(section, "section");
+      checkArgument(section != Section.METADATA, "metadata needs a namespace.");
+      return new Target(section, null, null, false);
+    }
+
+    /**
+     * Returns a target in the given section and field.
+     *
+     * @param section the section, other than {@link Section#METADATA}.
+     * @param field the field name.
+     * @return the {@code Target}.
+     */
+    public static Target of(Section section, String field) {
+      checkNotNull(section, "section");
+      checkArgument(section != Section.METADATA, "metadata needs a namespace.");
+      return new Target(section, null, checkField(field), false);
+    }
+
+    /**
+     * Returns a target in a namespace of the metadata. The field is named like in {@link
+     * #of(Section)}.
+     *
+     * @param namespace the metadata namespace.
+     * @return the {@code Target}.
+     */
+    public static Target metadata(String namespace) {
+      return new Target(Section.METADATA, checkField(namespace), null, false);
+    }
+
+    /**
+     * Returns a target in a namespace and field of the metadata.
+     *
+     * @param namespace the metadata namespace.
+     * @param field the field name.
+     * @return the {@code Target}.
+     */
+    public static Target metadata(String namespace, String field) {
+      return new Target(Section.METADATA, checkField(namespace), checkField(field), false);
+    }
+
+    /**
+     * Returns a copy of this target which also keeps the attribute as an annotation.
+     *
+     * @return the {@code Target}.
+     */
+    public Target alsoAnnotation() {
+      return new Target(section, namespace, field, true);
+    }
+
+    Section getSection() {
+      return section;
+    }
+
+    @Nullable
+    String getNamespace() {
+      return namespace;
+    }
+
+    boolean isAnnotation() {
+      return annotation;
+    }
+
+    private static String checkField(String name) {
+      checkNotNull(name, "name");
+      checkArgument(!name.isEmpty(), "name must not be empty.");
+      return name;
+    }
+  }
+
+  /*
+   * A rule resolved for one attribute key.
+   */
+  static final class Mapping {
+    final Target target;
+    // the length of the matched prefix, or -1 for an exact key.
+    private final int prefixLength;
+
+    Mapping(Target target, int prefixLength) {
+      this.target = target;
+      this.prefixLength = prefixLength;
+    }
+
+    String fieldName(String key) {
+      if (target.field != null) {
+        return target.field;
+      }
+      return prefixLength < 0 ? key : key.substring(prefixLength);
+    }
+  }
+
+  private static final AttributeMappers DEFAULTS =
+      builder()
+          .mapKey(TraceSegment.HTTP_METHOD, httpRequest("method"))
+          .mapKey(TraceSegment.HTTP_URL, httpRequest("url"))
+          .mapKey(TraceSegment.HTTP_USER_AGENT, httpRequest("user_agent"))
+          .mapKey(
+              TraceSegment.HTTP_STATUS_CODE,
+              Target.of(Section.HTTP_RESPONSE, "status").alsoAnnotation())
+          .mapKey(
+              TraceSegment.ATTRIB_SQL_EXEC,
+              Target.of(Section.SQL, "sanitized_query").alsoAnnotation())
+          .mapPrefix("aws.", Target.of(Section.AWS))
+          .mapPrefix("grpc.", Target.metadata("grpc"))
+          .mapPrefix("rpc.", Target.metadata("rpc"))
+          .mapPrefix("messaging.", Target.metadata("messaging"))
+          .build();
+
+  private static Target httpRequest(String field) {
+    return Target.of(Section.HTTP_REQUEST, field).alsoAnnotation();
+  }
+
+  private final Map<String, Target> keys;
+  private final Map<String, Target> prefixes;
+  private final ImmutableMap<String, Mapping> exact;
+  private final Node root;
+
+  private AttributeMappers(Builder builder) {
+    this.keys = new LinkedHashMap<String, Target>(builder.keys);
+    this.prefixes = new LinkedHashMap<String, Target>(builder.prefixes);
+    ImmutableMap.Builder<String, Mapping> exact = ImmutableMap.builder();
+    for (Map.Entry<String, Target> e : keys.entrySet()) {
+      exact.put(e.getKey(), new Mapping(e.getValue(), -1));
+    }
+    this.exact = exact.build();
+    MutableNode root = new MutableNode();
+    for (Map.Entry<String, Target> e : prefixes.entrySet()) {
+      MutableNode n = root;
+      for (int i = 0; i < e.getKey().length(); i++) {
+        n = n.child(e.getKey().charAt(i));
+      }
+      n.mapping = new Mapping(e.getValue(), e.getKey().length());
+    }
+    this.root = root.freeze();
+  }
+
+  /**
+   * Returns the default rules.
+   *
+   * <ul>
+   *   <li>{@code http.method}, {@code http.url} and {@code http.user_agent} go to the HTTP request,
+   *       {@code http.status_code} to the HTTP response and {@code sql.query} to the sanitized
+   *       query of a SQL subsegment. These are also kept as annotations.
+   *   <li>{@code aws.*} attributes, such as {@code aws.operation}, go to the {@code aws} object.
+   *   <li>{@code grpc.*}, {@code rpc.*} and {@code messaging.*} attributes go to the metadata
+   *       namespaces {@code grpc}, {@code rpc} and {@code messaging}.
+   * </ul>
+   *
+   * @return the default {@code AttributeMappers}.
+   */
+  public static AttributeMappers defaults() {
+    return DEFAULTS;
+  }
+
+  /**
+   * Returns a builder without any rules.
+   *
+   * @return a new {@code Builder}.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns a builder with the rules of this registry.
+   *
+   * @return a new {@code Builder}.
+   */
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  /*
+   * Returns the rule for the attribute key, or null if it is an annotation.
+   */
+  @Nullable
+  Mapping lookup(String key) {
+    Mapping mapping = exact.get(key);
+    if (mapping != null) {
+      return mapping;
+    }
+    // The prefix must be shorter than the key, so the field name is never empty.
+    Node n = root;
+    for (int i = 0; i < key.length(); i++) {
+      if (n.mapping != null) {
+        mapping = n.mapping;
+      }
+      int child = Arrays.binarySearch(n.labels, key.charAt(i));
+      if (child < 0) {
+        break;
+      }
+      n = n.children[child];
+    }
+    return mapping;
+  }
+
+  /*
+   * A node of the prefix trie, with its children sorted by label.
+   */
+  private static final class Node {
+    final char[] labels;
+    final Node[] children;
+    @Nullable final Mapping mapping;
+
+    Node(char[] labels, Node[] children, @Nullable Mapping mapping) {
+      this.labels = labels;
+      this.children = children;
+      this.mapping = mapping;
+    }
+  }
+
+  private static final class MutableNode {
+    final TreeMap<Character, MutableNode> children = new TreeMap<Character, MutableNode>();
+    @Nullable Mapping mapping;
+
+    MutableNode child(char label) {
+      MutableNode child = children.get(label);
+      if (child == null) {
+        child = new MutableNode();
+        children.put(label, child);
+      }
+      return child;
+    }
+
+    Node freeze() {
+      char[] labels = new char[children.size()];
+      Node[] frozen = new Node[children.size()];
+      int i = 0;
+      for (Map.Entry<Character, MutableNode> e : children.entrySet()) {
+        labels[i] = e.getKey();
+        frozen[i] = e.getValue().freeze();
+        i++;
+      }
+      return new Node(labels, frozen, mapping);
+    }
+  }
+
+  /** Builder for {@link AttributeMappers}. */
+  public static final class Builder {
+    private final Map<String, Target> keys;
+    private final Map<String, Target> prefixes;
+
+    private Builder() {
+      this.keys = new LinkedHashMap<String, Target>();
+      this.prefixes = new LinkedHashMap<String, Target>();
+    }
+
+    private Builder(AttributeMappers mappers) {
+      this.keys = new LinkedHashMap<String, Target>(mappers.keys);
+      this.prefixes = new LinkedHashMap<String, Target>(mappers.prefixes);
+    }
+
+    /**
+     * Maps one attribute key, replacing any previous rule for it.
+     *
+     * @param key the attribute key.
+     * @param target where the attribute is written.
+     * @return this.
+     */
+    public Builder mapKey(String key, Target target) {
+      checkNotNull(key, "key");
+      checkArgument(!key.isEmpty(), "key must not be empty.");
+      keys.put(key, checkNotNull(target, "target"));
+      return this;
+    }
+
+    /**
+     * Maps every attribute key which starts with the prefix and is longer than it, replacing any
+     * previous rule for the prefix.
+     *
+     * @param prefix the key prefix, for example {@code "aws."}.
+     * @param target where the attributes are written.
+     * @return this.
+     */
+    public Builder mapPrefix(String prefix, Target target) {
+      checkNotNull(prefix, "prefix");
+      checkArgument(!prefix.isEmpty(), "prefix must not be empty.");
+      prefixes.put(prefix, checkNotNull(target, "target"));
+      return this;
+    }
+
+    /**
+     * Removes the rule for an attribute key, so that it is written as an annotation again.
+     *
+     * @param key the attribute key.
+     * @return this.
+     */
+    public Builder unmapKey(String key) {
+      keys.remove(key);
+      return this;
+    }
+
+    /**
+     * Removes the rule for a prefix.
+     *
+     * @param prefix the key prefix.
+     * @return this.
+     */
+    public Builder unmapPrefix(String prefix) {
+      prefixes.remove(prefix);
+      return this;
+    }
+
+    /**
+     * Compiles the rules.
+     *
+     * @return a new {@code AttributeMappers}.
+     */
+    public AttributeMappers build() {
+      return new AttributeMappers(this);
+    }
+  }
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.xray.AWSXRay;
+import com.amazonaws.services.xray.AWSXRayAsync;
+import com.amazonaws.services.xray.model.PutTraceSegmentsRequest;
+import com.amazonaws.services.xray.model.PutTraceSegmentsResult;
+import com.amazonaws.services.xray.model.UnprocessedTraceSegment;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.opencensus.trace.SpanId;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/*
+ * Sends chunks of segment documents with PutTraceSegments, running up to maxInFlightRequests
+ * requests concurrently.
+ *
+ * In synchronous mode the requests run on a fixed pool and dispatch() waits for them. In
+ * asynchronous mode the requests are handed to AWSXRayAsync.putTraceSegmentsAsync and their
+ * results are handled in callbacks; dispatch() only blocks while maxInFlightRequests requests are
+ * already outstanding.
+ *
+ * Segments reported unprocessed are mapped back to their documents by segment ID, and only those
+ * are sent again. A request which failed with a retryable error is sent again as a whole. Retries
+ * run on their own thread after the backoff of the RetryPolicy.
+ *
+ * With a rate limiter, every request waits for its segments to be admitted, and throttling
+ * responses and accepted segments are reported back to the limiter.
+ *
+ * With a spill queue, segments which could not be sent for a reason that may pass, but are out of
+ * retries, are appended to the queue instead of being dropped. A failed request whose segments
+ * have all been spilled is not reported as a failure.
+ *
+ * With a delivery listener, every segment accepted by X-Ray or appended to the spill queue is
+ * passed to it, from whichever thread completed the request.
+ */
+final class BatchDispatcher implements Closeable {
+  private static final Logger logger = Logger.getLogger(BatchDispatcher.class.getName());
+  private static final long CLOSE_TIMEOUT_MILLIS = 10 * 1000;
+
+  private final AWSXRay client;
+  private final int maxInFlightRequests;
+  private final boolean async;
+  private final RetryPolicy retryPolicy;
+  @Nullable private final AdaptiveRateLimiter rateLimiter;
+  @Nullable private final SpillQueue spillQueue;
+  @Nullable private final Consumer<EncodedSegment> deliveryListener;
+  @Nullable private final ExecutorService executor;
+  @Nullable private final ScheduledExecutorService retryExecutor;
+  private final Semaphore inFlight;
+  private final AtomicLong failedRequestCount = new AtomicLong();
+  private final AtomicLong unprocessedSegmentCount = new AtomicLong();
+  private final AtomicLong retriedSegmentCount = new AtomicLong();
+  private final AtomicLong droppedSegmentCount = new AtomicLong();
+  private final AtomicLong spilledSegmentCount = new AtomicLong();
+
+  BatchDispatcher(AWSXRay client, int maxInFlightRequests) {
+    this(client, maxInFlightRequests, false);
+  }
+
+  BatchDispatcher(AWSXRay client, int maxInFlightRequests, boolean async) {
+    this(client, maxInFlightRequests, async, new RetryPolicy(0), null, null);
+  }
+
+  BatchDispatcher(
+      AWSXRay client,
+      int maxInFlightRequests,
+      boolean async,
+      RetryPolicy retryPolicy,
+      @Nullable AdaptiveRateLimiter rateLimiter,
+      @Nullable SpillQueue spillQueue) {
+    this(client, maxInFlightRequests, async, retryPolicy, rateLimiter, spillQueue, null);
+  }
+
+  BatchDispatcher(
+      AWSXRay client,
+      int maxInFlightRequests,
+      boolean async,
+      RetryPolicy retryPolicy,
+      @Nullable AdaptiveRateLimiter rateLimiter,
+      @Nullable SpillQueue spillQueue,
+      @Nullable Consumer<EncodedSegment> deliveryListener) {
+    checkArgument(
+        !async || client instanceof AWSXRayAsync, "Asynchronous export requires AWSXRayAsync.");
+    this.client = client;
+    this.maxInFlightRequests = maxInFlightRequests;
+    this.async = async;
+    this.retryPolicy = retryPolicy;
+    this.rateLimiter = rateLimiter;
+    this.spillQueue = spillQueue;
+    this.deliveryListener = deliveryListener;
+    this.inFlight = new Semaphore(maxInFlightRequests);
+    this.executor =
+        async
+            ? null
+            : Executors.newFixedThreadPool(
+                maxInFlightRequests,
+                new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("XRayExporter-dispatcher-%d")
+                    .build());
+    this.retryExecutor =
+        retryPolicy.isEnabled()
+            ? Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("XRayExporter-retry-%d")
+                    .build())
+            : null;
+  }
+
+  boolean isAsync() {
+    return async;
+  }
+
+  /*
+   * Sends all chunks. In synchronous mode this waits for them to complete and returns the number
+   * of segments which were not accepted and will not be retried; if any request failed without
+   * being retried, the first failure is rethrown after the other requests have completed. In
+   * asynchronous mode this returns 0 as soon as every chunk has been handed to the client.
+   */
+  int dispatch(List<List<EncodedSegment>> chunks) {
+    if (!async && chunks.size() == 1) {
+      retryPolicy.deposit(chunks.get(0).size());
+      return send(chunks.get(0));
+    }
+    return complete(start(chunks));
+  }
+
+  /*
+   * Starts sending all chunks without waiting for them. In synchronous mode the requests run on
+   * the pool and their futures are returned; in asynchronous mode the list is empty.
+   */
+  private List<Future<Integer>> start(List<List<EncodedSegment>> chunks) {
+    deposit(chunks);
+    if (async) {
+      for (List<EncodedSegment> chunk : chunks) {
+        sendAsync(chunk);
+      }
+      return Collections.emptyList();
+    }
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>(chunks.size());
+    for (final List<EncodedSegment> chunk : chunks) {
+      futures.add(executor.submit(() -> send(chunk)));
+    }
+    return futures;
+  }
+
+  /*
+   * Starts sending all chunks without waiting for their results; failures are logged and counted
+   * like those of retried requests. Only blocks while maxInFlightRequests requests are outstanding,
+   * so a slow endpoint holds back its own dispatcher and nothing else.
+   */
+  void submit(List<List<EncodedSegment>> chunks) {
+    if (async) {
+      start(chunks);
+      return;
+    }
+    deposit(chunks);
+    for (final List<EncodedSegment> chunk : chunks) {
+      inFlight.acquireUninterruptibly();
+      try {
+        executor.execute(
+            () -> {
+              try {
+                send(chunk);
+              } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to put trace segments", e);
+              } finally {
+                inFlight.release();
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        // Closing.
+        inFlight.release();
+        drop(chunk.size());
+      }
+    }
+  }
+
+  private void deposit(List<List<EncodedSegment>> chunks) {
+    int segments = 0;
+    for (List<EncodedSegment> chunk : chunks) {
+      segments += chunk.size();
+    }
+    retryPolicy.deposit(segments);
+  }
+
+  /*
+   * Waits for the requests started by start() and returns the number of dropped segments. The
+   * first failure is rethrown after all requests have completed.
+   */
+  private static int complete(List<Future<Integer>> futures) {
+    int dropped = 0;
+    RuntimeException failure = null;
+    for (Future<Integer> f : futures) {
+      try {
+        dropped += getUninterruptibly(f);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure =
+              e.getCause() instanceof RuntimeException
+                  ? (RuntimeException) e.getCause()
+                  : new RuntimeException(e.getCause());
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return dropped;
+  }
+
+  private static PutTraceSegmentsRequest request(List<EncodedSegment> chunk) {
+    List<String> documents = new ArrayList<String>(chunk.size());
+    for (EncodedSegment segment : chunk) {
+      documents.add(segment.document);
+    }
+    return new PutTraceSegmentsRequest().withTraceSegmentDocuments(documents);
+  }
+
+  /*
+   * Returns the number of dropped segments. A failure is rethrown unless the chunk is retried.
+   */
+  private int send(List<EncodedSegment> chunk) {
+    if (rateLimiter != null) {
+      rateLimiter.acquire(chunk.size());
+    }
+    PutTraceSegmentsResult res;
+    long start = System.nanoTime();
+    try {
+      res = client.putTraceSegments(request(chunk));
+    } catch (RuntimeException e) {
+      onFailure(chunk, e, start);
+      int dropped = RetryPolicy.isRetryable(e) ? retry(chunk) : chunk.size();
+      if (dropped == chunk.size()) {
+        drop(dropped);
+        throw e;
+      }
+      logger.log(Level.FINE, "PutTraceSegments failed, segments are retried or spilled", e);
+      return drop(dropped);
+    }
+    return handleUnprocessed(chunk, res, false, start);
+  }
+
+  private void sendAsync(final List<EncodedSegment> chunk) {
+    if (rateLimiter != null) {
+      rateLimiter.acquire(chunk.size());
+    }
+    inFlight.acquireUninterruptibly();
+    final long start = System.nanoTime();
+    AsyncHandler<PutTraceSegmentsRequest, PutTraceSegmentsResult> callback =
+        new AsyncHandler<PutTraceSegmentsRequest, PutTraceSegmentsResult>() {
+          @Override
+          public void onError(Exception e) {
+            inFlight.release();
+            onFailure(chunk, e, start);
+            int dropped = RetryPolicy.isRetryable(e) ? retry(chunk) : chunk.size();
+            if (dropped != 0) {
+              logger.log(Level.WARNING, "Failed to put trace segments", e);
+            }
+            drop(dropped);
+          }
+
+          @Override
+          public void onSuccess(PutTraceSegmentsRequest request, PutTraceSegmentsResult result) {
+            inFlight.release();
+            handleUnprocessed(chunk, result, false, start);
+          }
+        };
+    try {
+      ((AWSXRayAsync) client).putTraceSegmentsAsync(request(chunk), callback);
+    } catch (RuntimeException e) {
+      callback.onError(e);
+    }
+  }
+
+  /*
+   * Retries, or spills when replaying, the unprocessed segments of a completed request and returns
+   * the number of the dropped ones.
+   */
+  private int handleUnprocessed(
+      List<EncodedSegment> chunk, PutTraceSegmentsResult result, boolean replaying, long start) {
+    List<UnprocessedTraceSegment> unprocessed = result.getUnprocessedTraceSegments();
+    if (unprocessed == null) {
+      // The SDK leaves the list unset when the response has no unprocessed entries.
+      unprocessed = Collections.emptyList();
+    }
+    ExporterMetrics.recordRequest(
+        chunk.size(), chunk.size() - unprocessed.size(), System.nanoTime() - start);
+    if (unprocessed.isEmpty()) {
+      if (rateLimiter != null) {
+        rateLimiter.onSuccess(chunk.size());
+      }
+      if (deliveryListener != null) {
+        for (EncodedSegment segment : chunk) {
+          deliveryListener.accept(segment);
+        }
+      }
+      return 0;
+    }
+    if (deliveryListener != null) {
+      delivered(chunk, unprocessed);
+    }
+    if (rateLimiter != null) {
+      boolean throttled = false;
+      for (UnprocessedTraceSegment u : unprocessed) {
+        throttled |= RetryPolicy.isThrottling(u.getErrorCode());
+      }
+      if (throttled) {
+        rateLimiter.onThrottled();
+      } else {
+        rateLimiter.onSuccess(chunk.size() - unprocessed.size());
+      }
+    }
+    unprocessedSegmentCount.addAndGet(unprocessed.size());
+    List<EncodedSegment> retries = new ArrayList<EncodedSegment>(unprocessed.size());
+    int dropped = 0;
+    for (UnprocessedTraceSegment u : unprocessed) {
+      ExporterMetrics.recordUnprocessed(u.getErrorCode(), 1);
+      EncodedSegment segment = RetryPolicy.isRetryable(u) ? find(chunk, u.getId()) : null;
+      if (segment == null) {
+        dropped++;
+        logger.log(
+            Level.FINE,
+            "Unprocessed trace segment: id=" + u.getId() + ", errorCode=" + u.getErrorCode());
+      } else {
+        retries.add(segment);
+      }
+    }
+    dropped += replaying ? spill(retries) : retry(retries);
+    if (dropped != 0) {
+      logger.log(Level.WARNING, "UnprocessedTraceSegments dropped: count=" + dropped);
+    }
+    return drop(dropped);
+  }
+
+  /*
+   * Passes the segments of the chunk which are not unprocessed to the delivery listener.
+   */
+  private void delivered(List<EncodedSegment> chunk, List<UnprocessedTraceSegment> unprocessed) {
+    for (EncodedSegment segment : chunk) {
+      String id = segment.spanId.toLowerBase16();
+      boolean accepted = true;
+      for (UnprocessedTraceSegment u : unprocessed) {
+        if (id.equals(u.getId())) {
+          accepted = false;
+          break;
+        }
+      }
+      if (accepted) {
+        deliveryListener.accept(segment);
+      }
+    }
+  }
+
+  /*
+   * Finds the segment the unprocessed entry refers to.
+   */
+  @Nullable
+  private static EncodedSegment find(List<EncodedSegment> chunk, @Nullable String id) {
+    if (id == null || id.length() != SpanId.SIZE * 2) {
+      return null;
+    }
+    SpanId spanId;
+    try {
+      spanId = SpanId.fromLowerBase16(id);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    for (EncodedSegment segment : chunk) {
+      if (segment.spanId.equals(spanId)) {
+        return segment;
+      }
+    }
+    return null;
+  }
+
+  /*
+   * Schedules the segments which have retries left, if the budget covers them, and spills the
+   * others. Returns the number of segments which are neither retried nor spilled.
+   */
+  private int retry(List<EncodedSegment> segments) {
+    if (retryExecutor == null || segments.isEmpty()) {
+      return spill(segments);
+    }
+    List<EncodedSegment> retries = new ArrayList<EncodedSegment>(segments.size());
+    List<EncodedSegment> rest = new ArrayList<EncodedSegment>();
+    int attempt = 0;
+    for (EncodedSegment segment : segments) {
+      if (retryPolicy.canRetry(segment.attempt)) {
+        retries.add(segment.nextAttempt());
+        attempt = Math.max(attempt, segment.attempt);
+      } else {
+        rest.add(segment);
+      }
+    }
+    if (!retries.isEmpty() && !schedule(retries, attempt)) {
+      rest.addAll(retries);
+    }
+    return spill(rest);
+  }
+
+  private boolean schedule(final List<EncodedSegment> retries, int attempt) {
+    if (!retryPolicy.tryWithdraw(retries.size())) {
+      return false;
+    }
+    try {
+      retryExecutor.schedule(
+          () -> resend(retries), retryPolicy.backoffMillis(attempt), TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Closing.
+      return false;
+    }
+    retriedSegmentCount.addAndGet(retries.size());
+    ExporterMetrics.recordRetried(retries.size());
+    return true;
+  }
+
+  /*
+   * Appends the segments to the spill queue. Returns the number of segments which did not fit.
+   */
+  private int spill(List<EncodedSegment> segments) {
+    if (spillQueue == null || segments.isEmpty()) {
+      return segments.size();
+    }
+    int rejected = 0;
+    for (EncodedSegment segment : segments) {
+      if (!spillQueue.append(segment)) {
+        rejected++;
+      } else if (deliveryListener != null) {
+        deliveryListener.accept(segment);
+      }
+    }
+    spilledSegmentCount.addAndGet(segments.size() - rejected);
+    return rejected;
+  }
+
+  /*
+   * Sends a chunk read back from the spill queue once, on the calling thread. Unprocessed segments
+   * which may succeed later are spilled again; a failure is rethrown.
+   */
+  void replay(List<EncodedSegment> chunk) {
+    if (rateLimiter != null) {
+      rateLimiter.acquire(chunk.size());
+    }
+    PutTraceSegmentsResult res;
+    long start = System.nanoTime();
+    try {
+      res = client.putTraceSegments(request(chunk));
+    } catch (RuntimeException e) {
+      onFailure(chunk, e, start);
+      throw e;
+    }
+    handleUnprocessed(chunk, res, true, start);
+  }
+
+  private void resend(List<EncodedSegment> segments) {
+    if (async) {
+      sendAsync(segments);
+      return;
+    }
+    try {
+      send(segments);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to put trace segments", e);
+    }
+  }
+
+  private void onFailure(List<EncodedSegment> chunk, Exception e, long start) {
+    failedRequestCount.incrementAndGet();
+    ExporterMetrics.recordRequest(chunk.size(), 0, System.nanoTime() - start);
+    onThrottled(e);
+  }
+
+  private void onThrottled(Exception e) {
+    if (rateLimiter != null && RetryPolicy.isThrottling(e)) {
+      rateLimiter.onThrottled();
+    }
+  }
+
+  private int drop(int dropped) {
+    if (dropped != 0) {
+      droppedSegmentCount.addAndGet(dropped);
+      ExporterMetrics.recordDropped(dropped);
+    }
+    return dropped;
+  }
+
+  /*
+   * Waits until no asynchronous request is outstanding. Returns false on timeout.
+   */
+  boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+    if (!inFlight.tryAcquire(maxInFlightRequests, timeout, unit)) {
+      return false;
+    }
+    inFlight.release(maxInFlightRequests);
+    return true;
+  }
+
+  long getFailedRequestCount() {
+    return failedRequestCount.get();
+  }
+
+  long getUnprocessedSegmentCount() {
+    return unprocessedSegmentCount.get();
+  }
+
+  /*
+   * Returns the number of segments scheduled to be sent again.
+   */
+  long getRetriedSegmentCount() {
+    return retriedSegmentCount.get();
+  }
+
+  /*
+   * Returns the number of segments given up on, either rejected or out of retries and not spilled.
+   */
+  long getDroppedSegmentCount() {
+    return droppedSegmentCount.get();
+  }
+
+  /*
+   * Returns the number of segments appended to the spill queue.
+   */
+  long getSpilledSegmentCount() {
+    return spilledSegmentCount.get();
+  }
+
+  /*
+   * Runs the retries already scheduled, without retrying them again, waits for outstanding
+   * requests to complete and stops the pools.
+   */
+  @Override
+  public void close() {
+    try {
+      if (retryExecutor != null) {
+        retryExecutor.shutdown();
+        retryExecutor.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      }
+      if (executor != null) {
+        executor.shutdown();
+        executor.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      } else {
+        awaitIdle(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
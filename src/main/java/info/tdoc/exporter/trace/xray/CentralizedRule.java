@@ -0,0 +1,274 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.amazonaws.services.xray.model.SamplingRule;
+import com.amazonaws.services.xray.model.SamplingStatisticsDocument;
+import com.amazonaws.services.xray.model.SamplingTargetDocument;
+import com.google.common.annotations.VisibleForTesting;
+import io.opencensus.trace.TraceId;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+/*
+ * One X-Ray sampling rule with its reservoir and usage counters.
+ *
+ * A span matching the rule is sampled if the reservoir has room in the current second, and
+ * otherwise with the fixed rate. Until X-Ray assigns a reservoir quota, or after the quota
+ * expired, the reservoir borrows one span per second. The quota and fixed rate are replaced as a
+ * whole by the sampling target, so deciding needs no locks; the reservoir and counters are atomic.
+ */
+final class CentralizedRule {
+  static final String WILDCARD = "*";
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  final String name;
+  final int priority;
+  @Nullable private final String urlPath;
+  private volatile Target target;
+  private final Reservoir reservoir;
+  private final Statistics statistics;
+
+  CentralizedRule(String name, int priority, String urlPath, double fixedRate) {
+    this(name, priority, urlPath, new Target(fixedRate, -1, 0), new Reservoir(), new Statistics());
+  }
+
+  private CentralizedRule(
+      String name,
+      int priority,
+      String urlPath,
+      Target target,
+      Reservoir reservoir,
+      Statistics statistics) {
+    this.name = name;
+    this.priority = priority;
+    this.urlPath = WILDCARD.equals(urlPath) ? null : urlPath;
+    this.target = target;
+    this.reservoir = reservoir;
+    this.statistics = statistics;
+  }
+
+  /*
+   * Creates the rule, or returns null if it can never match a span of this service: rules for
+   * other services, and rules on request properties an OpenCensus sampler does not see (the HTTP
+   * method, the Host header and custom attributes).
+   */
+  @Nullable
+  static CentralizedRule create(
+      SamplingRule rule, String serviceName, String serviceType, @Nullable CentralizedRule old) {
+    if (rule.getVersion() != null && rule.getVersion() != 1) {
+      return null;
+    }
+    if (!globMatches(rule.getServiceName(), serviceName)
+        || !globMatches(rule.getServiceType(), serviceType)
+        || !isWildcard(rule.getResourceARN())
+        || !isWildcard(rule.getHTTPMethod())
+        || !isWildcard(rule.getHost())
+        || (rule.getAttributes() != null && !rule.getAttributes().isEmpty())) {
+      return null;
+    }
+    double fixedRate = rule.getFixedRate() == null ? 0 : rule.getFixedRate();
+    int priority = rule.getPriority() == null ? Integer.MAX_VALUE : rule.getPriority();
+    String urlPath = rule.getURLPath() == null ? WILDCARD : rule.getURLPath();
+    if (old == null) {
+      return new CentralizedRule(rule.getRuleName(), priority, urlPath, fixedRate);
+    }
+    // Keep the usage and the assigned quota across a refresh, but take the fetched rate.
+    Target target = new Target(fixedRate, old.target.quota, old.target.quotaExpiresNanos);
+    return new CentralizedRule(
+        rule.getRuleName(), priority, urlPath, target, old.reservoir, old.statistics);
+  }
+
+  boolean matches(String spanName) {
+    return urlPath == null || globMatches(urlPath, spanName);
+  }
+
+  boolean sample(TraceId traceId, long nowNanos) {
+    statistics.requests.increment();
+    Target target = this.target;
+    long second = nowNanos / NANOS_PER_SECOND;
+    if (target.hasQuota(nowNanos)) {
+      if (reservoir.take(second, target.quota)) {
+        statistics.sampled.increment();
+        return true;
+      }
+    } else if (reservoir.take(second, 1)) {
+      statistics.sampled.increment();
+      statistics.borrowed.increment();
+      return true;
+    }
+    if (target.sampledByRate(traceId)) {
+      statistics.sampled.increment();
+      return true;
+    }
+    return false;
+  }
+
+  /*
+   * Applies a target from GetSamplingTargets. The expiry is converted from wall clock time.
+   */
+  void update(SamplingTargetDocument document, long nowNanos, long nowMillis) {
+    Target current = target;
+    double fixedRate =
+        document.getFixedRate() == null ? current.fixedRate : document.getFixedRate();
+    int quota = current.quota;
+    long quotaExpiresNanos = current.quotaExpiresNanos;
+    if (document.getReservoirQuota() != null) {
+      quota = document.getReservoirQuota();
+      Date ttl = document.getReservoirQuotaTTL();
+      quotaExpiresNanos =
+          ttl == null
+              ? Long.MAX_VALUE
+              : nowNanos + TimeUnit.MILLISECONDS.toNanos(ttl.getTime() - nowMillis);
+    }
+    target = new Target(fixedRate, quota, quotaExpiresNanos);
+  }
+
+  /*
+   * Returns the usage since the last call, or null if the rule was not used.
+   */
+  @Nullable
+  SamplingStatisticsDocument takeStatistics(String clientId, Date now) {
+    long requests = statistics.requests.sumThenReset();
+    long sampled = statistics.sampled.sumThenReset();
+    long borrowed = statistics.borrowed.sumThenReset();
+    if (requests == 0) {
+      return null;
+    }
+    return new SamplingStatisticsDocument()
+        .withRuleName(name)
+        .withClientID(clientId)
+        .withTimestamp(now)
+        .withRequestCount((int) Math.min(requests, Integer.MAX_VALUE))
+        .withSampledCount((int) Math.min(sampled, Integer.MAX_VALUE))
+        .withBorrowCount((int) Math.min(borrowed, Integer.MAX_VALUE));
+  }
+
+  @VisibleForTesting
+  double getFixedRate() {
+    return target.fixedRate;
+  }
+
+  private static boolean isWildcard(@Nullable String pattern) {
+    return pattern == null || pattern.equals(WILDCARD);
+  }
+
+  /*
+   * Matches X-Ray rule patterns: '*' for any characters, '?' for one, ignoring case.
+   */
+  @VisibleForTesting
+  static boolean globMatches(@Nullable String pattern, String text) {
+    if (isWildcard(pattern)) {
+      return true;
+    }
+    int p = 0;
+    int t = 0;
+    int star = -1;
+    int mark = 0;
+    while (t < text.length()) {
+      char c = p < pattern.length() ? pattern.charAt(p) : 0;
+      if (c == '*') {
+        star = p++;
+        mark = t;
+      } else if (p < pattern.length() && (c == '?' || equalsIgnoreCase(c, text.charAt(t)))) {
+        p++;
+        t++;
+      } else if (star >= 0) {
+        p = star + 1;
+        t = ++mark;
+      } else {
+        return false;
+      }
+    }
+    while (p < pattern.length() && pattern.charAt(p) == '*') {
+      p++;
+    }
+    return p == pattern.length();
+  }
+
+  private static boolean equalsIgnoreCase(char a, char b) {
+    return a == b || Character.toLowerCase(a) == Character.toLowerCase(b);
+  }
+
+  private static final class Target {
+    final double fixedRate;
+    // Negative until X-Ray assigns a quota.
+    final int quota;
+    final long quotaExpiresNanos;
+    // Same as io.opencensus.trace.samplers.ProbabilitySampler.
+    final long idUpperBound;
+
+    Target(double fixedRate, int quota, long quotaExpiresNanos) {
+      this.fixedRate = fixedRate;
+      this.quota = quota;
+      this.quotaExpiresNanos = quotaExpiresNanos;
+      if (fixedRate <= 0) {
+        this.idUpperBound = Long.MIN_VALUE;
+      } else if (fixedRate >= 1) {
+        this.idUpperBound = Long.MAX_VALUE;
+      } else {
+        this.idUpperBound = (long) (fixedRate * Long.MAX_VALUE);
+      }
+    }
+
+    boolean hasQuota(long nowNanos) {
+      return quota >= 0 && nowNanos - quotaExpiresNanos < 0;
+    }
+
+    boolean sampledByRate(TraceId traceId) {
+      return Math.abs(traceId.getLowerLong()) < idUpperBound;
+    }
+  }
+
+  /*
+   * Counts spans taken in the current second, packed with the second into one long so that both
+   * are updated by a single compare-and-set.
+   */
+  private static final class Reservoir {
+    private final AtomicLong state = new AtomicLong(-1L << 32);
+
+    boolean take(long second, int capacity) {
+      if (capacity <= 0) {
+        return false;
+      }
+      long bucket = second & 0xffffffffL;
+      while (true) {
+        long current = state.get();
+        long next;
+        if (current >>> 32 != bucket) {
+          next = bucket << 32 | 1;
+        } else if ((int) current >= capacity) {
+          return false;
+        } else {
+          next = current + 1;
+        }
+        if (state.compareAndSet(current, next)) {
+          return true;
+        }
+      }
+    }
+  }
+
+  private static final class Statistics {
+    final LongAdder requests = new LongAdder();
+    final LongAdder sampled = new LongAdder();
+    final LongAdder borrowed = new LongAdder();
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+/*
+ * The current time rounded down to minutes, which is all the epoch part of an X-Ray trace ID needs.
+ *
+ * The system clock is refreshed by a background ticker, so reading it is a single volatile load
+ * instead of a clock call and a few allocations per span. Tests and benchmarks pass their own
+ * implementation to get deterministic trace IDs.
+ */
+@FunctionalInterface
+interface CoarseClock {
+  /** Returns the current time in epoch seconds, rounded down to minutes. */
+  long minuteEpochSecond();
+
+  /** Returns the shared clock backed by the system time. */
+  static CoarseClock system() {
+    return SystemCoarseClock.INSTANCE;
+  }
+}
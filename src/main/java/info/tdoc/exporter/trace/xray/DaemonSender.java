@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Sends segment documents to a local X-Ray daemon over UDP.
+ *
+ * <p>Each document is written as its own datagram, prefixed with the daemon header line. The
+ * channel is non-blocking: when the socket send buffer is full the datagram is dropped and counted
+ * instead of stalling the export thread.
+ *
+ * <p>document: https://docs.aws.amazon.com/xray/latest/devguide/xray-api-sendingdata.html
+ */
+final class DaemonSender implements Closeable {
+  private static final Logger logger = Logger.getLogger(DaemonSender.class.getName());
+
+  static final String DAEMON_ADDRESS_ENV = "AWS_XRAY_DAEMON_ADDRESS";
+  static final String DEFAULT_DAEMON_ADDRESS = "127.0.0.1:2000";
+  // The daemon reads one UDP payload per segment: at most 65535 bytes less the IPv4 and UDP
+  // headers.
+  static final int MAX_DATAGRAM_SIZE = 65535 - 20 - 8;
+  static final byte[] HEADER = "{\"format\": \"json\", \"version\": 1}\n".getBytes(UTF_8);
+
+  private final InetSocketAddress address;
+  private final DatagramChannel channel;
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  @GuardedBy("this")
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+
+  DaemonSender(InetSocketAddress address) throws IOException {
+    this.address = address;
+    this.channel = DatagramChannel.open();
+    this.channel.configureBlocking(false);
+    this.channel.connect(address);
+  }
+
+  /** Creates a sender for the address in {@code AWS_XRAY_DAEMON_ADDRESS}, or the default one. */
+  static DaemonSender create() throws IOException {
+    return new DaemonSender(parseAddress(System.getenv(DAEMON_ADDRESS_ENV)));
+  }
+
+  /**
+   * Parses the daemon address. Both the plain {@code host:port} form and the {@code tcp:host:port
+   * udp:host:port} form used by the AWS SDKs are accepted; only the UDP address is used here.
+   */
+  @VisibleForTesting
+  static InetSocketAddress parseAddress(@Nullable String value) {
+    if (value == null || value.trim().isEmpty()) {
+      value = DEFAULT_DAEMON_ADDRESS;
+    }
+    String udp = null;
+    for (String part : value.trim().split("\\s+")) {
+      if (part.startsWith("udp:")) {
+        udp = part.substring("udp:".length());
+      } else if (!part.startsWith("tcp:")) {
+        udp = part;
+      }
+    }
+    if (udp == null) {
+      throw new IllegalArgumentException("No UDP address in " + DAEMON_ADDRESS_ENV + ": " + value);
+    }
+    int sep = udp.lastIndexOf(':');
+    if (sep <= 0 || sep == udp.length() - 1) {
+      throw new IllegalArgumentException("Invalid X-Ray daemon address: " + udp);
+    }
+    try {
+      return new InetSocketAddress(udp.substring(0, sep), Integer.parseInt(udp.substring(sep + 1)));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid X-Ray daemon port: " + udp, e);
+    }
+  }
+
+  InetSocketAddress getAddress() {
+    return address;
+  }
+
+  /** Returns the number of documents that could not be handed to the socket. */
+  long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * Sends one segment document as a single datagram.
+   *
+   * @return {@code true} if the datagram was handed to the socket.
+   */
+  boolean send(String document) {
+    return send(document.getBytes(UTF_8));
+  }
+
+  boolean send(byte[] document) {
+    return send(document, 0, document.length);
+  }
+
+  boolean send(byte[] document, int offset, int length) {
+    if (HEADER.length + length > MAX_DATAGRAM_SIZE) {
+      droppedCount.incrementAndGet();
+      logger.log(Level.WARNING, "Segment document too large for UDP: size=" + length);
+      return false;
+    }
+    synchronized (this) {
+      buffer.clear();
+      buffer.put(HEADER).put(document, offset, length).flip();
+      try {
+        if (channel.write(buffer) == 0) {
+          droppedCount.incrementAndGet();
+          return false;
+        }
+        return true;
+      } catch (IOException e) {
+        // e.g. ICMP port unreachable while no daemon is listening.
+        droppedCount.incrementAndGet();
+        logger.log(Level.FINE, "Failed to send segment to X-Ray daemon", e);
+        return false;
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.TraceId;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/*
+ * An encoded segment document together with the span ID it was encoded from, so entries of
+ * PutTraceSegmentsResult.getUnprocessedTraceSegments() can be mapped back to their documents.
+ *
+ * When duplicate suppression is enabled, the trace ID and the IDs of the child spans embedded in
+ * the document are kept as well, to remember every span once the document is delivered. Documents
+ * read back from the spill queue have neither.
+ */
+final class EncodedSegment {
+  final SpanId spanId;
+  @Nullable final TraceId traceId;
+  final List<SpanId> embeddedSpanIds;
+  final String document;
+  // The number of times the document has been sent before.
+  final int attempt;
+
+  EncodedSegment(SpanId spanId, String document) {
+    this(null, spanId, Collections.<SpanId>emptyList(), document, 0);
+  }
+
+  EncodedSegment(
+      @Nullable TraceId traceId, SpanId spanId, List<SpanId> embeddedSpanIds, String document) {
+    this(traceId, spanId, embeddedSpanIds, document, 0);
+  }
+
+  private EncodedSegment(
+      @Nullable TraceId traceId,
+      SpanId spanId,
+      List<SpanId> embeddedSpanIds,
+      String document,
+      int attempt) {
+    this.traceId = traceId;
+    this.spanId = spanId;
+    this.embeddedSpanIds = embeddedSpanIds;
+    this.document = document;
+    this.attempt = attempt;
+  }
+
+  EncodedSegment nextAttempt() {
+    return new EncodedSegment(traceId, spanId, embeddedSpanIds, document, attempt + 1);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.amazonaws.services.xray.AWSXRay;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+
+/*
+ * Everything needed to send segments with one X-Ray client: its dispatcher with its own in-flight
+ * limit, retry budget and rate limiter, and its spill queue if spilling is enabled.
+ */
+final class ExportShard implements Closeable {
+  final BatchDispatcher dispatcher;
+  @Nullable private final SpillQueue spillQueue;
+  @Nullable private final SpillDrainer spillDrainer;
+
+  ExportShard(
+      AWSXRay client,
+      XRayExporterConfiguration configuration,
+      @Nullable Path spillDirectory,
+      long spillMaxBytes,
+      @Nullable Consumer<EncodedSegment> deliveryListener) {
+    this.spillQueue =
+        spillDirectory != null ? createSpillQueue(spillDirectory, spillMaxBytes) : null;
+    this.dispatcher =
+        new BatchDispatcher(
+            client,
+            configuration.getMaxInFlightRequests(),
+            configuration.isAsyncExport(),
+            new RetryPolicy(configuration.getMaxRetries()),
+            configuration.isAdaptiveRateLimit() ? new AdaptiveRateLimiter() : null,
+            spillQueue,
+            deliveryListener);
+    if (spillQueue != null) {
+      this.spillDrainer =
+          new SpillDrainer(
+              spillQueue,
+              dispatcher,
+              configuration.getMaxSegmentsPerRequest(),
+              configuration.getMaxBytesPerRequest());
+      this.spillDrainer.start();
+    } else {
+      this.spillDrainer = null;
+    }
+  }
+
+  private static SpillQueue createSpillQueue(Path directory, long maxBytes) {
+    try {
+      return new SpillQueue(directory, maxBytes);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /*
+   * Stops replaying spilled segments, then closes the dispatcher, which may still spill, and the
+   * spill queue.
+   */
+  @Override
+  public void close() {
+    if (spillDrainer != null) {
+      spillDrainer.close();
+    }
+    dispatcher.close();
+    if (spillQueue != null) {
+      spillQueue.close();
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.opencensus.stats.Aggregation;
+import io.opencensus.stats.BucketBoundaries;
+import io.opencensus.stats.Measure;
+import io.opencensus.stats.Measure.MeasureDouble;
+import io.opencensus.stats.Measure.MeasureLong;
+import io.opencensus.stats.Stats;
+import io.opencensus.stats.StatsRecorder;
+import io.opencensus.stats.View;
+import io.opencensus.stats.ViewManager;
+import io.opencensus.tags.TagContext;
+import io.opencensus.tags.TagKey;
+import io.opencensus.tags.TagValue;
+import io.opencensus.tags.Tagger;
+import io.opencensus.tags.Tags;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+
+/*
+ * Measures and views describing the exporter itself.
+ *
+ * Tag contexts are created up front and passed to record(), so recording neither looks up the
+ * current context nor builds tags. Unprocessed segments are tagged with one of a fixed set of
+ * error codes, and "other" for the rest, which also bounds the number of time series.
+ */
+final class ExporterMetrics {
+  private static final String PREFIX = "xray_exporter/";
+  private static final String COUNT = "1";
+  private static final String BYTES = "By";
+  private static final String MILLIS = "ms";
+
+  static final MeasureLong SPANS_RECEIVED =
+      MeasureLong.create(PREFIX + "spans_received", "Spans handed to the exporter", COUNT);
+  static final MeasureLong SPANS_DROPPED =
+      MeasureLong.create(
+          PREFIX + "spans_dropped", "Spans dropped because the export queue was full", COUNT);
+  static final MeasureLong SPANS_SAMPLED_OUT =
+      MeasureLong.create(
+          PREFIX + "spans_sampled_out", "Spans of traces discarded by tail sampling", COUNT);
+  static final MeasureLong SPANS_DEDUPLICATED =
+      MeasureLong.create(
+          PREFIX + "spans_deduplicated", "Spans dropped because they were exported before", COUNT);
+  static final MeasureLong SEGMENTS_ENCODED =
+      MeasureLong.create(PREFIX + "segments_encoded", "Segment documents encoded", COUNT);
+  static final MeasureLong ENCODED_BYTES =
+      MeasureLong.create(PREFIX + "encoded_bytes", "Size of the encoded segment documents", BYTES);
+  static final MeasureLong SEGMENTS_SENT =
+      MeasureLong.create(PREFIX + "segments_sent", "Segments accepted by X-Ray", COUNT);
+  static final MeasureLong SEGMENTS_DROPPED =
+      MeasureLong.create(PREFIX + "segments_dropped", "Segments given up on", COUNT);
+  static final MeasureLong SEGMENTS_RETRIED =
+      MeasureLong.create(PREFIX + "segments_retried", "Segments scheduled to be sent again", COUNT);
+  static final MeasureLong SEGMENTS_UNPROCESSED =
+      MeasureLong.create(
+          PREFIX + "segments_unprocessed", "Segments reported unprocessed by X-Ray", COUNT);
+  static final MeasureLong BATCH_SIZE =
+      MeasureLong.create(PREFIX + "batch_size", "Segments per PutTraceSegments request", COUNT);
+  static final MeasureDouble REQUEST_LATENCY =
+      MeasureDouble.create(
+          PREFIX + "request_latency", "Latency of PutTraceSegments requests", MILLIS);
+
+  static final TagKey ERROR_CODE = TagKey.create("error_code");
+  static final String OTHER_ERROR_CODE = "other";
+  private static final List<String> ERROR_CODES =
+      ImmutableList.of(
+          "ThrottledException",
+          "ThrottlingException",
+          "InternalFailure",
+          "ServiceUnavailable",
+          "InvalidParameterValue",
+          OTHER_ERROR_CODE);
+
+  private static final StatsRecorder statsRecorder = Stats.getStatsRecorder();
+  private static final Tagger tagger = Tags.getTagger();
+  private static final TagContext emptyTags = tagger.empty();
+  private static final ImmutableMap<String, TagContext> errorCodeTags = createErrorCodeTags();
+  private static final AtomicBoolean registered = new AtomicBoolean();
+
+  private ExporterMetrics() {}
+
+  private static ImmutableMap<String, TagContext> createErrorCodeTags() {
+    ImmutableMap.Builder<String, TagContext> tags = ImmutableMap.builder();
+    for (String code : ERROR_CODES) {
+      tags.put(code, tagger.emptyBuilder().put(ERROR_CODE, TagValue.create(code)).build());
+    }
+    return tags.build();
+  }
+
+  static List<View> views() {
+    List<TagKey> none = Collections.<TagKey>emptyList();
+    Aggregation sum = Aggregation.Sum.create();
+    return ImmutableList.of(
+        view(SPANS_RECEIVED, sum, none),
+        view(SPANS_DROPPED, sum, none),
+        view(SPANS_SAMPLED_OUT, sum, none),
+        view(SPANS_DEDUPLICATED, sum, none),
+        view(SEGMENTS_ENCODED, sum, none),
+        view(ENCODED_BYTES, sum, none),
+        view(SEGMENTS_SENT, sum, none),
+        view(SEGMENTS_DROPPED, sum, none),
+        view(SEGMENTS_RETRIED, sum, none),
+        view(SEGMENTS_UNPROCESSED, sum, Collections.singletonList(ERROR_CODE)),
+        view(
+            BATCH_SIZE,
+            Aggregation.Distribution.create(
+                BucketBoundaries.create(
+                    ImmutableList.of(0.0, 1.0, 2.0, 5.0, 10.0, 20.0, 30.0, 40.0, 50.0))),
+            none),
+        view(
+            REQUEST_LATENCY,
+            Aggregation.Distribution.create(
+                BucketBoundaries.create(
+                    ImmutableList.of(
+                        0.0, 5.0, 10.0, 25.0, 50.0, 100.0, 250.0, 500.0, 1000.0, 2500.0, 5000.0,
+                        10000.0))),
+            none));
+  }
+
+  private static View view(Measure measure, Aggregation aggregation, List<TagKey> keys) {
+    return View.create(
+        View.Name.create(measure.getName()), measure.getDescription(), measure, aggregation, keys);
+  }
+
+  /*
+   * Registers the views once per process.
+   */
+  static void registerViews() {
+    if (registered.compareAndSet(false, true)) {
+      ViewManager viewManager = Stats.getViewManager();
+      for (View view : views()) {
+        viewManager.registerView(view);
+      }
+    }
+  }
+
+  static void recordReceived(int spans) {
+    statsRecorder.newMeasureMap().put(SPANS_RECEIVED, spans).record(emptyTags);
+  }
+
+  static void recordQueueDropped(int spans) {
+    statsRecorder.newMeasureMap().put(SPANS_DROPPED, spans).record(emptyTags);
+  }
+
+  static void recordSampledOut(long spans) {
+    statsRecorder.newMeasureMap().put(SPANS_SAMPLED_OUT, spans).record(emptyTags);
+  }
+
+  static void recordDeduplicated(int spans) {
+    statsRecorder.newMeasureMap().put(SPANS_DEDUPLICATED, spans).record(emptyTags);
+  }
+
+  static void recordEncoded(int segments, long bytes) {
+    statsRecorder
+        .newMeasureMap()
+        .put(SEGMENTS_ENCODED, segments)
+        .put(ENCODED_BYTES, bytes)
+        .record(emptyTags);
+  }
+
+  /*
+   * Records a completed PutTraceSegments request.
+   */
+  static void recordRequest(int batchSize, int sent, long latencyNanos) {
+    statsRecorder
+        .newMeasureMap()
+        .put(BATCH_SIZE, batchSize)
+        .put(SEGMENTS_SENT, sent)
+        .put(REQUEST_LATENCY, latencyNanos / 1e6)
+        .record(emptyTags);
+  }
+
+  static void recordSent(int segments) {
+    statsRecorder.newMeasureMap().put(SEGMENTS_SENT, segments).record(emptyTags);
+  }
+
+  static void recordDropped(int segments) {
+    statsRecorder.newMeasureMap().put(SEGMENTS_DROPPED, segments).record(emptyTags);
+  }
+
+  static void recordRetried(int segments) {
+    statsRecorder.newMeasureMap().put(SEGMENTS_RETRIED, segments).record(emptyTags);
+  }
+
+  static void recordUnprocessed(@Nullable String errorCode, int segments) {
+    statsRecorder
+        .newMeasureMap()
+        .put(SEGMENTS_UNPROCESSED, segments)
+        .record(errorCodeTags(errorCode));
+  }
+
+  static TagContext errorCodeTags(@Nullable String errorCode) {
+    TagContext tags = errorCode == null ? null : errorCodeTags.get(errorCode);
+    return tags != null ? tags : errorCodeTags.get(OTHER_ERROR_CODE);
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+/*
+ * Lower case hex encoding of X-Ray IDs with a lookup table.
+ *
+ * The write methods put characters into a caller supplied char array so that IDs can be handed to
+ * the JSON generator without building a String.
+ *
+ * document: https://docs.aws.amazon.com/xray/latest/devguide/xray-api-sendingdata.html#xray-api-traceids
+ */
+final class IdCodec {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final char VERSION_NO = '1';
+
+  // 16 hex digits for a 64-bit span ID.
+  static final int SPAN_ID_LENGTH = 16;
+  // 1-{8 hex digits of epoch}-{24 hex digits of identifier}
+  static final int TRACE_ID_LENGTH = 35;
+  static final int EXCEPTION_ID_LENGTH = 8;
+
+  private IdCodec() {}
+
+  /*
+   * Writes len bytes of src as 2 * len hex characters.
+   */
+  static void writeHex(byte[] src, int srcOffset, int len, char[] dst, int dstOffset) {
+    for (int i = 0; i < len; i++) {
+      int b = src[srcOffset + i] & 0xff;
+      dst[dstOffset++] = HEX[b >>> 4];
+      dst[dstOffset++] = HEX[b & 0xf];
+    }
+  }
+
+  /*
+   * Writes the lowest digits * 4 bits of value as zero padded hex.
+   */
+  static void writeHex(long value, int digits, char[] dst, int dstOffset) {
+    for (int i = dstOffset + digits - 1; i >= dstOffset; i--) {
+      dst[i] = HEX[(int) (value & 0xf)];
+      value >>>= 4;
+    }
+  }
+
+  /*
+   * Writes an X-Ray trace ID from the 16 bytes of an OpenCensus trace ID, whose first 4 bytes are
+   * replaced by the given epoch seconds.
+   */
+  static void writeTraceId(byte[] traceId, long epoch, char[] dst, int dstOffset) {
+    dst[dstOffset] = VERSION_NO;
+    dst[dstOffset + 1] = '-';
+    writeHex(epoch, 8, dst, dstOffset + 2);
+    dst[dstOffset + 10] = '-';
+    writeHex(traceId, 4, 12, dst, dstOffset + 11);
+  }
+
+  static String spanIdToString(byte[] spanId) {
+    char[] chars = new char[SPAN_ID_LENGTH];
+    writeHex(spanId, 0, 8, chars, 0);
+    return new String(chars);
+  }
+
+  static String traceIdToString(byte[] traceId, long epoch) {
+    char[] chars = new char[TRACE_ID_LENGTH];
+    writeTraceId(traceId, epoch, chars, 0);
+    return new String(chars);
+  }
+
+  static String toHex(long value, int digits) {
+    char[] chars = new char[digits];
+    writeHex(value, digits, chars, 0);
+    return new String(chars);
+  }
+
+  /*
+   * Returns the epoch seconds stored in the first 4 bytes of an OpenCensus trace ID.
+   */
+  static long epochOf(byte[] traceId) {
+    return (traceId[0] << 24) | ((traceId[1] & 0xff) << 16) | ((traceId[2] & 0xff) << 8)
+        | (traceId[3] & 0xff);
+  }
+}
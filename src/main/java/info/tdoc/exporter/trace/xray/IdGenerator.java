@@ -0,0 +1,51 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+/**
+ * Source of the random IDs the exporter generates itself, such as the IDs of SQL subsegments and
+ * exceptions. Span and trace IDs always come from OpenCensus.
+ *
+ * <p>Implementations must be thread-safe.
+ */
+public interface IdGenerator {
+  /**
+   * Returns 64 random bits.
+   *
+   * @return a random value.
+   */
+  long nextId();
+
+  /**
+   * Returns the default generator, backed by {@link java.util.concurrent.ThreadLocalRandom}. It is
+   * fast and does not contend between threads, but the IDs are not cryptographically secure.
+   *
+   * @return the default {@code IdGenerator}.
+   */
+  static IdGenerator threadLocalRandom() {
+    return ThreadLocalRandomIdGenerator.INSTANCE;
+  }
+
+  /**
+   * Returns a generator backed by one {@link java.security.SecureRandom} per thread.
+   *
+   * @return a secure {@code IdGenerator}.
+   */
+  static IdGenerator secureRandom() {
+    return new SecureRandomIdGenerator();
+  }
+}
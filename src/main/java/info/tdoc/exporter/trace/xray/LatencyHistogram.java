@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/*
+ * A histogram of non-negative values with about 6% precision, in the spirit of HdrHistogram:
+ * values below 16 have their own bucket, and every power of two above is split into 16 linear
+ * buckets. Not thread-safe.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final long[] counts = new long[64 * SUB_BUCKETS];
+  private long count;
+  private long sum;
+  private long max;
+
+  void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts[index(value)]++;
+    count++;
+    sum += value;
+    max = Math.max(max, value);
+  }
+
+  long getCount() {
+    return count;
+  }
+
+  long getMax() {
+    return max;
+  }
+
+  double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /*
+   * Returns the highest value of the bucket holding the given percentile, at most the maximum.
+   */
+  long percentile(double percentile) {
+    checkArgument(percentile >= 0 && percentile <= 100, "percentile must be in [0, 100].");
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max);
+      }
+    }
+    return max;
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int shift = magnitude - SUB_BUCKET_BITS;
+    int sub = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long upperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    int sub = index % SUB_BUCKETS;
+    long bound = (long) (SUB_BUCKETS + sub + 1) << shift;
+    return bound <= 0 ? Long.MAX_VALUE : bound - 1;
+  }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.xray.AWSXRay;
+import com.amazonaws.services.xray.AWSXRayAsyncClientBuilder;
+import com.amazonaws.services.xray.AbstractAWSXRayAsync;
+import com.amazonaws.services.xray.model.PutTraceSegmentsRequest;
+import com.amazonaws.services.xray.model.PutTraceSegmentsResult;
+import com.amazonaws.services.xray.model.UnprocessedTraceSegment;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Uninterruptibles;
+import io.opencensus.common.Duration;
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.Annotation;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Link;
+import io.opencensus.trace.MessageEvent;
+import io.opencensus.trace.Span.Kind;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nullable;
+
+/**
+ * Generates synthetic spans and exports them through the exporter, to find out how many spans a
+ * host can export with given settings.
+ *
+ * <p>Run {@code gradle run --args='--help'} for the options.
+ */
+public final class Main {
+  private static final String USAGE =
+      "Usage: Main [options]\n"
+          + "  --spans=N              spans to export (default 100000)\n"
+          + "  --rate=N               target spans per second, 0 for flat out (default 0)\n"
+          + "  --batch=N              spans per export call (default 100)\n"
+          + "  --attributes=N         string attributes per span (default 5)\n"
+          + "  --depth=N              levels of spans per trace (default 3)\n"
+          + "  --fanout=N             children per span below the root (default 1)\n"
+          + "  --error-rate=P         fraction of spans failing, 0 to 1 (default 0)\n"
+          + "  --sink=stub|api|daemon where segments go (default stub)\n"
+          + "  --stub-latency-ms=N    latency of each stub request (default 0)\n"
+          + "  --endpoint=URL         X-Ray endpoint for the api sink\n"
+          + "  --region=NAME          signing region for --endpoint\n"
+          + "  --queue=N              export queue capacity, 0 to send on the caller (default 0)\n"
+          + "  --in-flight=N          concurrent PutTraceSegments requests (default 4)\n"
+          + "  --async                use putTraceSegmentsAsync\n"
+          + "  --service=NAME         service name (default load-generator)\n";
+
+  private Main() {}
+
+  /**
+   * Runs the load generator.
+   *
+   * @param args the options, see {@code --help}.
+   */
+  public static void main(String[] args) throws IOException {
+    Options options;
+    try {
+      options = Options.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.print(USAGE);
+      System.exit(2);
+      return;
+    }
+    if (options.help) {
+      System.out.print(USAGE);
+      return;
+    }
+    run(options, System.out);
+  }
+
+  @VisibleForTesting
+  static final class Options {
+    long spans = 100000;
+    double rate = 0;
+    int batch = 100;
+    int attributes = 5;
+    int depth = 3;
+    int fanout = 1;
+    double errorRate = 0;
+    String sink = "stub";
+    long stubLatencyMillis = 0;
+    @Nullable String endpoint;
+    @Nullable String region;
+    int queue = 0;
+    int inFlight = XRayExporterConfiguration.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+    boolean async = false;
+    String service = "load-generator";
+    boolean help = false;
+
+    static Options parse(String[] args) {
+      Options options = new Options();
+      for (String arg : args) {
+        if (!arg.startsWith("--")) {
+          throw new IllegalArgumentException("Unexpected argument: " + arg);
+        }
+        int eq = arg.indexOf('=');
+        String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+        String value = eq < 0 ? null : arg.substring(eq + 1);
+        try {
+          options.set(name, value);
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Invalid value for --" + name + ": " + value, e);
+        }
+      }
+      options.validate();
+      return options;
+    }
+
+    private void set(String name, @Nullable String value) {
+      switch (name) {
+        case "help":
+          help = true;
+          return;
+        case "async":
+          async = true;
+          return;
+        default:
+          break;
+      }
+      if (value == null) {
+        throw new IllegalArgumentException("Missing value for --" + name);
+      }
+      switch (name) {
+        case "spans":
+          spans = Long.parseLong(value);
+          break;
+        case "rate":
+          rate = Double.parseDouble(value);
+          break;
+        case "batch":
+          batch = Integer.parseInt(value);
+          break;
+        case "attributes":
+          attributes = Integer.parseInt(value);
+          break;
+        case "depth":
+          depth = Integer.parseInt(value);
+          break;
+        case "fanout":
+          fanout = Integer.parseInt(value);
+          break;
+        case "error-rate":
+          errorRate = Double.parseDouble(value);
+          break;
+        case "sink":
+          sink = value;
+          break;
+        case "stub-latency-ms":
+          stubLatencyMillis = Long.parseLong(value);
+          break;
+        case "endpoint":
+          endpoint = value;
+          break;
+        case "region":
+          region = value;
+          break;
+        case "queue":
+          queue = Integer.parseInt(value);
+          break;
+        case "in-flight":
+          inFlight = Integer.parseInt(value);
+          break;
+        case "service":
+          service = value;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: --" + name);
+      }
+    }
+
+    private void validate() {
+      if (spans <= 0 || batch <= 0 || depth <= 0 || fanout <= 0 || attributes < 0) {
+        throw new IllegalArgumentException(
+            "--spans, --batch, --depth and --fanout must be positive.");
+      }
+      if (rate < 0 || errorRate < 0 || errorRate > 1) {
+        throw new IllegalArgumentException("--rate must be >= 0 and --error-rate in [0, 1].");
+      }
+      if (!sink.equals("stub") && !sink.equals("api") && !sink.equals("daemon")) {
+        throw new IllegalArgumentException("Unknown sink: " + sink);
+      }
+      if (endpoint != null && region == null) {
+        throw new IllegalArgumentException("--endpoint requires --region.");
+      }
+    }
+  }
+
+  @VisibleForTesting
+  static void run(Options options, PrintStream out) throws IOException {
+    StubXRayClient stub = null;
+    DaemonSender daemon = null;
+    XRayExporterConfiguration.Builder config =
+        XRayExporterConfiguration.builder()
+            .setServiceName(options.service)
+            .setQueueCapacity(options.queue)
+            .setMaxInFlightRequests(options.inFlight)
+            .setAsyncExport(options.async);
+    if (options.sink.equals("stub")) {
+      stub = new StubXRayClient(options.stubLatencyMillis);
+      config.setXRayClient(stub);
+    } else if (options.sink.equals("api")) {
+      config.setXRayClient(createClient(options));
+    } else {
+      daemon = DaemonSender.create();
+    }
+    XRayExporterHandler handler = new XRayExporterHandler(config.build(), daemon);
+
+    SpanGenerator generator = new SpanGenerator(options, new Random(1));
+    LatencyHistogram exportMicros = new LatencyHistogram();
+    List<SpanData> batch = new ArrayList<SpanData>(options.batch);
+    long start = System.nanoTime();
+    long generated = 0;
+    long failedExports = 0;
+    while (generated < options.spans) {
+      batch.clear();
+      generator.next(batch, (int) Math.min(options.batch, options.spans - generated));
+      if (options.rate > 0) {
+        long due = start + (long) (generated / options.rate * TimeUnit.SECONDS.toNanos(1));
+        long delay = due - System.nanoTime();
+        if (delay > 0) {
+          LockSupport.parkNanos(delay);
+        }
+      }
+      long exportStart = System.nanoTime();
+      try {
+        handler.export(batch);
+      } catch (RuntimeException e) {
+        failedExports++;
+      }
+      exportMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - exportStart));
+      generated += batch.size();
+    }
+    long exportedNanos = System.nanoTime() - start;
+    handler.shutdown();
+    long totalNanos = System.nanoTime() - start;
+
+    out.printf("sink                 %s%n", options.sink);
+    out.printf("spans                %d%n", generated);
+    out.printf(
+        "throughput           %.0f spans/s exported, %.0f spans/s including shutdown%n",
+        generated / seconds(exportedNanos),
+        generated / seconds(totalNanos));
+    out.printf(
+        "export call (ms)     mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+        exportMicros.getMean() / 1000,
+        exportMicros.percentile(50) / 1000.0,
+        exportMicros.percentile(90) / 1000.0,
+        exportMicros.percentile(99) / 1000.0,
+        exportMicros.percentile(99.9) / 1000.0,
+        exportMicros.getMax() / 1000.0);
+    out.printf("failed export calls  %d%n", failedExports);
+    out.printf("dropped spans        %d (export queue full)%n", handler.getDroppedSpanCount());
+    out.printf("dropped segments     %d%n", handler.getDroppedSegmentCount());
+    if (stub != null) {
+      out.printf(
+          "stub received        %d segments in %d requests%n",
+          stub.segments.get(), stub.requests.get());
+    }
+  }
+
+  private static double seconds(long nanos) {
+    return Math.max(nanos, 1) / 1e9;
+  }
+
+  private static AWSXRay createClient(Options options) {
+    if (options.endpoint == null) {
+      return AWSXRayAsyncClientBuilder.defaultClient();
+    }
+    return AWSXRayAsyncClientBuilder.standard()
+        .withEndpointConfiguration(new EndpointConfiguration(options.endpoint, options.region))
+        .build();
+  }
+
+  /*
+   * Creates traces of depth levels: a root span, then fanout children under every span below.
+   */
+  @VisibleForTesting
+  static final class SpanGenerator {
+    private static final Tracestate TRACESTATE = Tracestate.builder().build();
+    private static final TraceOptions SAMPLED = TraceOptions.builder().setIsSampled(true).build();
+    private static final Duration SPAN_DURATION = Duration.create(0, 5 * 1000 * 1000);
+
+    private final Options options;
+    private final Random random;
+    private final Map<String, AttributeValue> attributes;
+
+    SpanGenerator(Options options, Random random) {
+      this.options = options;
+      this.random = random;
+      Map<String, AttributeValue> attributes = new HashMap<String, AttributeValue>();
+      for (int i = 0; i < options.attributes; i++) {
+        attributes.put("load.attribute_" + i, AttributeValue.stringAttributeValue("value-" + i));
+      }
+      this.attributes = Collections.unmodifiableMap(attributes);
+    }
+
+    /*
+     * Appends count spans to out, starting new traces as needed.
+     */
+    void next(List<SpanData> out, int count) {
+      int end = out.size() + count;
+      while (out.size() < end) {
+        trace(out, end);
+      }
+    }
+
+    private void trace(List<SpanData> out, int end) {
+      TraceId traceId = TraceId.generateRandomId(random);
+      List<SpanId> level = Collections.singletonList(add(out, traceId, null));
+      for (int d = 1; d < options.depth && out.size() < end; d++) {
+        List<SpanId> next = new ArrayList<SpanId>();
+        for (SpanId parent : level) {
+          for (int f = 0; f < options.fanout && out.size() < end; f++) {
+            next.add(add(out, traceId, parent));
+          }
+        }
+        level = next;
+      }
+    }
+
+    private SpanId add(List<SpanData> out, TraceId traceId, @Nullable SpanId parent) {
+      SpanId spanId = SpanId.generateRandomId(random);
+      Timestamp start = Timestamp.fromMillis(System.currentTimeMillis());
+      boolean failed = options.errorRate > 0 && random.nextDouble() < options.errorRate;
+      out.add(
+          SpanData.create(
+              SpanContext.create(traceId, spanId, SAMPLED, TRACESTATE),
+              parent,
+              parent == null ? null : Boolean.FALSE,
+              parent == null ? "Recv.load" : "Sent.load",
+              parent == null ? Kind.SERVER : Kind.CLIENT,
+              start,
+              SpanData.Attributes.create(attributes, 0),
+              SpanData.TimedEvents.create(
+                  Collections.<SpanData.TimedEvent<Annotation>>emptyList(), 0),
+              SpanData.TimedEvents.create(
+                  Collections.<SpanData.TimedEvent<MessageEvent>>emptyList(), 0),
+              SpanData.Links.create(Collections.<Link>emptyList(), 0),
+              0,
+              failed ? Status.INTERNAL.withDescription("synthetic failure") : Status.OK,
+              start.addDuration(SPAN_DURATION)));
+      return spanId;
+    }
+  }
+
+  /*
+   * Accepts every segment after an optional latency, counting what it receives.
+   */
+  private static final class StubXRayClient extends AbstractAWSXRayAsync {
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong segments = new AtomicLong();
+    private final long latencyMillis;
+
+    StubXRayClient(long latencyMillis) {
+      this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public PutTraceSegmentsResult putTraceSegments(PutTraceSegmentsRequest request) {
+      if (latencyMillis > 0) {
+        Uninterruptibles.sleepUninterruptibly(latencyMillis, TimeUnit.MILLISECONDS);
+      }
+      requests.incrementAndGet();
+      segments.addAndGet(request.getTraceSegmentDocuments().size());
+      return new PutTraceSegmentsResult()
+          .withUnprocessedTraceSegments(Collections.<UnprocessedTraceSegment>emptyList());
+    }
+
+    @Override
+    public Future<PutTraceSegmentsResult> putTraceSegmentsAsync(
+        PutTraceSegmentsRequest request,
+        AsyncHandler<PutTraceSegmentsRequest, PutTraceSegmentsResult> handler) {
+      PutTraceSegmentsResult result = putTraceSegments(request);
+      handler.onSuccess(request, result);
+      return Futures.immediateFuture(result);
+    }
+  }
+}
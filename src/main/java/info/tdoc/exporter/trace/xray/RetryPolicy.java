@@ -0,0 +1,171 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.xray.model.ThrottledException;
+import com.amazonaws.services.xray.model.UnprocessedTraceSegment;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/*
+ * Decides whether and when segments are sent again.
+ *
+ * Delays grow exponentially with the attempt and are fully jittered, so clients which were
+ * throttled together do not come back together. Retries are also limited by a budget: every
+ * segment sent for the first time deposits budgetRatio tokens and every retried segment withdraws
+ * one, so while the service keeps failing retries add at most budgetRatio to the request rate.
+ */
+final class RetryPolicy {
+  static final long DEFAULT_BASE_DELAY_MILLIS = 100;
+  static final long DEFAULT_MAX_DELAY_MILLIS = 5 * 1000;
+  static final double DEFAULT_BUDGET_RATIO = 0.1;
+  static final int DEFAULT_BUDGET_CAPACITY = 100;
+
+  private static final ImmutableSet<String> THROTTLING_ERROR_CODES =
+      ImmutableSet.of(
+          "Throttling",
+          "ThrottlingException",
+          "ThrottledException",
+          "TooManyRequestsException",
+          "RequestLimitExceeded",
+          "SlowDown");
+
+  private final int maxRetries;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+  private final double budgetRatio;
+  private final int budgetCapacity;
+
+  @GuardedBy("this")
+  private double budget;
+
+  RetryPolicy(int maxRetries) {
+    this(
+        maxRetries,
+        DEFAULT_BASE_DELAY_MILLIS,
+        DEFAULT_MAX_DELAY_MILLIS,
+        DEFAULT_BUDGET_RATIO,
+        DEFAULT_BUDGET_CAPACITY);
+  }
+
+  RetryPolicy(
+      int maxRetries,
+      long baseDelayMillis,
+      long maxDelayMillis,
+      double budgetRatio,
+      int budgetCapacity) {
+    checkArgument(maxRetries >= 0, "maxRetries must not be negative.");
+    checkArgument(
+        baseDelayMillis > 0 && maxDelayMillis >= baseDelayMillis, "Invalid retry delays.");
+    checkArgument(budgetRatio >= 0 && budgetCapacity >= 0, "Invalid retry budget.");
+    this.maxRetries = maxRetries;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.budgetRatio = budgetRatio;
+    this.budgetCapacity = budgetCapacity;
+    this.budget = budgetCapacity;
+  }
+
+  boolean isEnabled() {
+    return maxRetries > 0;
+  }
+
+  /*
+   * Returns whether a segment which has already been sent attempt + 1 times may be sent again.
+   */
+  boolean canRetry(int attempt) {
+    return attempt < maxRetries;
+  }
+
+  /*
+   * Returns a random delay between 0 and baseDelayMillis * 2^attempt, capped at maxDelayMillis.
+   */
+  long backoffMillis(int attempt) {
+    long ceiling =
+        attempt >= 30 ? maxDelayMillis : Math.min(maxDelayMillis, baseDelayMillis << attempt);
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  /*
+   * Records segments sent for the first time.
+   */
+  synchronized void deposit(int segments) {
+    budget = Math.min(budgetCapacity, budget + segments * budgetRatio);
+  }
+
+  /*
+   * Withdraws one token per segment to be retried. Returns false, and withdraws nothing, if the
+   * budget does not cover all of them.
+   */
+  synchronized boolean tryWithdraw(int segments) {
+    if (budget < segments) {
+      return false;
+    }
+    budget -= segments;
+    return true;
+  }
+
+  @VisibleForTesting
+  synchronized double getBudget() {
+    return budget;
+  }
+
+  /*
+   * Returns whether a failed PutTraceSegments request may succeed when sent again: throttling,
+   * server errors and failures which never reached the service.
+   */
+  static boolean isRetryable(Throwable e) {
+    if (e instanceof AmazonServiceException) {
+      return isThrottling(e) || ((AmazonServiceException) e).getStatusCode() >= 500;
+    }
+    return e instanceof AmazonClientException && ((AmazonClientException) e).isRetryable();
+  }
+
+  /*
+   * Returns whether the service rejected a request because of its rate limit.
+   */
+  static boolean isThrottling(Throwable e) {
+    if (e instanceof ThrottledException) {
+      return true;
+    }
+    if (e instanceof AmazonServiceException) {
+      AmazonServiceException ase = (AmazonServiceException) e;
+      return isThrottling(ase.getErrorCode()) || ase.getStatusCode() == 429;
+    }
+    return false;
+  }
+
+  /*
+   * Returns whether an unprocessed segment may be accepted when sent again. Segments rejected as
+   * invalid are not.
+   */
+  static boolean isRetryable(UnprocessedTraceSegment unprocessed) {
+    String code = unprocessed.getErrorCode();
+    return code == null || !(code.startsWith("Invalid") || code.startsWith("Validation"));
+  }
+
+  static boolean isThrottling(@Nullable String errorCode) {
+    return errorCode != null && THROTTLING_ERROR_CODES.contains(errorCode);
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import info.tdoc.exporter.trace.xray.XRayExporterConfiguration.OverflowPolicy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.concurrent.GuardedBy;
+
+/*
+ * A bounded FIFO buffer backed by a preallocated array, used to hand spans from the OpenCensus
+ * export thread to the exporter worker. What happens when the buffer is full is decided by the
+ * OverflowPolicy; every element that is not kept is counted as dropped.
+ */
+final class RingBuffer<T> {
+  private final Object[] items;
+  private final OverflowPolicy policy;
+  private final long blockTimeoutNanos;
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+
+  @GuardedBy("lock")
+  private int head;
+
+  @GuardedBy("lock")
+  private int count;
+
+  RingBuffer(int capacity, OverflowPolicy policy, long blockTimeout, TimeUnit unit) {
+    this.items = new Object[capacity];
+    this.policy = policy;
+    this.blockTimeoutNanos = unit.toNanos(blockTimeout);
+  }
+
+  /*
+   * Adds an element. Returns false if the element itself was dropped. With DROP_OLDEST the new
+   * element is always kept and the oldest one is dropped instead.
+   */
+  boolean offer(T item) {
+    return offerAll(Collections.singletonList(item)) == 0 || policy == OverflowPolicy.DROP_OLDEST;
+  }
+
+  /*
+   * Adds the elements in order and returns the number of elements dropped, counting both new
+   * elements which were not kept and, with DROP_OLDEST, old ones evicted to make room. With BLOCK
+   * the whole call waits at most the block timeout; once it has passed, the remaining elements
+   * are only added while there is room.
+   */
+  int offerAll(Collection<? extends T> elements) {
+    int dropped = 0;
+    long deadline = policy == OverflowPolicy.BLOCK ? System.nanoTime() + blockTimeoutNanos : 0;
+    lock.lock();
+    try {
+      for (T item : elements) {
+        if (count == items.length) {
+          switch (policy) {
+            case DROP_NEWEST:
+              dropped++;
+              continue;
+            case DROP_OLDEST:
+              items[head] = null;
+              head = (head + 1) % items.length;
+              count--;
+              dropped++;
+              break;
+            case BLOCK:
+              if (!awaitNotFull(deadline - System.nanoTime())) {
+                dropped++;
+                continue;
+              }
+              break;
+          }
+        }
+        items[(head + count) % items.length] = item;
+        count++;
+        notEmpty.signal();
+      }
+    } finally {
+      lock.unlock();
+      if (dropped != 0) {
+        droppedCount.addAndGet(dropped);
+      }
+    }
+    return dropped;
+  }
+
+  /*
+   * Waits up to nanos for room. Returns false on timeout or interrupt.
+   */
+  @GuardedBy("lock")
+  private boolean awaitNotFull(long nanos) {
+    try {
+      while (count == items.length) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = notFull.awaitNanos(nanos);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /*
+   * Moves up to maxElements elements to out, waiting up to the timeout for the first one. Returns
+   * the number of elements moved.
+   */
+  @SuppressWarnings("unchecked")
+  int drainTo(Collection<? super T> out, int maxElements, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        if (nanos <= 0) {
+          return 0;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      int n = Math.min(count, maxElements);
+      for (int i = 0; i < n; i++) {
+        out.add((T) items[head]);
+        items[head] = null;
+        head = (head + 1) % items.length;
+      }
+      count -= n;
+      notFull.signalAll();
+      return n;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int size() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int capacity() {
+    return items.length;
+  }
+
+  long getDroppedCount() {
+    return droppedCount.get();
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.TraceId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.concurrent.GuardedBy;
+
+/*
+ * Remembers (trace ID, span ID) pairs for at least the window, in a fixed amount of memory.
+ *
+ * The window is covered by GENERATIONS Bloom filters, each receiving the pairs of one
+ * window / (GENERATIONS - 1) slice of time. A pair is looked up in all of them and added to the
+ * newest. When the newest slice is over, the oldest filter is cleared and becomes the newest, so
+ * pairs are forgotten after one to GENERATIONS / (GENERATIONS - 1) windows. Each filter is sized
+ * for its share of expectedInsertions at falsePositiveRate / GENERATIONS, which bounds the false
+ * positive rate of a lookup by falsePositiveRate while no more pairs are added than expected.
+ *
+ * Bits are set with compare-and-set, so concurrent callers only synchronize to rotate.
+ */
+final class RollingBloomFilter {
+  static final int GENERATIONS = 4;
+
+  private final long generationNanos;
+  private final long bits;
+  private final int hashes;
+  private final Ticker ticker;
+  private final Object rotateLock = new Object();
+
+  // The newest generation first; replaced as a whole on rotation.
+  private volatile AtomicLongArray[] generations;
+  private volatile long generationStartNanos;
+
+  RollingBloomFilter(
+      long window, TimeUnit unit, long expectedInsertions, double falsePositiveRate) {
+    this(window, unit, expectedInsertions, falsePositiveRate, Ticker.systemTicker());
+  }
+
+  RollingBloomFilter(
+      long window,
+      TimeUnit unit,
+      long expectedInsertions,
+      double falsePositiveRate,
+      Ticker ticker) {
+    checkArgument(window > 0, "window must be positive.");
+    checkArgument(expectedInsertions > 0, "expectedInsertions must be positive.");
+    checkArgument(
+        falsePositiveRate > 0 && falsePositiveRate < 1, "falsePositiveRate must be in (0, 1).");
+    this.generationNanos = Math.max(1, unit.toNanos(window) / (GENERATIONS - 1));
+    long perGeneration = Math.max(1, expectedInsertions / (GENERATIONS - 1));
+    double rate = falsePositiveRate / GENERATIONS;
+    // The usual optimum: m = -n ln p / (ln 2)^2 bits and k = m / n ln 2 hashes.
+    double optimalBits = -perGeneration * Math.log(rate) / (Math.log(2) * Math.log(2));
+    long words = (long) Math.ceil(optimalBits / Long.SIZE);
+    checkArgument(words <= Integer.MAX_VALUE, "Bloom filter too large.");
+    this.bits = words * Long.SIZE;
+    this.hashes = Math.max(1, (int) Math.round((double) bits / perGeneration * Math.log(2)));
+    this.ticker = ticker;
+    AtomicLongArray[] generations = new AtomicLongArray[GENERATIONS];
+    for (int i = 0; i < GENERATIONS; i++) {
+      generations[i] = new AtomicLongArray((int) words);
+    }
+    this.generations = generations;
+    this.generationStartNanos = ticker.read();
+  }
+
+  /*
+   * Adds the pair. Returns false if it was probably added before, within the window.
+   */
+  boolean add(TraceId traceId, SpanId spanId) {
+    rotateIfDue();
+    long h1 = hash(traceId, spanId);
+    long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+    AtomicLongArray[] generations = this.generations;
+    for (int g = 1; g < generations.length; g++) {
+      if (contains(generations[g], h1, h2)) {
+        return false;
+      }
+    }
+    return put(generations[0], h1, h2);
+  }
+
+  /*
+   * Returns true if the pair was probably added within the window, without adding it.
+   */
+  boolean mightContain(TraceId traceId, SpanId spanId) {
+    rotateIfDue();
+    long h1 = hash(traceId, spanId);
+    long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+    for (AtomicLongArray generation : generations) {
+      if (contains(generation, h1, h2)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void rotateIfDue() {
+    long now = ticker.read();
+    if (now - generationStartNanos >= generationNanos) {
+      rotate(now);
+    }
+  }
+
+  private static long hash(TraceId traceId, SpanId spanId) {
+    // getLowerLong() covers half of the trace ID and hashCode() all of it.
+    long key = (long) traceId.hashCode() << 32 | (spanId.hashCode() & 0xffffffffL);
+    return mix(traceId.getLowerLong() ^ mix(key));
+  }
+
+  private boolean contains(AtomicLongArray filter, long h1, long h2) {
+    long h = h1;
+    for (int i = 0; i < hashes; i++) {
+      long bit = (h & Long.MAX_VALUE) % bits;
+      if ((filter.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+      h += h2;
+    }
+    return true;
+  }
+
+  /*
+   * Sets the bits of the pair. Returns false if they were all set already.
+   */
+  private boolean put(AtomicLongArray filter, long h1, long h2) {
+    boolean changed = false;
+    long h = h1;
+    for (int i = 0; i < hashes; i++) {
+      long bit = (h & Long.MAX_VALUE) % bits;
+      int word = (int) (bit >>> 6);
+      long mask = 1L << bit;
+      while (true) {
+        long current = filter.get(word);
+        if ((current & mask) != 0) {
+          break;
+        }
+        if (filter.compareAndSet(word, current, current | mask)) {
+          changed = true;
+          break;
+        }
+      }
+      h += h2;
+    }
+    return changed;
+  }
+
+  private void rotate(long now) {
+    synchronized (rotateLock) {
+      rotateLocked(now);
+    }
+  }
+
+  @GuardedBy("rotateLock")
+  private void rotateLocked(long now) {
+    long elapsed = now - generationStartNanos;
+    if (elapsed < generationNanos) {
+      return;
+    }
+    // After a long pause, forget as many generations as passed.
+    long passed = Math.min(GENERATIONS, elapsed / generationNanos);
+    AtomicLongArray[] next = generations.clone();
+    for (long p = 0; p < passed; p++) {
+      AtomicLongArray oldest = next[GENERATIONS - 1];
+      for (int i = 0; i < oldest.length(); i++) {
+        oldest.set(i, 0);
+      }
+      System.arraycopy(next, 0, next, 1, GENERATIONS - 1);
+      next[0] = oldest;
+    }
+    generations = next;
+    generationStartNanos = now;
+  }
+
+  @VisibleForTesting
+  long getBitsPerGeneration() {
+    return bits;
+  }
+
+  @VisibleForTesting
+  int getHashCount() {
+    return hashes;
+  }
+
+  // The finalizer of MurmurHash3.
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import info.tdoc.exporter.trace.xray.AttributeMappers.Mapping;
+import info.tdoc.exporter.trace.xray.AttributeMappers.Section;
+import io.opencensus.trace.AttributeValue;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+
+/*
+ * Collects the span attributes which AttributeMappers route to structured sections of a segment
+ * document.
+ *
+ * Callers walk the attribute map once, handing every attribute to accept() and writing it as an
+ * annotation when accept() says so. The sections are written from the collected attributes
+ * afterwards. An instance is reused for every span encoded on a thread.
+ */
+final class SegmentAttributes {
+  private final AttributeMappers mappers;
+  private Mapping[] mappings = new Mapping[8];
+  private String[] keys = new String[8];
+  private AttributeValue[] values = new AttributeValue[8];
+  private int size;
+  // bit set of the sections which have attributes, by Section ordinal.
+  private int sections;
+
+  SegmentAttributes(AttributeMappers mappers) {
+    this.mappers = mappers;
+  }
+
+  /*
+   * Routes one attribute and returns true if it is to be written as an annotation.
+   */
+  boolean accept(String key, AttributeValue value) {
+    Mapping mapping = mappers.lookup(key);
+    if (mapping == null) {
+      return true;
+    }
+    if (size == mappings.length) {
+      mappings = Arrays.copyOf(mappings, size * 2);
+      keys = Arrays.copyOf(keys, size * 2);
+      values = Arrays.copyOf(values, size * 2);
+    }
+    mappings[size] = mapping;
+    keys[size] = key;
+    values[size] = value;
+    size++;
+    sections |= 1 << mapping.target.getSection().ordinal();
+    return mapping.target.isAnnotation();
+  }
+
+  boolean has(Section section) {
+    return (sections & (1 << section.ordinal())) != 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  Section section(int i) {
+    return mappings[i].target.getSection();
+  }
+
+  @Nullable
+  String namespace(int i) {
+    return mappings[i].target.getNamespace();
+  }
+
+  String field(int i) {
+    return mappings[i].fieldName(keys[i]);
+  }
+
+  AttributeValue value(int i) {
+    return values[i];
+  }
+
+  /*
+   * Returns the last attribute written to the field, or null.
+   */
+  @Nullable
+  AttributeValue find(Section section, String field) {
+    for (int i = size - 1; i >= 0; i--) {
+      if (section(i) == section && field(i).equals(field)) {
+        return values[i];
+      }
+    }
+    return null;
+  }
+
+  void clear() {
+    Arrays.fill(mappings, 0, size, null);
+    Arrays.fill(keys, 0, size, null);
+    Arrays.fill(values, 0, size, null);
+    size = 0;
+    sections = 0;
+  }
+}
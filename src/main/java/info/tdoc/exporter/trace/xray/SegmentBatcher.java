@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Splits encoded segment documents into PutTraceSegments requests which stay within both the
+ * document count and the payload size limits.
+ */
+final class SegmentBatcher {
+  private static final Logger logger = Logger.getLogger(SegmentBatcher.class.getName());
+
+  private SegmentBatcher() {}
+
+  /*
+   * Returns chunks of documents in their original order. A single document larger than maxBytes
+   * is put into its own chunk, so the service decides about it instead of the whole batch.
+   */
+  static List<List<String>> split(List<String> documents, int maxSegments, int maxBytes) {
+    return split(documents, Function.<String>identity(), maxSegments, maxBytes);
+  }
+
+  /*
+   * Same as above for items which carry their document.
+   */
+  static <T> List<List<T>> split(
+      List<T> items, Function<? super T, String> document, int maxSegments, int maxBytes) {
+    List<List<T>> chunks = new ArrayList<List<T>>();
+    List<T> chunk = new ArrayList<T>();
+    int chunkBytes = 0;
+    for (T item : items) {
+      int size = requestSize(document.apply(item));
+      if (size > maxBytes) {
+        logger.log(Level.WARNING, "Segment document exceeds request size limit: size=" + size);
+      }
+      if (!chunk.isEmpty() && (chunk.size() >= maxSegments || chunkBytes + size > maxBytes)) {
+        chunks.add(chunk);
+        chunk = new ArrayList<T>();
+        chunkBytes = 0;
+      }
+      chunk.add(item);
+      chunkBytes += size;
+    }
+    if (!chunk.isEmpty()) {
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+  /*
+   * Returns the number of bytes the document takes in the request body. Documents are sent as JSON
+   * strings, so quotes and backslashes are escaped and each entry adds its quotes and a comma.
+   */
+  static int requestSize(String document) {
+    int size = 3;
+    for (int i = 0; i < document.length(); i++) {
+      char c = document.charAt(i);
+      if (c < 0x80) {
+        size += (c == '"' || c == '\\') ? 2 : 1;
+      } else if (c < 0x800) {
+        size += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        size += 4;
+        i++;
+      } else {
+        size += 3;
+      }
+    }
+    return size;
+  }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import info.tdoc.exporter.trace.xray.AttributeMappers.Section;
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.export.SpanData;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/*
+ * Encodes SpanData into an X-Ray segment document in a single pass.
+ *
+ * The document is written field by field with a JsonGenerator into a per-thread reusable buffer,
+ * without building a TraceSegment. The output is the same document TraceSegment serializes to,
+ * except that end_time is omitted for in-progress segments. A SpanTree is written as one document
+ * with the local children embedded in its subsegments.
+ */
+final class SegmentEncoder {
+  private static final JsonFactory factory = new JsonFactory().setRootValueSeparator(null);
+  // Buffers which grew larger than this for an unusual span are not kept for reuse.
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  // Offsets of the IDs in Context.ids.
+  private static final int ID = 0;
+  private static final int PARENT_ID = ID + IdCodec.SPAN_ID_LENGTH;
+  private static final int GENERATED_ID = PARENT_ID + IdCodec.SPAN_ID_LENGTH;
+  private static final int IDS_LENGTH = GENERATED_ID + IdCodec.SPAN_ID_LENGTH;
+
+  // Field names written for every segment, encoded once.
+  private static final SerializableString ID_FIELD = new SerializedString("id");
+  private static final SerializableString START_TIME_FIELD = new SerializedString("start_time");
+  private static final SerializableString TRACE_ID_FIELD = new SerializedString("trace_id");
+  private static final SerializableString PARENT_ID_FIELD = new SerializedString("parent_id");
+  private static final SerializableString END_TIME_FIELD = new SerializedString("end_time");
+  private static final SerializableString IN_PROGRESS_FIELD = new SerializedString("in_progress");
+
+  private final SegmentHeaders headers;
+  private final TraceIdCache traceIds;
+  private final IdGenerator idGenerator;
+  private final AttributeMappers attributeMappers;
+  private final ThreadLocal<Context> contexts = new ThreadLocal<Context>();
+
+  SegmentEncoder(String serviceName) {
+    this(
+        serviceName, new TraceIdCache(TraceIdCache.DEFAULT_SIZE), IdGenerator.threadLocalRandom());
+  }
+
+  SegmentEncoder(String serviceName, TraceIdCache traceIds, IdGenerator idGenerator) {
+    this(serviceName, traceIds, idGenerator, AttributeMappers.defaults());
+  }
+
+  SegmentEncoder(
+      String serviceName,
+      TraceIdCache traceIds,
+      IdGenerator idGenerator,
+      AttributeMappers attributeMappers) {
+    this.headers = new SegmentHeaders(serviceName, SegmentHeaders.DEFAULT_CACHE_SIZE);
+    this.traceIds = traceIds;
+    this.idGenerator = idGenerator;
+    this.attributeMappers = attributeMappers;
+  }
+
+  /*
+   * Encodes the span and returns the calling thread's buffer holding the document. The buffer is
+   * overwritten by the next call on the same thread.
+   */
+  Buffer encode(SpanData sd) throws IOException {
+    return encode(sd, null);
+  }
+
+  /*
+   * Encodes the span with its local children embedded as subsegments.
+   */
+  Buffer encode(SpanTree tree) throws IOException {
+    return encode(tree.span, tree.getChildren());
+  }
+
+  private Buffer encode(SpanData sd, @Nullable List<SpanTree> children) throws IOException {
+    Context ctx = contexts.get();
+    if (ctx == null || ctx.buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+      ctx = new Context(attributeMappers);
+      contexts.set(ctx);
+    }
+    ctx.buffer.reset();
+    try {
+      writeSegment(ctx, sd, children, null);
+      ctx.generator.flush();
+    } catch (IOException | RuntimeException e) {
+      // The generator may be left in the middle of a document.
+      contexts.remove();
+      throw e;
+    }
+    return ctx.buffer;
+  }
+
+  /*
+   * Encodes the span into a String.
+   */
+  String encodeToString(SpanData sd) throws IOException {
+    return encode(sd).toString();
+  }
+
+  /*
+   * Writes a segment, or with embeddedIn set to the trace ID of the enclosing document, a
+   * subsegment embedded in its parent. Embedded subsegments omit the fields their parent implies.
+   */
+  private void writeSegment(
+      Context ctx, SpanData sd, @Nullable List<SpanTree> children, @Nullable String embeddedIn)
+      throws IOException {
+    JsonGenerator gen = ctx.generator;
+    char[] ids = ctx.ids;
+    byte[] bytes = ctx.idBytes;
+    SpanContext sc = sd.getContext();
+    sc.getSpanId().copyBytesTo(bytes, 0);
+    IdCodec.writeHex(bytes, 0, SpanId.SIZE, ids, ID);
+    boolean embedded = embeddedIn != null;
+    String traceId = embedded ? embeddedIn : traceIds.get(sc.getTraceId());
+    SpanId parentSpanId = sd.getParentSpanId();
+    Boolean hasRemoteParent = sd.getHasRemoteParent();
+
+    boolean hasParent = false;
+    SegmentHeaders.Kind kind =
+        embedded ? SegmentHeaders.Kind.EMBEDDED : SegmentHeaders.Kind.SEGMENT;
+    if (hasRemoteParent != null && parentSpanId != null && !embedded) {
+      hasParent = true;
+      parentSpanId.copyBytesTo(bytes, 0);
+      IdCodec.writeHex(bytes, 0, SpanId.SIZE, ids, PARENT_ID);
+      if (hasRemoteParent == true) { // remote invocation
+        kind = SegmentHeaders.Kind.REMOTE;
+      } else if (parentSpanId.isValid()) { // local invocation
+        kind = SegmentHeaders.Kind.SUBSEGMENT;
+      }
+    }
+
+    double startTime = TraceSegment.toEpochSeconds(sd.getStartTimestamp());
+    Timestamp end = sd.getEndTimestamp();
+    double endTime = end == null ? 0 : TraceSegment.toEpochSeconds(end);
+
+    gen.writeStartObject();
+    // name, type and namespace, see SegmentHeaders.
+    gen.writeRaw(headers.get(sd.getName(), kind));
+    gen.writeFieldName(ID_FIELD);
+    gen.writeString(ids, ID, IdCodec.SPAN_ID_LENGTH);
+    gen.writeFieldName(START_TIME_FIELD);
+    gen.writeNumber(startTime);
+    if (!embedded) {
+      gen.writeFieldName(TRACE_ID_FIELD);
+      gen.writeString(traceId);
+    }
+    if (hasParent) {
+      gen.writeFieldName(PARENT_ID_FIELD);
+      gen.writeString(ids, PARENT_ID, IdCodec.SPAN_ID_LENGTH);
+    }
+    if (end != null) {
+      gen.writeFieldName(END_TIME_FIELD);
+      gen.writeNumber(endTime);
+    } else {
+      gen.writeFieldName(IN_PROGRESS_FIELD);
+      gen.writeBoolean(true);
+    }
+    writeStatusFlags(gen, sd.getStatus());
+
+    Map<String, AttributeValue> attributes = sd.getAttributes().getAttributeMap();
+    SegmentAttributes captured = ctx.attributes;
+    captured.clear();
+    writeAnnotations(gen, sd.getName(), attributes, captured);
+    if (hasParent) {
+      gen.writeArrayFieldStart("precursor_ids");
+      gen.writeString(ids, PARENT_ID, IdCodec.SPAN_ID_LENGTH);
+      gen.writeEndArray();
+    }
+    writeCause(ctx, sd.getStatus());
+    if (captured.has(Section.HTTP_REQUEST) || captured.has(Section.HTTP_RESPONSE)) {
+      writeHttp(gen, captured, sd.getStatus());
+    }
+    if (captured.has(Section.AWS)) {
+      writeAws(gen, captured);
+    }
+    if (captured.has(Section.METADATA)) {
+      writeMetadata(gen, captured);
+    }
+    boolean hasSql = captured.has(Section.SQL);
+    if (hasSql || children != null) {
+      gen.writeArrayFieldStart("subsegments");
+      if (hasSql) {
+        writeSqlSubsegment(ctx, traceId, startTime, endTime, captured);
+      }
+      if (children != null) {
+        // Children overwrite the scratch IDs and attributes, so they are written last.
+        for (SpanTree child : children) {
+          writeSegment(ctx, child.span, child.getChildren(), traceId);
+        }
+      }
+      gen.writeEndArray();
+    }
+    gen.writeEndObject();
+  }
+
+  private static void writeStatusFlags(JsonGenerator gen, Status status) throws IOException {
+    if (status == null || status.isOk()) {
+      return;
+    }
+    if (status.equals(Status.RESOURCE_EXHAUSTED)) {
+      gen.writeBooleanField("throttle", true);
+    } else if (TraceSegment.isError(status) == true) {
+      gen.writeBooleanField("error", true);
+    } else {
+      gen.writeBooleanField("fault", true);
+    }
+  }
+
+  /*
+   * Writes the attributes which are annotations, collecting the mapped ones on the way.
+   */
+  private static void writeAnnotations(
+      JsonGenerator gen,
+      String spanName,
+      Map<String, AttributeValue> attributes,
+      SegmentAttributes captured)
+      throws IOException {
+    gen.writeObjectFieldStart("annotations");
+    AttributeValue nameAttribute = attributes.get("name");
+    if (nameAttribute == null) {
+      gen.writeStringField("name", spanName); // allways put span's name to attribute.
+    } else {
+      gen.writeFieldName("name");
+      writeAttributeValue(gen, nameAttribute);
+    }
+    for (Map.Entry<String, AttributeValue> label : attributes.entrySet()) {
+      if (!captured.accept(label.getKey(), label.getValue()) || label.getKey().equals("name")) {
+        continue;
+      }
+      gen.writeFieldName(label.getKey());
+      writeAttributeValue(gen, label.getValue());
+    }
+    gen.writeEndObject();
+  }
+
+  private static void writeAttributeValue(JsonGenerator gen, AttributeValue value)
+      throws IOException {
+    Object v = TraceSegment.attributeValueToObject(value);
+    if (v instanceof String) {
+      gen.writeString((String) v);
+    } else if (v instanceof Boolean) {
+      gen.writeBoolean((Boolean) v);
+    } else if (v instanceof Long) {
+      gen.writeNumber((Long) v);
+    } else if (v instanceof Double) {
+      gen.writeNumber((Double) v);
+    } else {
+      gen.writeNull();
+    }
+  }
+
+  private void writeCause(Context ctx, Status status) throws IOException {
+    JsonGenerator gen = ctx.generator;
+    if (status == null || status.isOk()) {
+      return;
+    }
+    String desc = status.getDescription();
+    if (desc == null || desc.equals("")) {
+      return;
+    }
+    gen.writeObjectFieldStart("cause");
+    gen.writeArrayFieldStart("exceptions");
+    gen.writeStartObject();
+    IdCodec.writeHex(
+        TraceSegment.randomExceptionId(idGenerator),
+        IdCodec.EXCEPTION_ID_LENGTH,
+        ctx.ids,
+        GENERATED_ID);
+    gen.writeFieldName("id");
+    gen.writeString(ctx.ids, GENERATED_ID, IdCodec.EXCEPTION_ID_LENGTH);
+    gen.writeStringField("message", desc);
+    gen.writeEndObject();
+    gen.writeEndArray();
+    gen.writeEndObject();
+  }
+
+  private static void writeHttp(JsonGenerator gen, SegmentAttributes captured, Status status)
+      throws IOException {
+    gen.writeObjectFieldStart("http");
+    gen.writeObjectFieldStart("request");
+    writeStringFields(gen, captured, Section.HTTP_REQUEST, null);
+    gen.writeEndObject();
+    gen.writeObjectFieldStart("response");
+    writeStringFields(gen, captured, Section.HTTP_RESPONSE, "status");
+    AttributeValue statusCode = captured.find(Section.HTTP_RESPONSE, "status");
+    String responseStatus =
+        statusCode == null ? null : TraceSegment.attributeValueToString(statusCode);
+    if ((responseStatus == null || responseStatus.equals("")) && status != null) {
+      // This is a fallback.
+      responseStatus = TraceSegment.convertToHTTPStatusCode(status);
+    }
+    if (responseStatus != null) {
+      gen.writeStringField("status", responseStatus);
+    }
+    gen.writeEndObject();
+    gen.writeEndObject();
+  }
+
+  /*
+   * Writes the captured attributes of a section as string fields, except the skipped field.
+   */
+  private static void writeStringFields(
+      JsonGenerator gen, SegmentAttributes captured, Section section, @Nullable String skipped)
+      throws IOException {
+    for (int i = 0; i < captured.size(); i++) {
+      if (captured.section(i) != section) {
+        continue;
+      }
+      String field = captured.field(i);
+      if (!field.equals(skipped)) {
+        gen.writeStringField(field, TraceSegment.attributeValueToString(captured.value(i)));
+      }
+    }
+  }
+
+  private static void writeAws(JsonGenerator gen, SegmentAttributes captured) throws IOException {
+    gen.writeObjectFieldStart("aws");
+    for (int i = 0; i < captured.size(); i++) {
+      if (captured.section(i) == Section.AWS) {
+        gen.writeFieldName(captured.field(i));
+        writeAttributeValue(gen, captured.value(i));
+      }
+    }
+    gen.writeEndObject();
+  }
+
+  /*
+   * Writes the metadata grouped by namespace, each namespace at its first attribute.
+   */
+  private static void writeMetadata(JsonGenerator gen, SegmentAttributes captured)
+      throws IOException {
+    gen.writeObjectFieldStart("metadata");
+    for (int i = 0; i < captured.size(); i++) {
+      if (captured.section(i) != Section.METADATA || seenNamespace(captured, i)) {
+        continue;
+      }
+      String namespace = captured.namespace(i);
+      gen.writeObjectFieldStart(namespace);
+      for (int j = i; j < captured.size(); j++) {
+        if (captured.section(j) == Section.METADATA && namespace.equals(captured.namespace(j))) {
+          gen.writeFieldName(captured.field(j));
+          writeAttributeValue(gen, captured.value(j));
+        }
+      }
+      gen.writeEndObject();
+    }
+    gen.writeEndObject();
+  }
+
+  private static boolean seenNamespace(SegmentAttributes captured, int i) {
+    for (int j = 0; j < i; j++) {
+      if (captured.section(j) == Section.METADATA
+          && captured.namespace(i).equals(captured.namespace(j))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void writeSqlSubsegment(
+      Context ctx, String traceId, double startTime, double endTime, SegmentAttributes captured)
+      throws IOException {
+    JsonGenerator gen = ctx.generator;
+    char[] ids = ctx.ids;
+    IdCodec.writeHex(
+        TraceSegment.randomSegmentId(idGenerator), IdCodec.SPAN_ID_LENGTH, ids, GENERATED_ID);
+    gen.writeStartObject();
+    gen.writeRaw(SegmentHeaders.SQL_SUBSEGMENT);
+    gen.writeFieldName(ID_FIELD);
+    gen.writeString(ids, GENERATED_ID, IdCodec.SPAN_ID_LENGTH);
+    gen.writeFieldName(START_TIME_FIELD);
+    gen.writeNumber(startTime);
+    gen.writeFieldName(TRACE_ID_FIELD);
+    gen.writeString(traceId);
+    gen.writeFieldName(PARENT_ID_FIELD);
+    gen.writeString(ids, ID, IdCodec.SPAN_ID_LENGTH);
+    gen.writeFieldName(END_TIME_FIELD);
+    gen.writeNumber(endTime);
+    gen.writeObjectFieldStart("sql");
+    writeStringFields(gen, captured, Section.SQL, null);
+    gen.writeEndObject();
+    gen.writeEndObject();
+  }
+
+  private static final class Context {
+    final Buffer buffer = new Buffer();
+    // Scratch space for the hex IDs of the segment being written, see ID, PARENT_ID, etc.
+    final char[] ids = new char[IDS_LENGTH];
+    final byte[] idBytes = new byte[SpanId.SIZE];
+    final SegmentAttributes attributes;
+    final JsonGenerator generator;
+
+    Context(AttributeMappers attributeMappers) {
+      attributes = new SegmentAttributes(attributeMappers);
+      try {
+        generator = factory.createGenerator(buffer, JsonEncoding.UTF8);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /*
+   * A growable byte buffer which is reused for every document encoded on a thread.
+   */
+  static final class Buffer extends OutputStream {
+    private byte[] bytes = new byte[1024];
+    private int size;
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(size + 1);
+      bytes[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(size + len);
+      System.arraycopy(b, off, bytes, size, len);
+      size += len;
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+      }
+    }
+
+    void reset() {
+      size = 0;
+    }
+
+    byte[] array() {
+      return bytes;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int capacity() {
+      return bytes.length;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, size);
+    }
+
+    @Override
+    public String toString() {
+      return new String(bytes, 0, size, UTF_8);
+    }
+  }
+}
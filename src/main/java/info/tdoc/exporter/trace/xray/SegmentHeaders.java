@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/*
+ * Pre-encoded leading fields of segment documents.
+ *
+ * The name, type and namespace of a segment depend only on the service name, the span name and
+ * the kind of segment. They are escaped and encoded to UTF-8 once per span name and kind, and the
+ * encoder copies the bytes with JsonGenerator.writeRaw right after the opening brace. Each
+ * fragment ends with a comma; the generator still thinks the object is empty and writes the next
+ * field without one, which keeps the document valid.
+ */
+final class SegmentHeaders {
+  enum Kind {
+    // a span without a parent.
+    SEGMENT(null, null),
+    // a span with a remote parent.
+    REMOTE(null, "remote"),
+    // a span with a local parent, sent as its own document.
+    SUBSEGMENT("subsegment", null),
+    // a span with a local parent, embedded in the document of its parent.
+    EMBEDDED(null, null);
+
+    @Nullable private final String type;
+    @Nullable private final String namespace;
+
+    Kind(@Nullable String type, @Nullable String namespace) {
+      this.type = type;
+      this.namespace = namespace;
+    }
+
+    boolean isNamedBySpan() {
+      return this == SUBSEGMENT || this == EMBEDDED;
+    }
+  }
+
+  static final int DEFAULT_CACHE_SIZE = 1024;
+
+  // The SQL subsegment written for the sql.query attribute.
+  static final SerializableString SQL_SUBSEGMENT =
+      fragment(TraceSegment.ATTRIB_SQL_EXEC, "subsegment", "remote");
+
+  @Nullable private final String serviceName;
+  private final int maxCacheSize;
+  // Fragments which do not depend on the span name, by Kind ordinal; null when they do.
+  private final SerializableString[] fixed = new SerializableString[Kind.values().length];
+  private final ConcurrentHashMap<String, SerializableString>[] bySpanName;
+
+  @SuppressWarnings("unchecked")
+  SegmentHeaders(@Nullable String serviceName, int maxCacheSize) {
+    this.serviceName = serviceName;
+    this.maxCacheSize = maxCacheSize;
+    this.bySpanName =
+        (ConcurrentHashMap<String, SerializableString>[])
+            new ConcurrentHashMap<?, ?>[Kind.values().length];
+    for (Kind kind : Kind.values()) {
+      if (kind.isNamedBySpan() || serviceName == null || serviceName.isEmpty()) {
+        bySpanName[kind.ordinal()] = new ConcurrentHashMap<String, SerializableString>();
+      } else {
+        fixed[kind.ordinal()] = fragment(serviceName, kind.type, kind.namespace);
+      }
+    }
+  }
+
+  /*
+   * Returns the leading fields of the segment of a span, ending with a comma.
+   */
+  SerializableString get(String spanName, Kind kind) {
+    SerializableString header = fixed[kind.ordinal()];
+    if (header != null) {
+      return header;
+    }
+    ConcurrentHashMap<String, SerializableString> cache = bySpanName[kind.ordinal()];
+    header = cache.get(spanName);
+    if (header == null) {
+      header = fragment(TraceSegment.fixSegmentName(spanName), kind.type, kind.namespace);
+      if (cache.size() < maxCacheSize) {
+        cache.putIfAbsent(spanName, header);
+      }
+    }
+    return header;
+  }
+
+  private static SerializableString fragment(
+      String name, @Nullable String type, @Nullable String namespace) {
+    StringBuilder sb = new StringBuilder();
+    appendField(sb, "name", name);
+    if (type != null) {
+      appendField(sb, "type", type);
+    }
+    if (namespace != null) {
+      appendField(sb, "namespace", namespace);
+    }
+    return new SerializedString(sb.toString());
+  }
+
+  private static void appendField(StringBuilder sb, String field, String value) {
+    sb.append('"').append(field).append("\":\"");
+    sb.append(new SerializedString(value).asQuotedChars());
+    sb.append("\",");
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Turns span names into valid X-Ray segment names.
+ *
+ * X-Ray allows Unicode letters, numbers and whitespace, the symbols _ . : / % & # = + \ - @, and
+ * at most 200 characters. Other characters are removed, and an empty result becomes "span".
+ * ASCII characters are checked against a table; others fall back to the Character predicates.
+ *
+ * Span names are usually few, so sanitized names are memoized. Once the cache is full, new names
+ * are sanitized on every call instead of evicting, which keeps a burst of unique names from
+ * displacing the common ones.
+ */
+final class SegmentNameSanitizer {
+  static final int MAX_LENGTH = 200;
+  static final String DEFAULT_NAME = "span";
+  static final int DEFAULT_CACHE_SIZE = 1024;
+
+  private static final boolean[] ASCII_ALLOWED = new boolean[128];
+
+  static {
+    for (char c = '0'; c <= '9'; c++) {
+      ASCII_ALLOWED[c] = true;
+    }
+    for (char c = 'a'; c <= 'z'; c++) {
+      ASCII_ALLOWED[c] = true;
+      ASCII_ALLOWED[c - 'a' + 'A'] = true;
+    }
+    for (char c : "_.:/%&#=+\\-@ \t\n\u000B\f\r".toCharArray()) {
+      ASCII_ALLOWED[c] = true;
+    }
+  }
+
+  private final int maxCacheSize;
+  private final ConcurrentHashMap<String, String> cache;
+
+  SegmentNameSanitizer(int maxCacheSize) {
+    checkArgument(maxCacheSize >= 0, "maxCacheSize must not be negative.");
+    this.maxCacheSize = maxCacheSize;
+    this.cache = new ConcurrentHashMap<String, String>();
+  }
+
+  String sanitize(String name) {
+    String sanitized = cache.get(name);
+    if (sanitized != null) {
+      return sanitized;
+    }
+    sanitized = sanitizeUncached(name);
+    if (cache.size() < maxCacheSize) {
+      cache.putIfAbsent(name, sanitized);
+    }
+    return sanitized;
+  }
+
+  @VisibleForTesting
+  int cacheSize() {
+    return cache.size();
+  }
+
+  static String sanitizeUncached(String name) {
+    int length = name.length();
+    int i = 0;
+    while (i < length && i < MAX_LENGTH && isAllowed(name.charAt(i))) {
+      i++;
+    }
+    if (i == length) {
+      return length == 0 ? DEFAULT_NAME : name;
+    }
+    // Something is removed or truncated; copy code point by code point.
+    StringBuilder sb = new StringBuilder(Math.min(length, MAX_LENGTH));
+    sb.append(name, 0, i);
+    while (i < length) {
+      int cp = name.codePointAt(i);
+      int n = Character.charCount(cp);
+      if (isAllowed(cp)) {
+        if (sb.length() + n > MAX_LENGTH) {
+          break;
+        }
+        sb.appendCodePoint(cp);
+      }
+      i += n;
+    }
+    return sb.length() == 0 ? DEFAULT_NAME : sb.toString();
+  }
+
+  private static boolean isAllowed(int cp) {
+    if (cp < ASCII_ALLOWED.length) {
+      return ASCII_ALLOWED[cp];
+    }
+    return Character.isLetterOrDigit(cp) || Character.isWhitespace(cp) || Character.isSpaceChar(cp);
+  }
+}
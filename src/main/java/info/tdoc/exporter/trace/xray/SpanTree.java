@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import io.opencensus.trace.export.SpanData;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/*
+ * A span with the local child spans which are embedded in its segment document.
+ */
+final class SpanTree {
+  final SpanData span;
+  @Nullable private List<SpanTree> children;
+
+  SpanTree(SpanData span) {
+    this.span = span;
+  }
+
+  @Nullable
+  List<SpanTree> getChildren() {
+    return children;
+  }
+
+  void addChild(SpanTree child) {
+    if (children == null) {
+      children = new ArrayList<SpanTree>(4);
+    }
+    children.add(child);
+  }
+
+  void addChildren(List<SpanTree> trees) {
+    if (children == null) {
+      children = trees;
+    } else {
+      children.addAll(trees);
+    }
+  }
+
+  /*
+   * Detaches the children, e.g. to send them as documents of their own.
+   */
+  @Nullable
+  List<SpanTree> removeChildren() {
+    List<SpanTree> removed = children;
+    children = null;
+    return removed;
+  }
+
+  /*
+   * Returns the number of spans in the tree.
+   */
+  int size() {
+    int size = 1;
+    if (children != null) {
+      for (SpanTree child : children) {
+        size += child.size();
+      }
+    }
+    return size;
+  }
+}
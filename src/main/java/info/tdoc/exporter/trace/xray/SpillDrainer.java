@@ -0,0 +1,119 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Replays the spill queue in order on a background thread.
+ *
+ * The oldest chunk is sent again until it succeeds, backing off exponentially while sends fail,
+ * and only then removed from the queue. Chunks failing with an error which will not pass are
+ * dropped.
+ */
+final class SpillDrainer implements Closeable {
+  private static final Logger logger = Logger.getLogger(SpillDrainer.class.getName());
+  static final long POLL_INTERVAL_MILLIS = 1000;
+  static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+  private static final long CLOSE_TIMEOUT_MILLIS = 10 * 1000;
+
+  private final SpillQueue queue;
+  private final BatchDispatcher dispatcher;
+  private final int maxSegmentsPerRequest;
+  private final int maxBytesPerRequest;
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  SpillDrainer(
+      SpillQueue queue,
+      BatchDispatcher dispatcher,
+      int maxSegmentsPerRequest,
+      int maxBytesPerRequest) {
+    this.queue = queue;
+    this.dispatcher = dispatcher;
+    this.maxSegmentsPerRequest = maxSegmentsPerRequest;
+    this.maxBytesPerRequest = maxBytesPerRequest;
+    this.thread = new Thread(this::drain, "XRayExporter-spill");
+    this.thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  private void drain() {
+    long backoffMillis = 0;
+    while (running) {
+      try {
+        if (backoffMillis > 0) {
+          TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(backoffMillis + 1));
+        }
+        if (!replayOnce()) {
+          TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+        }
+        backoffMillis = 0;
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        backoffMillis =
+            Math.min(
+                MAX_BACKOFF_MILLIS,
+                Math.max(RetryPolicy.DEFAULT_BASE_DELAY_MILLIS, backoffMillis * 2));
+        logger.log(Level.FINE, "Failed to replay spilled segments", e);
+      }
+    }
+  }
+
+  /*
+   * Sends the oldest chunk of the queue. Returns false if the queue is empty.
+   */
+  boolean replayOnce() {
+    List<EncodedSegment> chunk = queue.peek(maxSegmentsPerRequest, maxBytesPerRequest);
+    if (chunk.isEmpty()) {
+      return false;
+    }
+    try {
+      dispatcher.replay(chunk);
+    } catch (RuntimeException e) {
+      if (RetryPolicy.isRetryable(e)) {
+        throw e;
+      }
+      logger.log(Level.WARNING, "Dropping spilled segments: count=" + chunk.size(), e);
+    }
+    queue.remove(chunk.size());
+    return true;
+  }
+
+  /*
+   * Stops replaying. The segments left in the queue are replayed after the next start.
+   */
+  @Override
+  public void close() {
+    running = false;
+    thread.interrupt();
+    try {
+      thread.join(CLOSE_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import io.opencensus.trace.SpanId;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.concurrent.GuardedBy;
+
+/*
+ * A FIFO of encoded segments kept in memory-mapped, append-only files, so segments which could
+ * not be sent during an outage survive a restart without growing the heap.
+ *
+ * The queue is a sequence of files of fileSize bytes named spill-<sequence>.log, at most
+ * maxBytes / fileSize of them. Each file starts with a header:
+ *
+ *   int magic, int version, long read offset
+ *
+ * followed by records:
+ *
+ *   int length, 8 bytes span ID, length bytes UTF-8 document
+ *
+ * The length is written last, so a record torn by a crash reads as the zero filled end of the
+ * file. The read offset in the header is advanced as records are removed; a file is deleted when
+ * it has been read completely and the next one is being written.
+ *
+ * Pages are written back by the OS, which is enough to survive a process restart. Unmapping is
+ * left to the garbage collector, since Java 8 has no API for it.
+ */
+final class SpillQueue implements Closeable {
+  private static final Logger logger = Logger.getLogger(SpillQueue.class.getName());
+
+  static final int DEFAULT_FILE_SIZE = 4 * 1024 * 1024;
+  static final int MAGIC = 0x58525350; // "XRSP"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 16;
+  private static final int READ_OFFSET_POSITION = 8;
+  private static final int RECORD_HEADER_SIZE = 4 + SpanId.SIZE;
+  private static final Pattern FILE_NAME = Pattern.compile("spill-(\\d{19})\\.log");
+
+  private final Path directory;
+  private final int fileSize;
+  private final int maxFiles;
+
+  @GuardedBy("this")
+  private final ArrayDeque<LogFile> files = new ArrayDeque<LogFile>();
+
+  @GuardedBy("this")
+  private long nextSequence;
+
+  @GuardedBy("this")
+  private long size;
+
+  SpillQueue(Path directory, long maxBytes) throws IOException {
+    this(directory, maxBytes, DEFAULT_FILE_SIZE);
+  }
+
+  SpillQueue(Path directory, long maxBytes, int fileSize) throws IOException {
+    checkArgument(fileSize > HEADER_SIZE + RECORD_HEADER_SIZE, "fileSize is too small.");
+    checkArgument(maxBytes >= fileSize, "maxBytes must hold at least one file.");
+    this.directory = directory;
+    this.fileSize = fileSize;
+    this.maxFiles = (int) Math.min(Integer.MAX_VALUE, maxBytes / fileSize);
+    Files.createDirectories(directory);
+    recover();
+  }
+
+  /*
+   * Opens the files left by a previous process, oldest first.
+   */
+  private synchronized void recover() throws IOException {
+    List<Long> sequences = new ArrayList<Long>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "spill-*.log")) {
+      for (Path path : stream) {
+        Matcher m = FILE_NAME.matcher(path.getFileName().toString());
+        if (m.matches()) {
+          sequences.add(Long.parseLong(m.group(1)));
+        }
+      }
+    }
+    Collections.sort(sequences);
+    for (long sequence : sequences) {
+      nextSequence = sequence + 1;
+      LogFile file;
+      try {
+        file = LogFile.open(path(sequence));
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Skipping unreadable spill file: " + path(sequence), e);
+        continue;
+      }
+      if (file == null) {
+        logger.log(Level.WARNING, "Skipping invalid spill file: " + path(sequence));
+        continue;
+      }
+      size += file.count();
+      files.addLast(file);
+    }
+    while (files.size() > 1 && files.peekFirst().isExhausted()) {
+      delete(files.removeFirst());
+    }
+  }
+
+  private Path path(long sequence) {
+    return directory.resolve(String.format("spill-%019d.log", sequence));
+  }
+
+  /*
+   * Appends the segment. Returns false if it does not fit into the size limit.
+   */
+  synchronized boolean append(EncodedSegment segment) {
+    byte[] document = segment.document.getBytes(UTF_8);
+    int length = RECORD_HEADER_SIZE + document.length;
+    if (document.length == 0) {
+      return false;
+    }
+    if (length > fileSize - HEADER_SIZE) {
+      logger.log(Level.WARNING, "Segment document too large to spill: size=" + document.length);
+      return false;
+    }
+    LogFile tail = files.peekLast();
+    if (tail == null || tail.writeOffset + length > fileSize) {
+      if (tail != null && tail.isExhausted()) {
+        delete(files.removeLast());
+      }
+      if (files.size() >= maxFiles) {
+        return false;
+      }
+      try {
+        tail = LogFile.create(path(nextSequence), fileSize);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to create spill file", e);
+        return false;
+      }
+      nextSequence++;
+      files.addLast(tail);
+    }
+    tail.write(segment.spanId, document);
+    size++;
+    return true;
+  }
+
+  /*
+   * Returns up to maxSegments of the oldest segments, and fewer if their documents exceed maxBytes
+   * in total, without removing them.
+   */
+  synchronized List<EncodedSegment> peek(int maxSegments, int maxBytes) {
+    List<EncodedSegment> segments = new ArrayList<EncodedSegment>();
+    LogFile head = head();
+    if (head == null) {
+      return segments;
+    }
+    int offset = head.readOffset;
+    int bytes = 0;
+    byte[] id = new byte[SpanId.SIZE];
+    while (segments.size() < maxSegments && offset < head.writeOffset) {
+      int length = head.buffer.getInt(offset);
+      if (!segments.isEmpty() && bytes + length > maxBytes) {
+        break;
+      }
+      ByteBuffer record = head.buffer.duplicate();
+      record.position(offset + 4);
+      record.get(id);
+      byte[] document = new byte[length];
+      record.get(document);
+      segments.add(new EncodedSegment(SpanId.fromBytes(id), new String(document, UTF_8)));
+      bytes += length;
+      offset += RECORD_HEADER_SIZE + length;
+    }
+    return segments;
+  }
+
+  /*
+   * Removes the oldest count segments, which have been returned by peek().
+   */
+  synchronized void remove(int count) {
+    for (int i = 0; i < count; i++) {
+      LogFile head = head();
+      if (head == null) {
+        return;
+      }
+      head.readOffset += RECORD_HEADER_SIZE + head.buffer.getInt(head.readOffset);
+      size--;
+      head.buffer.putLong(READ_OFFSET_POSITION, head.readOffset);
+    }
+  }
+
+  /*
+   * Returns the file holding the oldest segment, deleting files which have been read.
+   */
+  @GuardedBy("this")
+  private LogFile head() {
+    while (!files.isEmpty()) {
+      LogFile head = files.peekFirst();
+      if (!head.isExhausted()) {
+        return head;
+      }
+      if (files.size() == 1) {
+        return null;
+      }
+      delete(files.removeFirst());
+    }
+    return null;
+  }
+
+  private static void delete(LogFile file) {
+    try {
+      Files.deleteIfExists(file.path);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to delete spill file: " + file.path, e);
+    }
+  }
+
+  synchronized long size() {
+    return size;
+  }
+
+  synchronized boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public synchronized void close() {
+    for (LogFile file : files) {
+      file.buffer.force();
+    }
+  }
+
+  private static final class LogFile {
+    final Path path;
+    final MappedByteBuffer buffer;
+    int readOffset;
+    int writeOffset;
+
+    private LogFile(Path path, MappedByteBuffer buffer) {
+      this.path = path;
+      this.buffer = buffer;
+    }
+
+    static LogFile create(Path path, int size) throws IOException {
+      LogFile file = new LogFile(path, map(path, size, StandardOpenOption.CREATE_NEW));
+      file.buffer.putInt(0, MAGIC).putInt(4, VERSION).putLong(READ_OFFSET_POSITION, HEADER_SIZE);
+      file.readOffset = HEADER_SIZE;
+      file.writeOffset = HEADER_SIZE;
+      return file;
+    }
+
+    /*
+     * Maps an existing file and finds its end. Returns null if it is not a spill file.
+     */
+    static LogFile open(Path path) throws IOException {
+      long size = Files.size(path);
+      if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+        return null;
+      }
+      LogFile file = new LogFile(path, map(path, (int) size));
+      MappedByteBuffer buffer = file.buffer;
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+        return null;
+      }
+      int offset = HEADER_SIZE;
+      while (offset + RECORD_HEADER_SIZE <= size) {
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + RECORD_HEADER_SIZE + (long) length > size) {
+          break;
+        }
+        offset += RECORD_HEADER_SIZE + length;
+      }
+      file.writeOffset = offset;
+      long readOffset = buffer.getLong(READ_OFFSET_POSITION);
+      file.readOffset =
+          readOffset < HEADER_SIZE || readOffset > offset ? HEADER_SIZE : (int) readOffset;
+      return file;
+    }
+
+    private static MappedByteBuffer map(Path path, int size, StandardOpenOption... options)
+        throws IOException {
+      List<StandardOpenOption> all = new ArrayList<StandardOpenOption>();
+      Collections.addAll(all, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      Collections.addAll(all, options);
+      try (FileChannel channel =
+          FileChannel.open(path, all.toArray(new StandardOpenOption[all.size()]))) {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+
+    void write(SpanId spanId, byte[] document) {
+      ByteBuffer record = buffer.duplicate();
+      record.position(writeOffset + 4);
+      record.put(spanId.getBytes()).put(document);
+      buffer.putInt(writeOffset, document.length);
+      writeOffset += RECORD_HEADER_SIZE + document.length;
+    }
+
+    boolean isExhausted() {
+      return readOffset >= writeOffset;
+    }
+
+    int count() {
+      int count = 0;
+      for (int offset = readOffset; offset < writeOffset; count++) {
+        offset += RECORD_HEADER_SIZE + buffer.getInt(offset);
+      }
+      return count;
+    }
+  }
+}
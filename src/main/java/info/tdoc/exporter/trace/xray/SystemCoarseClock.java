@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A CoarseClock refreshed once per tick by a daemon thread. The ticker starts on first use and is
+ * shared by every exporter in the process; a minute boundary is seen at most one tick late.
+ */
+final class SystemCoarseClock implements CoarseClock {
+  static final long TICK_MILLIS = 1000;
+
+  static final SystemCoarseClock INSTANCE = new SystemCoarseClock();
+
+  private volatile long minuteEpochSecond = truncateToMinute(System.currentTimeMillis());
+
+  private SystemCoarseClock() {
+    ScheduledExecutorService ticker =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("XRayExporter-clock").build());
+    ticker.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public long minuteEpochSecond() {
+    return minuteEpochSecond;
+  }
+
+  private void tick() {
+    long now = truncateToMinute(System.currentTimeMillis());
+    if (now != minuteEpochSecond) {
+      minuteEpochSecond = now;
+    }
+  }
+
+  @VisibleForTesting
+  static long truncateToMinute(long epochMillis) {
+    long epochSecond = Math.floorDiv(epochMillis, 1000L);
+    return epochSecond - Math.floorMod(epochSecond, 60L);
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.primitives.Ints;
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.export.SpanData;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Decides per trace, rather than per span, which spans are sent.
+ *
+ * Spans are buffered per trace ID for the sampling window. When the window of a trace has passed,
+ * it is kept if any of its spans failed (which X-Ray shows as an error, fault or throttle), has an
+ * HTTP status code of 400 or above, or took longer than the 99th percentile of the traces decided
+ * during the previous minute. The other traces are kept with the sampling rate, based on the trace
+ * ID like the OpenCensus probability sampler, so hosts agree about a trace which spans several of
+ * them. Spans arriving after their trace was decided follow the decision, which is remembered for
+ * a bounded number of traces.
+ *
+ * Traces are kept in the order they were first buffered, which is also their expiry order, so
+ * expiring and evicting only ever look at the head. When more than maxSpans spans are buffered,
+ * the oldest traces are decided early.
+ *
+ * Not thread-safe; the export worker is the only caller.
+ */
+final class TailSampler {
+  private static final long OUTLIER_PERIOD_NANOS = TimeUnit.MINUTES.toNanos(1);
+  private static final double OUTLIER_PERCENTILE = 99;
+  // Fewer traces than this in a period give no outlier threshold.
+  private static final int OUTLIER_MIN_TRACES = 100;
+
+  private final long windowNanos;
+  private final int maxSpans;
+  private final long idUpperBound;
+  private final Ticker ticker;
+  private final LinkedHashMap<TraceId, Trace> traces = new LinkedHashMap<TraceId, Trace>();
+  private final Decisions decisions;
+  private int bufferedSpans;
+  private long discardedSpans;
+
+  // Trace durations in microseconds, for the latency outlier threshold.
+  private LatencyHistogram durations = new LatencyHistogram();
+  private long durationsStartNanos;
+  private long outlierMicros = Long.MAX_VALUE;
+
+  TailSampler(long window, TimeUnit unit, int maxSpans, double sampleRate) {
+    this(window, unit, maxSpans, sampleRate, Ticker.systemTicker());
+  }
+
+  TailSampler(long window, TimeUnit unit, int maxSpans, double sampleRate, Ticker ticker) {
+    checkArgument(window > 0, "window must be positive.");
+    checkArgument(maxSpans > 0, "maxSpans must be positive.");
+    checkArgument(sampleRate >= 0 && sampleRate <= 1, "sampleRate must be in [0, 1].");
+    this.windowNanos = unit.toNanos(window);
+    this.maxSpans = maxSpans;
+    // Same as io.opencensus.trace.samplers.ProbabilitySampler.
+    if (sampleRate == 0) {
+      this.idUpperBound = Long.MIN_VALUE;
+    } else if (sampleRate == 1) {
+      this.idUpperBound = Long.MAX_VALUE;
+    } else {
+      this.idUpperBound = (long) (sampleRate * Long.MAX_VALUE);
+    }
+    this.ticker = ticker;
+    this.durationsStartNanos = ticker.read();
+    this.decisions = new Decisions(maxSpans);
+  }
+
+  /*
+   * Adds a span, appending the spans of the traces which are kept to out.
+   */
+  void add(SpanData span, List<SpanData> out) {
+    TraceId traceId = span.getContext().getTraceId();
+    Trace trace = traces.get(traceId);
+    if (trace == null) {
+      Boolean decision = decisions.get(traceId);
+      if (decision != null) {
+        if (decision || isInteresting(span)) {
+          out.add(span);
+        } else {
+          discardedSpans++;
+        }
+        return;
+      }
+      trace = new Trace(ticker.read());
+      traces.put(traceId, trace);
+    }
+    trace.add(span);
+    bufferedSpans++;
+    while (bufferedSpans > maxSpans && !traces.isEmpty()) {
+      decideOldest(out);
+    }
+  }
+
+  /*
+   * Decides the traces whose sampling window has passed.
+   */
+  void expire(List<SpanData> out) {
+    long now = ticker.read();
+    if (now - durationsStartNanos >= OUTLIER_PERIOD_NANOS) {
+      outlierMicros =
+          durations.getCount() >= OUTLIER_MIN_TRACES
+              ? durations.percentile(OUTLIER_PERCENTILE)
+              : Long.MAX_VALUE;
+      durations = new LatencyHistogram();
+      durationsStartNanos = now;
+    }
+    while (!traces.isEmpty()) {
+      Trace oldest = traces.values().iterator().next();
+      if (now - oldest.createdNanos < windowNanos) {
+        return;
+      }
+      decideOldest(out);
+    }
+  }
+
+  /*
+   * Decides every buffered trace, e.g. at shutdown.
+   */
+  void flushAll(List<SpanData> out) {
+    while (!traces.isEmpty()) {
+      decideOldest(out);
+    }
+  }
+
+  int getBufferedSpanCount() {
+    return bufferedSpans;
+  }
+
+  long getDiscardedSpanCount() {
+    return discardedSpans;
+  }
+
+  @VisibleForTesting
+  long getOutlierMicros() {
+    return outlierMicros;
+  }
+
+  private void decideOldest(List<SpanData> out) {
+    Iterator<Map.Entry<TraceId, Trace>> it = traces.entrySet().iterator();
+    Map.Entry<TraceId, Trace> entry = it.next();
+    it.remove();
+    TraceId traceId = entry.getKey();
+    Trace trace = entry.getValue();
+    bufferedSpans -= trace.spans.size();
+    durations.record(trace.durationMicros);
+    boolean keep =
+        trace.interesting
+            || trace.durationMicros > outlierMicros
+            || Math.abs(traceId.getLowerLong()) < idUpperBound;
+    decisions.put(traceId, keep);
+    if (keep) {
+      out.addAll(trace.spans);
+    } else {
+      discardedSpans += trace.spans.size();
+    }
+  }
+
+  @VisibleForTesting
+  static boolean isInteresting(SpanData span) {
+    if (span.getStatus() != null && !span.getStatus().isOk()) {
+      return true;
+    }
+    AttributeValue statusCode =
+        span.getAttributes().getAttributeMap().get(TraceSegment.HTTP_STATUS_CODE);
+    if (statusCode != null) {
+      Integer code = Ints.tryParse(TraceSegment.attributeValueToString(statusCode));
+      return code != null && code >= 400;
+    }
+    return false;
+  }
+
+  private static long durationMicros(SpanData span) {
+    Timestamp end = span.getEndTimestamp();
+    if (end == null) {
+      return 0;
+    }
+    Timestamp start = span.getStartTimestamp();
+    long micros =
+        TimeUnit.SECONDS.toMicros(end.getSeconds() - start.getSeconds())
+            + TimeUnit.NANOSECONDS.toMicros(end.getNanos() - start.getNanos());
+    return Math.max(micros, 0);
+  }
+
+  /*
+   * The decisions of recent traces, evicting the oldest beyond maxSize.
+   */
+  private static final class Decisions extends LinkedHashMap<TraceId, Boolean> {
+    private static final long serialVersionUID = 1L;
+    private final int maxSize;
+
+    Decisions(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<TraceId, Boolean> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+  private static final class Trace {
+    final long createdNanos;
+    final List<SpanData> spans = new ArrayList<SpanData>(4);
+    boolean interesting;
+    // The longest span, which is the root span once it arrived.
+    long durationMicros;
+
+    Trace(long createdNanos) {
+      this.createdNanos = createdNanos;
+    }
+
+    void add(SpanData span) {
+      spans.add(span);
+      interesting |= isInteresting(span);
+      durationMicros = Math.max(durationMicros, durationMicros(span));
+    }
+  }
+}
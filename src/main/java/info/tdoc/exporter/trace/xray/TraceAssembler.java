@@ -0,0 +1,193 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Ticker;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.export.SpanData;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Folds local child spans into the segment document of their parent.
+ *
+ * Spans are buffered per trace ID. When a segment's root span arrives (a span without a parent or
+ * with a remote parent), it is emitted at once with every buffered descendant embedded as a
+ * subsegment. Local children usually end, and so arrive, before their parent; the ones which
+ * arrive later, or whose root never arrives here, wait for the completion window and are then
+ * emitted as standalone subsegment documents with their own descendants embedded. When more than
+ * maxSpans spans are buffered, the oldest traces are flushed the same way.
+ *
+ * Not thread-safe; the export worker is the only caller.
+ */
+final class TraceAssembler {
+  private final long windowNanos;
+  private final int maxSpans;
+  private final Ticker ticker;
+  // Traces in the order they were first buffered, which is also their expiry order.
+  private final LinkedHashMap<TraceId, Trace> traces = new LinkedHashMap<TraceId, Trace>();
+  private int bufferedSpans;
+
+  TraceAssembler(long window, TimeUnit unit, int maxSpans) {
+    this(window, unit, maxSpans, Ticker.systemTicker());
+  }
+
+  TraceAssembler(long window, TimeUnit unit, int maxSpans, Ticker ticker) {
+    checkArgument(window > 0, "window must be positive.");
+    checkArgument(maxSpans > 0, "maxSpans must be positive.");
+    this.windowNanos = unit.toNanos(window);
+    this.maxSpans = maxSpans;
+    this.ticker = ticker;
+  }
+
+  /*
+   * Adds a span, appending the trees which are ready to be sent to out.
+   */
+  void add(SpanData span, List<SpanTree> out) {
+    TraceId traceId = span.getContext().getTraceId();
+    SpanTree node = new SpanTree(span);
+    Trace trace = traces.get(traceId);
+    if (trace != null) {
+      List<SpanTree> waiting = trace.waiting.remove(span.getContext().getSpanId());
+      if (waiting != null) {
+        node.addChildren(waiting);
+      }
+    }
+    if (!isLocalChild(span)) {
+      if (trace != null) {
+        bufferedSpans -= trace.remove(node) - 1;
+        if (trace.isEmpty()) {
+          traces.remove(traceId);
+        }
+      }
+      out.add(node);
+      return;
+    }
+
+    if (trace == null) {
+      trace = new Trace(ticker.read());
+      traces.put(traceId, trace);
+    }
+    trace.put(node);
+    bufferedSpans++;
+    while (bufferedSpans > maxSpans && !traces.isEmpty()) {
+      flushOldest(out);
+    }
+  }
+
+  /*
+   * Flushes the traces whose completion window has passed.
+   */
+  void expire(List<SpanTree> out) {
+    long now = ticker.read();
+    while (!traces.isEmpty()) {
+      Trace oldest = traces.values().iterator().next();
+      if (now - oldest.createdNanos < windowNanos) {
+        return;
+      }
+      flushOldest(out);
+    }
+  }
+
+  /*
+   * Flushes every buffered span, e.g. at shutdown.
+   */
+  void flushAll(List<SpanTree> out) {
+    while (!traces.isEmpty()) {
+      flushOldest(out);
+    }
+  }
+
+  int getBufferedSpanCount() {
+    return bufferedSpans;
+  }
+
+  private void flushOldest(List<SpanTree> out) {
+    Iterator<Trace> it = traces.values().iterator();
+    Trace trace = it.next();
+    it.remove();
+    for (List<SpanTree> subtrees : trace.waiting.values()) {
+      out.addAll(subtrees);
+    }
+    bufferedSpans -= trace.nodes.size();
+  }
+
+  private static boolean isLocalChild(SpanData span) {
+    SpanId parentSpanId = span.getParentSpanId();
+    return Boolean.FALSE.equals(span.getHasRemoteParent())
+        && parentSpanId != null
+        && parentSpanId.isValid();
+  }
+
+  /*
+   * The buffered spans of a trace. Every buffered span is in nodes, so that later children can
+   * find it; the top of each buffered subtree is also in waiting under the ID of its missing
+   * parent.
+   */
+  private static final class Trace {
+    final long createdNanos;
+    final Map<SpanId, SpanTree> nodes = new HashMap<SpanId, SpanTree>();
+    final Map<SpanId, List<SpanTree>> waiting = new LinkedHashMap<SpanId, List<SpanTree>>();
+
+    Trace(long createdNanos) {
+      this.createdNanos = createdNanos;
+    }
+
+    void put(SpanTree node) {
+      nodes.put(node.span.getContext().getSpanId(), node);
+      SpanId parentSpanId = node.span.getParentSpanId();
+      SpanTree parent = nodes.get(parentSpanId);
+      if (parent != null) {
+        parent.addChild(node);
+        return;
+      }
+      List<SpanTree> siblings = waiting.get(parentSpanId);
+      if (siblings == null) {
+        siblings = new ArrayList<SpanTree>(4);
+        waiting.put(parentSpanId, siblings);
+      }
+      siblings.add(node);
+    }
+
+    /*
+     * Forgets the spans of a tree which is emitted and returns their number.
+     */
+    int remove(SpanTree tree) {
+      nodes.remove(tree.span.getContext().getSpanId());
+      int removed = 1;
+      List<SpanTree> children = tree.getChildren();
+      if (children != null) {
+        for (SpanTree child : children) {
+          removed += remove(child);
+        }
+      }
+      return removed;
+    }
+
+    boolean isEmpty() {
+      return nodes.isEmpty();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import io.opencensus.trace.TraceId;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/*
+ * A bounded cache from OpenCensus trace IDs to their X-Ray form.
+ *
+ * The X-Ray trace ID of a fresh OpenCensus trace ID takes its epoch from the current minute, so
+ * converting every span separately both repeats the work and splits a trace whose spans end in
+ * different minutes. With this cache all spans of a trace get the ID computed for the first one.
+ *
+ * The cache is direct-mapped and lock-free: each trace ID hashes to exactly one slot, and a new
+ * trace that hashes to an occupied slot evicts the previous one. Entries are installed with
+ * compare-and-set, so threads racing on the same trace agree on one value. The size should be well
+ * above the number of traces which are concurrently exporting spans.
+ */
+final class TraceIdCache {
+  static final int DEFAULT_SIZE = 8192;
+
+  private final AtomicReferenceArray<Entry> table;
+  private final int mask;
+  private final Function<TraceId, String> converter;
+
+  TraceIdCache(int size) {
+    this(size, CoarseClock.system());
+  }
+
+  TraceIdCache(int size, CoarseClock clock) {
+    this(size, traceId -> TraceSegment.convertToAmazonTraceID(traceId, clock));
+  }
+
+  TraceIdCache(int size, Function<TraceId, String> converter) {
+    checkArgument(size > 0, "size must be positive.");
+    int capacity = Integer.highestOneBit(size);
+    if (capacity < size) {
+      capacity <<= 1;
+    }
+    this.table = new AtomicReferenceArray<Entry>(capacity);
+    this.mask = capacity - 1;
+    this.converter = converter;
+  }
+
+  String get(TraceId traceId) {
+    int h = traceId.hashCode();
+    int index = (h ^ (h >>> 16)) & mask;
+    Entry e = table.get(index);
+    if (e != null && e.traceId.equals(traceId)) {
+      return e.xrayTraceId;
+    }
+    Entry created = new Entry(traceId, converter.apply(traceId));
+    while (!table.compareAndSet(index, e, created)) {
+      e = table.get(index);
+      if (e != null && e.traceId.equals(traceId)) {
+        return e.xrayTraceId;
+      }
+    }
+    return created.xrayTraceId;
+  }
+
+  int size() {
+    return table.length();
+  }
+
+  private static final class Entry {
+    final TraceId traceId;
+    final String xrayTraceId;
+
+    Entry(TraceId traceId, String xrayTraceId) {
+      this.traceId = traceId;
+      this.xrayTraceId = xrayTraceId;
+    }
+  }
+}
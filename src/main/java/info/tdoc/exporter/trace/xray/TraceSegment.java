@@ -18,8 +18,10 @@ package info.tdoc.exporter.trace.xray;
 
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import info.tdoc.exporter.trace.xray.AttributeMappers.Section;
 import io.opencensus.common.Function;
 import io.opencensus.common.Functions;
 import io.opencensus.common.Timestamp;
@@ -29,19 +31,12 @@ import io.opencensus.trace.SpanId;
 import io.opencensus.trace.Status;
 import io.opencensus.trace.TraceId;
 import io.opencensus.trace.export.SpanData;
-import java.nio.ByteBuffer;
-import java.security.SecureRandom;
-import java.time.Clock;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /*
  *
@@ -61,13 +56,10 @@ public class TraceSegment {
   public static final String HTTP_URL = "http.url";
   public static final String HTTP_STATUS_CODE = "http.status_code";
 
-  private static final SecureRandom rnd = new SecureRandom();
   private static final Integer MaxAge = 60 * 60 * 24 * 28; // 28Day
   private static final Integer MaxSkew = 60 * 5; // 5m
-  private static final String VersionNo = "1";
-  private static final Pattern reInvalidSpanCharacters = Pattern.compile("");
-  private static final Integer maxSegmentNameLength = 200;
-  private static final String defaultSegmentName = "span";
+  private static final SegmentNameSanitizer segmentNames =
+      new SegmentNameSanitizer(SegmentNameSanitizer.DEFAULT_CACHE_SIZE);
 
   @JsonProperty("name")
   public String name;
@@ -137,6 +129,14 @@ public class TraceSegment {
   @JsonInclude(JsonInclude.Include.NON_NULL)
   public SQL sql;
 
+  @JsonProperty("aws")
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Map<String, Object> aws;
+
+  @JsonProperty("metadata")
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Map<String, Map<String, Object>> metadata;
+
   @JsonProperty("origin")
   @JsonInclude(JsonInclude.Include.NON_NULL)
   public String origin;
@@ -180,6 +180,30 @@ public class TraceSegment {
       @JsonProperty("user_agent")
       @JsonInclude(JsonInclude.Include.NON_NULL)
       public String user_agent;
+
+      // fields mapped by AttributeMappers other than the ones above.
+      private Map<String, Object> other;
+
+      @JsonAnyGetter
+      public Map<String, Object> getOther() {
+        return other;
+      }
+
+      void put(String field, String value) {
+        switch (field) {
+          case "method":
+            this.method = value;
+            break;
+          case "url":
+            this.url = value;
+            break;
+          case "user_agent":
+            this.user_agent = value;
+            break;
+          default:
+            this.other = putOther(this.other, field, value);
+        }
+      }
     }
 
     @JsonProperty("response")
@@ -190,6 +214,22 @@ public class TraceSegment {
       @JsonProperty("status")
       @JsonInclude(JsonInclude.Include.NON_NULL)
       public String status;
+
+      // fields mapped by AttributeMappers other than the one above.
+      private Map<String, Object> other;
+
+      @JsonAnyGetter
+      public Map<String, Object> getOther() {
+        return other;
+      }
+
+      void put(String field, String value) {
+        if (field.equals("status")) {
+          this.status = value;
+        } else {
+          this.other = putOther(this.other, field, value);
+        }
+      }
     }
   }
 
@@ -197,6 +237,30 @@ public class TraceSegment {
     @JsonProperty("sanitized_query")
     @JsonInclude(JsonInclude.Include.NON_NULL)
     public String sanitizedQuery;
+
+    // fields mapped by AttributeMappers other than the one above.
+    private Map<String, Object> other;
+
+    @JsonAnyGetter
+    public Map<String, Object> getOther() {
+      return other;
+    }
+
+    void put(String field, String value) {
+      if (field.equals("sanitized_query")) {
+        this.sanitizedQuery = value;
+      } else {
+        this.other = putOther(this.other, field, value);
+      }
+    }
+  }
+
+  private static Map<String, Object> putOther(Map<String, Object> other, String key, Object v) {
+    if (other == null) {
+      other = new LinkedHashMap<String, Object>();
+    }
+    other.put(key, v);
+    return other;
   }
 
   /*
@@ -209,6 +273,15 @@ public class TraceSegment {
   }
 
   public TraceSegment(String name, SpanData sd) {
+    this(name, sd, IdGenerator.threadLocalRandom());
+  }
+
+  public TraceSegment(String name, SpanData sd, IdGenerator idGenerator) {
+    this(name, sd, idGenerator, AttributeMappers.defaults());
+  }
+
+  public TraceSegment(
+      String name, SpanData sd, IdGenerator idGenerator, AttributeMappers attributeMappers) {
     SpanContext sc = sd.getContext();
     if (name == null || name.equals("")) {
       this.name = fixSegmentName(sd.getName());
@@ -245,70 +318,64 @@ public class TraceSegment {
       this.endTime = toEpochSeconds(endTime);
     }
 
-    makeCause(sd.getStatus());
-    makeSQL(sd.getAttributes());
-    makeHTTP(sd.getAttributes(), sd.getStatus());
-    this.annotations = this.makeAnnotations(sd.getName(), sd.getAttributes());
+    makeCause(sd.getStatus(), idGenerator);
+
+    // Attributes, in a single pass.
+    Map<String, AttributeValue> attributes = sd.getAttributes().getAttributeMap();
+    SegmentAttributes captured = new SegmentAttributes(attributeMappers);
+    this.annotations = new HashMap<String, Object>(attributes.size() * 4 / 3 + 2);
+    this.annotations.put("name", sd.getName()); // allways put span's name to attribute.
+    for (Map.Entry<String, AttributeValue> label : attributes.entrySet()) {
+      if (captured.accept(label.getKey(), label.getValue())) {
+        this.annotations.put(label.getKey(), attributeValueToObject(label.getValue()));
+      }
+    }
+    if (captured.has(Section.SQL)) {
+      makeSQL(captured, idGenerator);
+    }
+    if (captured.has(Section.HTTP_REQUEST) || captured.has(Section.HTTP_RESPONSE)) {
+      makeHTTP(captured, sd.getStatus());
+    }
+    makeAWSAndMetadata(captured);
   }
 
   /*
    * convertToAmazonSpanID generates an Amazon spanID from a SpanID - a 64-bit identifier
    * for the segment, unique among segments in the same trace, in 16 hexadecimal digits.
    */
-  private static String convertToAmazonSpanID(SpanId spanId) {
-    byte[] v = spanId.getBytes();
-    if (v.equals("")) {
-      return "";
-    }
-    StringBuilder sb = new StringBuilder();
-    for (byte b : Arrays.copyOfRange(v, 0, 8)) {
-      sb.append(String.format("%02x", b));
-    }
-    return sb.toString();
+  static String convertToAmazonSpanID(SpanId spanId) {
+    return IdCodec.spanIdToString(spanId.getBytes());
   }
 
-  /**
-   * return Trace ID time part.
+  /*
+   * converts a trace ID to the Amazon format.
    *
-   * <p>To get same Trace ID among servers, round down current time to minutes.
    */
-  private static long getAmazonTraceIDTime() {
-    return Instant.now(Clock.systemUTC()).truncatedTo(ChronoUnit.MINUTES).getEpochSecond();
+  static String convertToAmazonTraceID(TraceId traceId) {
+    return convertToAmazonTraceID(traceId, CoarseClock.system());
+  }
+
+  static String convertToAmazonTraceID(TraceId traceId, CoarseClock clock) {
+    byte[] v = traceId.getBytes();
+    return IdCodec.traceIdToString(v, amazonTraceIDEpoch(v, clock.minuteEpochSecond()));
   }
 
   /*
-   * converts a trace ID to the Amazon format.
-   *
+   * returns the epoch part of the Amazon trace ID for the bytes of an OpenCensus trace ID.
+   * The time part of the OpenCensus trace ID is used if it is plausible, otherwise the current
+   * time rounded down to minutes, so that servers agree on the same Trace ID.
    */
-  private static String convertToAmazonTraceID(TraceId traceId) {
-    long epochNow = getAmazonTraceIDTime();
-    long epoch = ByteBuffer.wrap(Arrays.copyOfRange(traceId.getBytes(), 0, 4)).getInt();
+  static long amazonTraceIDEpoch(byte[] traceId, long epochNow) {
+    long epoch = IdCodec.epochOf(traceId);
 
     long delta = epochNow - epoch;
     if (delta > MaxAge || delta < -MaxSkew) {
       epoch = epochNow;
     }
-
-    StringBuilder sb = new StringBuilder();
-
-    sb.append(VersionNo);
-    sb.append("-");
-
-    byte[] epochByte = ByteBuffer.allocate(8).putLong(epoch).array();
-    for (byte b : Arrays.copyOfRange(epochByte, 4, 8)) {
-      sb.append(String.format("%02x", b));
-    }
-
-    sb.append("-");
-    // overwrite with identifier
-    for (byte b : Arrays.copyOfRange(traceId.getBytes(), 4, 16)) {
-      sb.append(String.format("%02x", b));
-    }
-
-    return sb.toString();
+    return epoch;
   }
 
-  private void makeCause(Status status) {
+  private void makeCause(Status status, IdGenerator idGenerator) {
     if (status == null || status.isOk()) {
       return;
     }
@@ -316,8 +383,7 @@ public class TraceSegment {
     String desc = status.getDescription();
     if (desc != null && desc.equals("") != true) {
       Cause.Exceptions exp = new Cause.Exceptions();
-      exp.id =
-          String.format("%04x", rnd.nextInt(0x10000)) + String.format("%04x", rnd.nextInt(0x10000));
+      exp.id = IdCodec.toHex(randomExceptionId(idGenerator), IdCodec.EXCEPTION_ID_LENGTH);
       exp.message = desc;
       this.cause = new Cause(exp);
     }
@@ -330,95 +396,72 @@ public class TraceSegment {
     }
   }
 
-  private void makeSQL(SpanData.Attributes attrib) {
-    SQL sqlinfo = null;
-    for (Map.Entry<String, AttributeValue> label : attrib.getAttributeMap().entrySet()) {
-      String key = label.getKey();
-      if (key.equals(ATTRIB_SQL_EXEC)) {
-        sqlinfo = new SQL();
-        sqlinfo.sanitizedQuery = attributeValueToString(label.getValue());
+  private void makeSQL(SegmentAttributes captured, IdGenerator idGenerator) {
+    SQL sqlinfo = new SQL();
+    for (int i = 0; i < captured.size(); i++) {
+      if (captured.section(i) == Section.SQL) {
+        sqlinfo.put(captured.field(i), attributeValueToString(captured.value(i)));
       }
     }
-    if (sqlinfo != null) {
-      this.subsegments = new ArrayList<TraceSegment>();
-      TraceSegment s = new TraceSegment(ATTRIB_SQL_EXEC, this.id);
-      s.id = generateId();
-      s.nameSpace = "remote";
-      s.startTime = this.startTime;
-      s.endTime = this.endTime;
-      s.traceId = this.traceId;
-      s.sql = sqlinfo;
-      this.subsegments.add(s);
+    this.subsegments = new ArrayList<TraceSegment>();
+    TraceSegment s = new TraceSegment(ATTRIB_SQL_EXEC, this.id);
+    s.id = IdCodec.toHex(randomSegmentId(idGenerator), IdCodec.SPAN_ID_LENGTH);
+    s.nameSpace = "remote";
+    s.startTime = this.startTime;
+    s.endTime = this.endTime;
+    s.traceId = this.traceId;
+    s.sql = sqlinfo;
+    this.subsegments.add(s);
+  }
+
+  private void makeHTTP(SegmentAttributes captured, Status status) {
+    HTTP httpinfo = new HTTP();
+    httpinfo.request = new HTTP.Request();
+    httpinfo.response = new HTTP.Response();
+    for (int i = 0; i < captured.size(); i++) {
+      if (captured.section(i) == Section.HTTP_REQUEST) {
+        httpinfo.request.put(captured.field(i), attributeValueToString(captured.value(i)));
+      } else if (captured.section(i) == Section.HTTP_RESPONSE) {
+        httpinfo.response.put(captured.field(i), attributeValueToString(captured.value(i)));
+      }
     }
+
+    if ((httpinfo.response.status == null || httpinfo.response.status.equals(""))
+        && status != null) {
+      // This is a fallback.
+      httpinfo.response.status = convertToHTTPStatusCode(status);
+    }
+    this.http = httpinfo;
   }
 
-  private void makeHTTP(SpanData.Attributes attrib, Status status) {
-    HTTP httpinfo = null;
-    for (Map.Entry<String, AttributeValue> label : attrib.getAttributeMap().entrySet()) {
-      switch (label.getKey()) {
-        case HTTP_METHOD:
-          if (httpinfo == null) {
-            httpinfo = new HTTP();
-            httpinfo.request = new HTTP.Request();
-            httpinfo.response = new HTTP.Response();
-          }
-          http.request.method = attributeValueToString(label.getValue());
+  private void makeAWSAndMetadata(SegmentAttributes captured) {
+    for (int i = 0; i < captured.size(); i++) {
+      Object value;
+      switch (captured.section(i)) {
+        case AWS:
+          value = attributeValueToObject(captured.value(i));
+          this.aws = putOther(this.aws, captured.field(i), value);
           break;
-        case HTTP_URL:
-          if (httpinfo == null) {
-            httpinfo = new HTTP();
-            httpinfo.request = new HTTP.Request();
-            httpinfo.response = new HTTP.Response();
+        case METADATA:
+          if (this.metadata == null) {
+            this.metadata = new LinkedHashMap<String, Map<String, Object>>();
           }
-          http.request.url = attributeValueToString(label.getValue());
+          String namespace = captured.namespace(i);
+          value = attributeValueToObject(captured.value(i));
+          this.metadata.put(
+              namespace, putOther(this.metadata.get(namespace), captured.field(i), value));
           break;
-        case HTTP_USER_AGENT:
-          if (httpinfo == null) {
-            httpinfo = new HTTP();
-            httpinfo.request = new HTTP.Request();
-            httpinfo.response = new HTTP.Response();
-          }
-          http.request.user_agent = attributeValueToString(label.getValue());
+        default:
           break;
-        case HTTP_STATUS_CODE:
-          if (httpinfo == null) {
-            httpinfo = new HTTP();
-            httpinfo.request = new HTTP.Request();
-            httpinfo.response = new HTTP.Response();
-          }
-          httpinfo.response.status = attributeValueToString(label.getValue());
-      }
-      if (httpinfo == null) {
-        return;
       }
-
-      if (httpinfo.response.status == null || httpinfo.response.status.equals((""))) {
-        // This is a fallback.
-        httpinfo.response.status = convertToHTTPStatusCode(status);
-      }
-
-      this.http = httpinfo;
-    }
-  }
-
-  private Map<String, Object> makeAnnotations(String name, SpanData.Attributes attrib) {
-    Map<String, Object> ret = new HashMap<String, Object>();
-    ret.put("name", name); // allways put span's name to attribute.
-
-    if (attrib.getAttributeMap().entrySet().size() == 0) {
-      return ret;
     }
-    for (Map.Entry<String, AttributeValue> label : attrib.getAttributeMap().entrySet()) {
-      ret.put(label.getKey(), attributeValueToObject(label.getValue()));
-    }
-    return ret;
   }
 
   /**
    * convert OpenCensus status code to HTTP Status code
    * https://github.com/googleapis/googleapis/blob/master/google/rpc/code.proto
    */
-  private static String convertToHTTPStatusCode(Status status) {
+  static String convertToHTTPStatusCode(Status status) {
     switch (status.getCanonicalCode()) {
       case OK:
         return "200"; // OK
@@ -463,36 +506,32 @@ public class TraceSegment {
    * the list of valid characters here:
    * https://docs.aws.amazon.com/xray/latest/devguide/xray-api-segmentdocuments.html
    */
-  private static String fixSegmentName(String name) {
-    Matcher m = reInvalidSpanCharacters.matcher(name);
-    if (m.matches()) {
-      // only allocate for ReplaceAllString if we need to
-      name = m.replaceAll("");
-    }
-    if (name.length() > maxSegmentNameLength) {
-      name = name.substring(0, maxSegmentNameLength);
-    } else if (name.length() == 0) {
-      name = defaultSegmentName;
-    }
-
-    return name;
+  static String fixSegmentName(String name) {
+    return segmentNames.sanitize(name);
   }
 
-  private static double toEpochSeconds(Timestamp timestamp) {
+  static double toEpochSeconds(Timestamp timestamp) {
     return timestamp.getSeconds() + NANOSECONDS.toMillis(timestamp.getNanos()) / 1000.0;
   }
 
   public static String generateId() {
-    String id = Long.toString(rnd.nextLong() >>> 1, 16);
-    while (id.length() < 16) {
-      id = '0' + id;
-    }
-    return id;
+    return IdCodec.toHex(
+        randomSegmentId(IdGenerator.threadLocalRandom()), IdCodec.SPAN_ID_LENGTH);
+  }
+
+  // a positive 63-bit value, written as 16 hex digits.
+  static long randomSegmentId(IdGenerator idGenerator) {
+    return idGenerator.nextId() >>> 1;
+  }
+
+  // a 32-bit value, written as 8 hex digits.
+  static long randomExceptionId(IdGenerator idGenerator) {
+    return idGenerator.nextId() & 0xffffffffL;
   }
 
   private static final Function<Object, String> returnToString = Functions.returnToString();
 
-  private static String attributeValueToString(AttributeValue attributeValue) {
+  static String attributeValueToString(AttributeValue attributeValue) {
     return attributeValue.match(
         returnToString,
         returnToString,
@@ -501,7 +540,7 @@ public class TraceSegment {
         Functions.<String>returnConstant(""));
   }
 
-  private static Object attributeValueToObject(AttributeValue attributeValue) {
+  static Object attributeValueToObject(AttributeValue attributeValue) {
     return attributeValue.match(
         stringAttributeValueFunction,
         booleanAttributeValueFunction,
@@ -543,7 +582,7 @@ public class TraceSegment {
   /*
    * if 400 <= code < 500, return true
    */
-  private static final Boolean isError(Status status) {
+  static final Boolean isError(Status status) {
     switch (status.getCanonicalCode()) {
       case ABORTED: // 409 Conflict
       case ALREADY_EXISTS: // 409 Conflict
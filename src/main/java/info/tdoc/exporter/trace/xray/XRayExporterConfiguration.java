@@ -0,0 +1,797 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.amazonaws.services.xray.AWSXRay;
+import com.google.common.collect.ImmutableList;
+import io.opencensus.common.Duration;
+import java.nio.file.Path;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Configurations for {@link XRayTraceExporter}.
+ *
+ * <p>Example of usage:
+ *
+ * <pre>{@code
+ * XRayTraceExporter.createAndRegister(
+ *     XRayExporterConfiguration.builder()
+ *         .setServiceName("myservicename")
+ *         .setMaxInFlightRequests(8)
+ *         .build());
+ * }</pre>
+ */
+public final class XRayExporterConfiguration {
+  // The X-Ray daemon sends at most 50 segments per PutTraceSegments request.
+  static final int DEFAULT_MAX_SEGMENTS_PER_REQUEST = 50;
+  static final int DEFAULT_MAX_BYTES_PER_REQUEST = 512 * 1024;
+  static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 4;
+  static final Duration DEFAULT_BLOCK_TIMEOUT = Duration.create(0, 100 * 1000 * 1000);
+  static final int DEFAULT_TRACE_ASSEMBLY_MAX_SPANS = 10000;
+  static final int DEFAULT_MAX_RETRIES = 3;
+  static final long DEFAULT_SPILL_MAX_BYTES = 256L * 1024 * 1024;
+  static final double DEFAULT_TAIL_SAMPLING_RATE = 0.1;
+  static final int DEFAULT_TAIL_SAMPLING_MAX_SPANS = 10000;
+  static final long DEFAULT_DEDUP_EXPECTED_SPANS = 1000 * 1000;
+  static final double DEFAULT_DEDUP_FALSE_POSITIVE_RATE = 0.0001;
+
+  private final String serviceName;
+  @Nullable private final AWSXRay xrayClient;
+  private final List<AWSXRay> xrayClients;
+  private final int maxSegmentsPerRequest;
+  private final int maxBytesPerRequest;
+  private final int maxInFlightRequests;
+  private final boolean asyncExport;
+  private final int queueCapacity;
+  private final OverflowPolicy overflowPolicy;
+  private final Duration blockTimeout;
+  private final int traceIdCacheSize;
+  private final IdGenerator idGenerator;
+  private final AttributeMappers attributeMappers;
+  private final Duration traceAssemblyWindow;
+  private final int traceAssemblyMaxSpans;
+  private final int maxRetries;
+  private final boolean adaptiveRateLimit;
+  @Nullable private final Path spillDirectory;
+  private final long spillMaxBytes;
+  private final Duration tailSamplingWindow;
+  private final double tailSamplingRate;
+  private final int tailSamplingMaxSpans;
+  private final Duration dedupWindow;
+  private final long dedupExpectedSpans;
+  private final double dedupFalsePositiveRate;
+
+  /** What to do with spans when the export queue is full. */
+  public enum OverflowPolicy {
+    /** Drop the spans which are being exported. */
+    DROP_NEWEST,
+    /** Drop the oldest queued spans to make room. */
+    DROP_OLDEST,
+    /** Wait up to the block timeout for room, then drop the spans being exported. */
+    BLOCK
+  }
+
+  private XRayExporterConfiguration(Builder builder) {
+    this.serviceName = builder.serviceName;
+    this.xrayClient = builder.xrayClient;
+    this.xrayClients = builder.xrayClients;
+    this.maxSegmentsPerRequest = builder.maxSegmentsPerRequest;
+    this.maxBytesPerRequest = builder.maxBytesPerRequest;
+    this.maxInFlightRequests = builder.maxInFlightRequests;
+    this.asyncExport = builder.asyncExport;
+    this.queueCapacity = builder.queueCapacity;
+    this.overflowPolicy = builder.overflowPolicy;
+    this.blockTimeout = builder.blockTimeout;
+    this.traceIdCacheSize = builder.traceIdCacheSize;
+    this.idGenerator = builder.idGenerator;
+    this.attributeMappers = builder.attributeMappers;
+    this.traceAssemblyWindow = builder.traceAssemblyWindow;
+    this.traceAssemblyMaxSpans = builder.traceAssemblyMaxSpans;
+    this.maxRetries = builder.maxRetries;
+    this.adaptiveRateLimit = builder.adaptiveRateLimit;
+    this.spillDirectory = builder.spillDirectory;
+    this.spillMaxBytes = builder.spillMaxBytes;
+    this.tailSamplingWindow = builder.tailSamplingWindow;
+    this.tailSamplingRate = builder.tailSamplingRate;
+    this.tailSamplingMaxSpans = builder.tailSamplingMaxSpans;
+    this.dedupWindow = builder.dedupWindow;
+    this.dedupExpectedSpans = builder.dedupExpectedSpans;
+    this.dedupFalsePositiveRate = builder.dedupFalsePositiveRate;
+  }
+
+  /**
+   * Returns a new {@link Builder}.
+   *
+   * @return a {@code Builder}.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns a {@link Builder} initialized with the values of this configuration.
+   *
+   * @return a {@code Builder}.
+   */
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  /**
+   * Returns the service name, used as the name of top level segments.
+   *
+   * @return the service name.
+   */
+  public String getServiceName() {
+    return serviceName;
+  }
+
+  /**
+   * Returns the X-Ray client, or {@code null} if the default client should be created.
+   *
+   * @return the X-Ray client.
+   */
+  @Nullable
+  public AWSXRay getXRayClient() {
+    return xrayClient;
+  }
+
+  /**
+   * Returns the X-Ray clients segments are sharded across, or an empty list if a single client is
+   * used.
+   *
+   * @return the X-Ray clients.
+   */
+  public List<AWSXRay> getXRayClients() {
+    return xrayClients;
+  }
+
+  /**
+   * Returns the maximum number of segment documents sent in one PutTraceSegments request.
+   *
+   * @return the maximum number of segment documents per request.
+   */
+  public int getMaxSegmentsPerRequest() {
+    return maxSegmentsPerRequest;
+  }
+
+  /**
+   * Returns the maximum encoded size in bytes of one PutTraceSegments request.
+   *
+   * @return the maximum request size in bytes.
+   */
+  public int getMaxBytesPerRequest() {
+    return maxBytesPerRequest;
+  }
+
+  /**
+   * Returns the maximum number of PutTraceSegments requests sent concurrently.
+   *
+   * @return the maximum number of requests in flight.
+   */
+  public int getMaxInFlightRequests() {
+    return maxInFlightRequests;
+  }
+
+  /**
+   * Returns whether segments are sent with {@code putTraceSegmentsAsync} without waiting for the
+   * results.
+   *
+   * @return {@code true} if segments are sent asynchronously.
+   */
+  public boolean isAsyncExport() {
+    return asyncExport;
+  }
+
+  /**
+   * Returns the capacity of the queue between the OpenCensus export thread and the exporter
+   * worker, or 0 if spans are converted and sent on the OpenCensus export thread.
+   *
+   * @return the queue capacity in spans.
+   */
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /**
+   * Returns what to do with spans when the queue is full.
+   *
+   * @return the overflow policy.
+   */
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * Returns how long {@link OverflowPolicy#BLOCK} waits for room in the queue.
+   *
+   * @return the block timeout.
+   */
+  public Duration getBlockTimeout() {
+    return blockTimeout;
+  }
+
+  /**
+   * Returns the number of slots of the cache from OpenCensus trace IDs to X-Ray trace IDs.
+   *
+   * @return the trace ID cache size.
+   */
+  public int getTraceIdCacheSize() {
+    return traceIdCacheSize;
+  }
+
+  /**
+   * Returns the generator of subsegment and exception IDs.
+   *
+   * @return the {@code IdGenerator}.
+   */
+  public IdGenerator getIdGenerator() {
+    return idGenerator;
+  }
+
+  /**
+   * Returns the rules which map span attributes to segment fields.
+   *
+   * @return the {@code AttributeMappers}.
+   */
+  public AttributeMappers getAttributeMappers() {
+    return attributeMappers;
+  }
+
+  /**
+   * Returns how long local child spans wait for their segment's root span. Zero disables
+   * trace assembly.
+   *
+   * @return the trace assembly window.
+   */
+  public Duration getTraceAssemblyWindow() {
+    return traceAssemblyWindow;
+  }
+
+  /**
+   * Returns the maximum number of spans waiting for their segment's root span.
+   *
+   * @return the maximum number of waiting spans.
+   */
+  public int getTraceAssemblyMaxSpans() {
+    return traceAssemblyMaxSpans;
+  }
+
+  /**
+   * Returns how many times an unprocessed or failed segment is sent again.
+   *
+   * @return the maximum number of retries per segment.
+   */
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Returns whether the rate of PutTraceSegments requests adapts to throttling.
+   *
+   * @return {@code true} if requests are rate limited after throttling.
+   */
+  public boolean isAdaptiveRateLimit() {
+    return adaptiveRateLimit;
+  }
+
+  /**
+   * Returns the directory segments are spilled to, or {@code null} if spilling is disabled.
+   *
+   * @return the spill directory.
+   */
+  @Nullable
+  public Path getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  /**
+   * Returns the maximum size of the spill files.
+   *
+   * @return the maximum size of the spill files in bytes.
+   */
+  public long getSpillMaxBytes() {
+    return spillMaxBytes;
+  }
+
+  /**
+   * Returns how long spans are buffered per trace before the trace is sampled. Zero disables
+   * tail sampling.
+   *
+   * @return the tail sampling window.
+   */
+  public Duration getTailSamplingWindow() {
+    return tailSamplingWindow;
+  }
+
+  /**
+   * Returns the fraction of ordinary traces sent when tail sampling is enabled.
+   *
+   * @return the tail sampling rate.
+   */
+  public double getTailSamplingRate() {
+    return tailSamplingRate;
+  }
+
+  /**
+   * Returns the maximum number of spans buffered for tail sampling.
+   *
+   * @return the maximum number of buffered spans.
+   */
+  public int getTailSamplingMaxSpans() {
+    return tailSamplingMaxSpans;
+  }
+
+  /**
+   * Returns how long exported span IDs are remembered to drop duplicates. Zero disables
+   * deduplication.
+   *
+   * @return the deduplication window.
+   */
+  public Duration getDedupWindow() {
+    return dedupWindow;
+  }
+
+  /**
+   * Returns the number of spans expected per deduplication window.
+   *
+   * @return the expected number of spans per window.
+   */
+  public long getDedupExpectedSpans() {
+    return dedupExpectedSpans;
+  }
+
+  /**
+   * Returns the rate of new spans which may be dropped as duplicates.
+   *
+   * @return the deduplication false positive rate.
+   */
+  public double getDedupFalsePositiveRate() {
+    return dedupFalsePositiveRate;
+  }
+
+  /** Builder for {@link XRayExporterConfiguration}. */
+  public static final class Builder {
+    private String serviceName;
+    @Nullable private AWSXRay xrayClient;
+    private List<AWSXRay> xrayClients = ImmutableList.of();
+    private int maxSegmentsPerRequest = DEFAULT_MAX_SEGMENTS_PER_REQUEST;
+    private int maxBytesPerRequest = DEFAULT_MAX_BYTES_PER_REQUEST;
+    private int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+    private boolean asyncExport = false;
+    private int queueCapacity = 0;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private Duration blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+    private int traceIdCacheSize = TraceIdCache.DEFAULT_SIZE;
+    private IdGenerator idGenerator = IdGenerator.threadLocalRandom();
+    private AttributeMappers attributeMappers = AttributeMappers.defaults();
+    private Duration traceAssemblyWindow = Duration.create(0, 0);
+    private int traceAssemblyMaxSpans = DEFAULT_TRACE_ASSEMBLY_MAX_SPANS;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private boolean adaptiveRateLimit = true;
+    @Nullable private Path spillDirectory;
+    private long spillMaxBytes = DEFAULT_SPILL_MAX_BYTES;
+    private Duration tailSamplingWindow = Duration.create(0, 0);
+    private double tailSamplingRate = DEFAULT_TAIL_SAMPLING_RATE;
+    private int tailSamplingMaxSpans = DEFAULT_TAIL_SAMPLING_MAX_SPANS;
+    private Duration dedupWindow = Duration.create(0, 0);
+    private long dedupExpectedSpans = DEFAULT_DEDUP_EXPECTED_SPANS;
+    private double dedupFalsePositiveRate = DEFAULT_DEDUP_FALSE_POSITIVE_RATE;
+
+    private Builder() {}
+
+    private Builder(XRayExporterConfiguration configuration) {
+      this.serviceName = configuration.serviceName;
+      this.xrayClient = configuration.xrayClient;
+      this.xrayClients = configuration.xrayClients;
+      this.maxSegmentsPerRequest = configuration.maxSegmentsPerRequest;
+      this.maxBytesPerRequest = configuration.maxBytesPerRequest;
+      this.maxInFlightRequests = configuration.maxInFlightRequests;
+      this.asyncExport = configuration.asyncExport;
+      this.queueCapacity = configuration.queueCapacity;
+      this.overflowPolicy = configuration.overflowPolicy;
+      this.blockTimeout = configuration.blockTimeout;
+      this.traceIdCacheSize = configuration.traceIdCacheSize;
+      this.idGenerator = configuration.idGenerator;
+      this.attributeMappers = configuration.attributeMappers;
+      this.traceAssemblyWindow = configuration.traceAssemblyWindow;
+      this.traceAssemblyMaxSpans = configuration.traceAssemblyMaxSpans;
+      this.maxRetries = configuration.maxRetries;
+      this.adaptiveRateLimit = configuration.adaptiveRateLimit;
+      this.spillDirectory = configuration.spillDirectory;
+      this.spillMaxBytes = configuration.spillMaxBytes;
+      this.tailSamplingWindow = configuration.tailSamplingWindow;
+      this.tailSamplingRate = configuration.tailSamplingRate;
+      this.tailSamplingMaxSpans = configuration.tailSamplingMaxSpans;
+      this.dedupWindow = configuration.dedupWindow;
+      this.dedupExpectedSpans = configuration.dedupExpectedSpans;
+      this.dedupFalsePositiveRate = configuration.dedupFalsePositiveRate;
+    }
+
+    /**
+     * Sets the service name.
+     *
+     * @param serviceName the service name.
+     * @return this.
+     */
+    public Builder setServiceName(String serviceName) {
+      this.serviceName = serviceName;
+      return this;
+    }
+
+    /**
+     * Sets the X-Ray client. If not set, {@code AWSXRayAsyncClientBuilder.defaultClient()} is used.
+     *
+     * @param xrayClient the X-Ray client.
+     * @return this.
+     */
+    public Builder setXRayClient(AWSXRay xrayClient) {
+      this.xrayClient = xrayClient;
+      return this;
+    }
+
+    /**
+     * Sets several X-Ray clients, e.g. for different regions or endpoints, to send segments with
+     * instead of a single one. Segments are assigned to a client by a hash of their trace ID, so
+     * all segments of a trace go to the same client. Every client has its own in-flight limit, see
+     * {@link #setMaxInFlightRequests(int)}, retry budget, rate limit and spill directory, so a
+     * slow or throttled client does not hold back the others. With a spill directory, each client
+     * spills to a subdirectory named {@code shard-<index>} and gets an equal part of {@link
+     * #setSpillMaxBytes(long)}.
+     *
+     * @param xrayClients the X-Ray clients.
+     * @return this.
+     */
+    public Builder setXRayClients(List<AWSXRay> xrayClients) {
+      this.xrayClients = ImmutableList.copyOf(checkNotNull(xrayClients, "xrayClients"));
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of segment documents sent in one PutTraceSegments request.
+     *
+     * @param maxSegmentsPerRequest the maximum number of segment documents per request.
+     * @return this.
+     */
+    public Builder setMaxSegmentsPerRequest(int maxSegmentsPerRequest) {
+      this.maxSegmentsPerRequest = maxSegmentsPerRequest;
+      return this;
+    }
+
+    /**
+     * Sets the maximum encoded size in bytes of one PutTraceSegments request.
+     *
+     * @param maxBytesPerRequest the maximum request size in bytes.
+     * @return this.
+     */
+    public Builder setMaxBytesPerRequest(int maxBytesPerRequest) {
+      this.maxBytesPerRequest = maxBytesPerRequest;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of PutTraceSegments requests sent concurrently.
+     *
+     * @param maxInFlightRequests the maximum number of requests in flight.
+     * @return this.
+     */
+    public Builder setMaxInFlightRequests(int maxInFlightRequests) {
+      this.maxInFlightRequests = maxInFlightRequests;
+      return this;
+    }
+
+    /**
+     * Sets whether segments are sent with {@code putTraceSegmentsAsync}. The export thread then
+     * returns as soon as the requests are handed to the client, and waits only while {@code
+     * maxInFlightRequests} requests are outstanding. The X-Ray client must be an {@code
+     * AWSXRayAsync}.
+     *
+     * @param asyncExport {@code true} to send segments asynchronously.
+     * @return this.
+     */
+    public Builder setAsyncExport(boolean asyncExport) {
+      this.asyncExport = asyncExport;
+      return this;
+    }
+
+    /**
+     * Sets the capacity of the queue between the OpenCensus export thread and the exporter worker.
+     * When positive, {@code export} only puts spans into a preallocated ring buffer and a worker
+     * thread converts and sends them. 0, the default, converts and sends spans on the OpenCensus
+     * export thread.
+     *
+     * @param queueCapacity the queue capacity in spans.
+     * @return this.
+     */
+    public Builder setQueueCapacity(int queueCapacity) {
+      this.queueCapacity = queueCapacity;
+      return this;
+    }
+
+    /**
+     * Sets what to do with spans when the queue is full. Defaults to {@link
+     * OverflowPolicy#DROP_NEWEST}.
+     *
+     * @param overflowPolicy the overflow policy.
+     * @return this.
+     */
+    public Builder setOverflowPolicy(OverflowPolicy overflowPolicy) {
+      this.overflowPolicy = checkNotNull(overflowPolicy, "overflowPolicy");
+      return this;
+    }
+
+    /**
+     * Sets how long {@link OverflowPolicy#BLOCK} waits for room in the queue. The timeout bounds
+     * the whole batch handed to the exporter, not each of its spans.
+     *
+     * @param blockTimeout the block timeout.
+     * @return this.
+     */
+    public Builder setBlockTimeout(Duration blockTimeout) {
+      this.blockTimeout = checkNotNull(blockTimeout, "blockTimeout");
+      return this;
+    }
+
+    /**
+     * Sets the number of slots of the cache from OpenCensus trace IDs to X-Ray trace IDs. All spans
+     * of a trace get the same X-Ray trace ID while the trace stays in the cache, so this should be
+     * well above the number of traces exported concurrently. Rounded up to a power of two.
+     *
+     * @param traceIdCacheSize the trace ID cache size.
+     * @return this.
+     */
+    public Builder setTraceIdCacheSize(int traceIdCacheSize) {
+      this.traceIdCacheSize = traceIdCacheSize;
+      return this;
+    }
+
+    /**
+     * Sets the generator of subsegment and exception IDs. Defaults to {@link
+     * IdGenerator#threadLocalRandom()}; use {@link IdGenerator#secureRandom()} if these IDs must
+     * not be predictable.
+     *
+     * @param idGenerator the {@code IdGenerator}.
+     * @return this.
+     */
+    public Builder setIdGenerator(IdGenerator idGenerator) {
+      this.idGenerator = checkNotNull(idGenerator, "idGenerator");
+      return this;
+    }
+
+    /**
+     * Sets the rules which map span attributes to structured segment fields instead of
+     * annotations. Defaults to {@link AttributeMappers#defaults()}.
+     *
+     * @param attributeMappers the {@code AttributeMappers}.
+     * @return this.
+     */
+    public Builder setAttributeMappers(AttributeMappers attributeMappers) {
+      this.attributeMappers = checkNotNull(attributeMappers, "attributeMappers");
+      return this;
+    }
+
+    /**
+     * Sets how long local child spans wait for the root span of their segment, so that they
+     * are sent embedded in its document instead of as separate subsegment documents. Children
+     * which arrive after their root, or whose root does not arrive in time, are sent separately.
+     * Defaults to zero, which disables trace assembly; enabling it needs an export queue, see
+     * {@link #setQueueCapacity(int)}.
+     *
+     * @param traceAssemblyWindow the trace assembly window.
+     * @return this.
+     */
+    public Builder setTraceAssemblyWindow(Duration traceAssemblyWindow) {
+      this.traceAssemblyWindow = checkNotNull(traceAssemblyWindow, "traceAssemblyWindow");
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of spans waiting for the root span of their segment. When it is
+     * exceeded, the spans of the oldest traces are sent without waiting any longer.
+     *
+     * @param traceAssemblyMaxSpans the maximum number of waiting spans.
+     * @return this.
+     */
+    public Builder setTraceAssemblyMaxSpans(int traceAssemblyMaxSpans) {
+      this.traceAssemblyMaxSpans = traceAssemblyMaxSpans;
+      return this;
+    }
+
+    /**
+     * Sets how many times a segment is sent again after the service reported it unprocessed or
+     * the request failed with a retryable error. Retries are delayed with jittered exponential
+     * backoff and limited by a retry budget, so a failing service sees retries at only a fraction
+     * of the normal request rate. {@code 0} disables retries.
+     *
+     * @param maxRetries the maximum number of retries per segment.
+     * @return this.
+     */
+    public Builder setMaxRetries(int maxRetries) {
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /**
+     * Sets whether the rate of segments sent with PutTraceSegments adapts to throttling. When
+     * enabled, nothing is limited until the service throttles; then the rate is cut to a fraction
+     * of the observed rate and raised slowly while segments are accepted, so it settles just below
+     * the account limit.
+     *
+     * @param adaptiveRateLimit whether requests are rate limited after throttling.
+     * @return this.
+     */
+    public Builder setAdaptiveRateLimit(boolean adaptiveRateLimit) {
+      this.adaptiveRateLimit = adaptiveRateLimit;
+      return this;
+    }
+
+    /**
+     * Sets a directory to spill segments to while X-Ray cannot be reached. Segments which are out
+     * of retries are appended to memory-mapped files in the directory and replayed in order by a
+     * background thread once requests succeed again, also after a restart. The directory must not
+     * be shared by several exporters. Not used when segments are sent to the X-Ray daemon.
+     *
+     * @param spillDirectory the spill directory, or {@code null} to disable spilling.
+     * @return this.
+     */
+    public Builder setSpillDirectory(@Nullable Path spillDirectory) {
+      this.spillDirectory = spillDirectory;
+      return this;
+    }
+
+    /**
+     * Sets the maximum total size of the spill files. Segments which do not fit are dropped.
+     *
+     * @param spillMaxBytes the maximum size of the spill files in bytes.
+     * @return this.
+     */
+    public Builder setSpillMaxBytes(long spillMaxBytes) {
+      this.spillMaxBytes = spillMaxBytes;
+      return this;
+    }
+
+    /**
+     * Sets how long spans are buffered per trace before deciding whether the trace is sent.
+     * Traces with a failed span, an HTTP status code of 400 or above, or a latency above the 99th
+     * percentile of recent traces are always sent; the others are sent with the tail sampling
+     * rate, see {@link #setTailSamplingRate(double)}. Discarded traces are never encoded. Defaults
+     * to zero, which disables tail sampling; enabling it needs an export queue, see {@link
+     * #setQueueCapacity(int)}.
+     *
+     * @param tailSamplingWindow the tail sampling window.
+     * @return this.
+     */
+    public Builder setTailSamplingWindow(Duration tailSamplingWindow) {
+      this.tailSamplingWindow = checkNotNull(tailSamplingWindow, "tailSamplingWindow");
+      return this;
+    }
+
+    /**
+     * Sets the fraction of traces sent among those without failures or high latency, when tail
+     * sampling is enabled. The decision is based on the trace ID, so exporters on different hosts
+     * agree about a trace. Defaults to 0.1.
+     *
+     * @param tailSamplingRate the tail sampling rate, from 0 to 1.
+     * @return this.
+     */
+    public Builder setTailSamplingRate(double tailSamplingRate) {
+      this.tailSamplingRate = tailSamplingRate;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of spans buffered for tail sampling. When it is exceeded, the oldest
+     * traces are sampled without waiting any longer.
+     *
+     * @param tailSamplingMaxSpans the maximum number of buffered spans.
+     * @return this.
+     */
+    public Builder setTailSamplingMaxSpans(int tailSamplingMaxSpans) {
+      this.tailSamplingMaxSpans = tailSamplingMaxSpans;
+      return this;
+    }
+
+    /**
+     * Sets how long the trace and span IDs of delivered spans are remembered, so that a span
+     * exported again within the window is dropped before it is encoded and sent. Spans count as
+     * delivered once X-Ray accepted them, they were spilled or they were sent to the daemon. The
+     * IDs are kept in rotating Bloom filters sized by {@link #setDedupExpectedSpans(long)} and
+     * {@link #setDedupFalsePositiveRate(double)}, so memory is fixed and a small fraction of new
+     * spans may be dropped as duplicates. Defaults to zero, which disables deduplication.
+     *
+     * @param dedupWindow the deduplication window.
+     * @return this.
+     */
+    public Builder setDedupWindow(Duration dedupWindow) {
+      this.dedupWindow = checkNotNull(dedupWindow, "dedupWindow");
+      return this;
+    }
+
+    /**
+     * Sets the number of spans expected per deduplication window, which sizes the Bloom filters.
+     * With more spans, the false positive rate rises above the configured one. Defaults to one
+     * million, which takes about 3.5 MiB with the default false positive rate.
+     *
+     * @param dedupExpectedSpans the expected number of spans per window.
+     * @return this.
+     */
+    public Builder setDedupExpectedSpans(long dedupExpectedSpans) {
+      this.dedupExpectedSpans = dedupExpectedSpans;
+      return this;
+    }
+
+    /**
+     * Sets the highest rate of new spans which may be wrongly dropped as duplicates, while no more
+     * spans than expected are exported per window. Defaults to 0.0001.
+     *
+     * @param dedupFalsePositiveRate the false positive rate, above 0 and below 1.
+     * @return this.
+     */
+    public Builder setDedupFalsePositiveRate(double dedupFalsePositiveRate) {
+      this.dedupFalsePositiveRate = dedupFalsePositiveRate;
+      return this;
+    }
+
+    /**
+     * Builds a {@link XRayExporterConfiguration}.
+     *
+     * @return a {@code XRayExporterConfiguration}.
+     */
+    public XRayExporterConfiguration build() {
+      checkNotNull(serviceName, "serviceName");
+      checkArgument(
+          xrayClient == null || xrayClients.isEmpty(),
+          "Only one of xrayClient and xrayClients can be set.");
+      checkArgument(maxSegmentsPerRequest > 0, "maxSegmentsPerRequest must be positive.");
+      checkArgument(maxBytesPerRequest > 0, "maxBytesPerRequest must be positive.");
+      checkArgument(maxInFlightRequests > 0, "maxInFlightRequests must be positive.");
+      checkArgument(queueCapacity >= 0, "queueCapacity must not be negative.");
+      checkArgument(traceIdCacheSize > 0, "traceIdCacheSize must be positive.");
+      checkArgument(
+          traceAssemblyWindow.compareTo(Duration.create(0, 0)) >= 0,
+          "traceAssemblyWindow must not be negative.");
+      checkArgument(
+          traceAssemblyWindow.toMillis() == 0 || queueCapacity > 0,
+          "trace assembly needs a queueCapacity.");
+      checkArgument(traceAssemblyMaxSpans > 0, "traceAssemblyMaxSpans must be positive.");
+      checkArgument(maxRetries >= 0, "maxRetries must not be negative.");
+      checkArgument(
+          spillMaxBytes / Math.max(1, xrayClients.size()) >= SpillQueue.DEFAULT_FILE_SIZE,
+          "spillMaxBytes must hold one spill file per client.");
+      checkArgument(
+          tailSamplingWindow.compareTo(Duration.create(0, 0)) >= 0,
+          "tailSamplingWindow must not be negative.");
+      checkArgument(
+          tailSamplingWindow.toMillis() == 0 || queueCapacity > 0,
+          "tail sampling needs a queueCapacity.");
+      checkArgument(
+          tailSamplingRate >= 0 && tailSamplingRate <= 1, "tailSamplingRate must be in [0, 1].");
+      checkArgument(tailSamplingMaxSpans > 0, "tailSamplingMaxSpans must be positive.");
+      checkArgument(
+          dedupWindow.compareTo(Duration.create(0, 0)) >= 0, "dedupWindow must not be negative.");
+      checkArgument(dedupExpectedSpans > 0, "dedupExpectedSpans must be positive.");
+      checkArgument(
+          dedupFalsePositiveRate > 0 && dedupFalsePositiveRate < 1,
+          "dedupFalsePositiveRate must be in (0, 1).");
+      return new XRayExporterConfiguration(this);
+    }
+  }
+}
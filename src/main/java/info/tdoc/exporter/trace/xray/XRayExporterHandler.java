@@ -17,73 +17,476 @@
 package info.tdoc.exporter.trace.xray;
 
 import com.amazonaws.services.xray.AWSXRay;
-import com.amazonaws.services.xray.model.PutTraceSegmentsRequest;
-import com.amazonaws.services.xray.model.PutTraceSegmentsResult;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import io.opencensus.common.Scope;
 import io.opencensus.trace.Sampler;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
 import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
 import io.opencensus.trace.Tracer;
 import io.opencensus.trace.Tracing;
 import io.opencensus.trace.export.SpanData;
 import io.opencensus.trace.export.SpanExporter;
 import io.opencensus.trace.samplers.Samplers;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 final class XRayExporterHandler extends SpanExporter.Handler {
   private static final Tracer tracer = Tracing.getTracer();
   private static final Sampler probabilitySampler = Samplers.probabilitySampler(0.0001);
   private static final Logger logger = Logger.getLogger(XRayExporterHandler.class.getName());
+  private static final long DRAIN_INTERVAL_MILLIS = 100;
+  private static final long SHUTDOWN_TIMEOUT_MILLIS = 10 * 1000;
+  // X-Ray rejects larger documents, and the daemon needs room for its header in the datagram.
+  static final int MAX_DOCUMENT_SIZE = DaemonSender.MAX_DATAGRAM_SIZE - DaemonSender.HEADER.length;
 
-  private final AWSXRay client;
-  private final String serviceName;
-  private final Boolean useDaemon;
-  private final ObjectMapper mapper = new ObjectMapper();
+  private final int maxSegmentsPerRequest;
+  private final int maxBytesPerRequest;
+  @Nullable private final DaemonSender daemon;
+  @Nullable private final RollingBloomFilter exportedSpans;
+  private final AtomicLong duplicateSpanCount = new AtomicLong();
+  // Indexed by a hash of the trace ID; null when sending to the daemon.
+  @Nullable private final ExportShard[] shards;
+  @Nullable private final RingBuffer<SpanData> queue;
+  @Nullable private final Thread worker;
+  // Only used by the worker thread.
+  @Nullable private final TailSampler sampler;
+  @Nullable private final TraceAssembler assembler;
+  private volatile boolean running = true;
+  private final SegmentEncoder encoder;
 
   XRayExporterHandler(AWSXRay client, String serviceName) {
     this(client, serviceName, false);
   }
 
   XRayExporterHandler(AWSXRay client, String serviceName, Boolean useDaemon) {
-    this.client = client;
-    this.serviceName = serviceName;
-    this.useDaemon = useDaemon;
+    this(client, serviceName, useDaemon == true ? createDaemonSender() : null);
   }
 
-  private TraceSegment generateSegment(String name, SpanData spanData) {
-    return new TraceSegment(name, spanData);
+  /*
+   * If daemon is given, segments are sent to the local X-Ray daemon over UDP and the client is
+   * not used.
+   */
+  XRayExporterHandler(
+      @Nullable AWSXRay client, String serviceName, @Nullable DaemonSender daemon) {
+    this(
+        XRayExporterConfiguration.builder()
+            .setServiceName(serviceName)
+            .setXRayClient(client)
+            .build(),
+        daemon);
   }
 
+  XRayExporterHandler(XRayExporterConfiguration configuration, @Nullable DaemonSender daemon) {
+    ExporterMetrics.registerViews();
+    this.encoder =
+        new SegmentEncoder(
+            configuration.getServiceName(),
+            new TraceIdCache(configuration.getTraceIdCacheSize()),
+            configuration.getIdGenerator(),
+            configuration.getAttributeMappers());
+    this.maxSegmentsPerRequest = configuration.getMaxSegmentsPerRequest();
+    this.maxBytesPerRequest = configuration.getMaxBytesPerRequest();
+    this.daemon = daemon;
+    long dedupWindowMillis = configuration.getDedupWindow().toMillis();
+    this.exportedSpans =
+        dedupWindowMillis > 0
+            ? new RollingBloomFilter(
+                dedupWindowMillis,
+                TimeUnit.MILLISECONDS,
+                configuration.getDedupExpectedSpans(),
+                configuration.getDedupFalsePositiveRate())
+            : null;
+    this.shards =
+        daemon == null
+            ? createShards(configuration, exportedSpans != null ? this::markExported : null)
+            : null;
+    if (configuration.getQueueCapacity() > 0) {
+      this.queue =
+          new RingBuffer<SpanData>(
+              configuration.getQueueCapacity(),
+              configuration.getOverflowPolicy(),
+              configuration.getBlockTimeout().toMillis(),
+              TimeUnit.MILLISECONDS);
+      long samplingWindowMillis = configuration.getTailSamplingWindow().toMillis();
+      this.sampler =
+          samplingWindowMillis > 0
+              ? new TailSampler(
+                  samplingWindowMillis,
+                  TimeUnit.MILLISECONDS,
+                  configuration.getTailSamplingMaxSpans(),
+                  configuration.getTailSamplingRate())
+              : null;
+      long assemblyWindowMillis = configuration.getTraceAssemblyWindow().toMillis();
+      this.assembler =
+          assemblyWindowMillis > 0
+              ? new TraceAssembler(
+                  assemblyWindowMillis,
+                  TimeUnit.MILLISECONDS,
+                  configuration.getTraceAssemblyMaxSpans())
+              : null;
+      this.worker = new Thread(this::drainQueue, "XRayExporter-worker");
+      this.worker.setDaemon(true);
+      this.worker.start();
+    } else {
+      this.queue = null;
+      this.sampler = null;
+      this.assembler = null;
+      this.worker = null;
+    }
+  }
+
+  private static DaemonSender createDaemonSender() {
+    try {
+      return DaemonSender.create();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /*
+   * Creates one shard per client. With several clients, each spills to its own subdirectory.
+   */
+  private static ExportShard[] createShards(
+      XRayExporterConfiguration configuration,
+      @Nullable Consumer<EncodedSegment> deliveryListener) {
+    List<AWSXRay> clients = configuration.getXRayClients();
+    if (clients.isEmpty()) {
+      return new ExportShard[] {
+        new ExportShard(
+            configuration.getXRayClient(),
+            configuration,
+            configuration.getSpillDirectory(),
+            configuration.getSpillMaxBytes(),
+            deliveryListener)
+      };
+    }
+    ExportShard[] shards = new ExportShard[clients.size()];
+    Path spillDirectory = configuration.getSpillDirectory();
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] =
+          new ExportShard(
+              clients.get(i),
+              configuration,
+              spillDirectory == null ? null : spillDirectory.resolve("shard-" + i),
+              configuration.getSpillMaxBytes() / shards.length,
+              deliveryListener);
+    }
+    return shards;
+  }
+
+  /*
+   * With a queue, spans are only handed to the worker thread here; otherwise they are converted
+   * and sent on the calling thread.
+   */
   @Override
   public void export(Collection<SpanData> spanDataList) {
+    ExporterMetrics.recordReceived(spanDataList.size());
+    if (exportedSpans != null) {
+      spanDataList = deduplicate(spanDataList);
+    }
+    if (queue == null) {
+      send(spanDataList);
+      return;
+    }
+    // Includes the spans DROP_OLDEST evicted to make room.
+    int dropped = queue.offerAll(spanDataList);
+    if (dropped != 0) {
+      ExporterMetrics.recordQueueDropped(dropped);
+    }
+  }
+
+  /*
+   * Drops the spans which were delivered before. Spans are only remembered once their documents
+   * are accepted by X-Ray, spilled or sent to the daemon, so spans lost on the way, or dropped by
+   * the queue or the tail sampler, can be exported again. The list is only copied if it has
+   * duplicates.
+   */
+  private Collection<SpanData> deduplicate(Collection<SpanData> spanDataList) {
+    List<SpanData> unique = null;
+    int index = 0;
+    for (SpanData spanData : spanDataList) {
+      SpanContext context = spanData.getContext();
+      if (!exportedSpans.mightContain(context.getTraceId(), context.getSpanId())) {
+        if (unique != null) {
+          unique.add(spanData);
+        }
+      } else if (unique == null) {
+        unique = new ArrayList<SpanData>(spanDataList.size());
+        Iterator<SpanData> it = spanDataList.iterator();
+        for (int i = 0; i < index; i++) {
+          unique.add(it.next());
+        }
+      }
+      index++;
+    }
+    if (unique == null) {
+      return spanDataList;
+    }
+    int duplicates = spanDataList.size() - unique.size();
+    duplicateSpanCount.addAndGet(duplicates);
+    ExporterMetrics.recordDeduplicated(duplicates);
+    return unique;
+  }
+
+  /*
+   * Remembers the spans of a delivered document.
+   */
+  private void markExported(EncodedSegment segment) {
+    // Segments read back from the spill queue were remembered when they were spilled.
+    if (segment.traceId != null) {
+      markExported(segment.traceId, segment.spanId, segment.embeddedSpanIds);
+    }
+  }
+
+  private void markExported(TraceId traceId, SpanId spanId, List<SpanId> embeddedSpanIds) {
+    exportedSpans.add(traceId, spanId);
+    for (SpanId embedded : embeddedSpanIds) {
+      exportedSpans.add(traceId, embedded);
+    }
+  }
+
+  /** Returns the number of spans dropped because they were exported before. */
+  long getDuplicateSpanCount() {
+    return duplicateSpanCount.get();
+  }
+
+  /** Returns the number of spans dropped because the queue was full. */
+  long getDroppedSpanCount() {
+    return queue == null ? 0 : queue.getDroppedCount();
+  }
+
+  /** Returns the number of encoded segments which were given up on. */
+  long getDroppedSegmentCount() {
+    if (shards == null) {
+      return daemon.getDroppedCount();
+    }
+    long dropped = 0;
+    for (ExportShard shard : shards) {
+      dropped += shard.dispatcher.getDroppedSegmentCount();
+    }
+    return dropped;
+  }
+
+  private void drainQueue() {
+    List<SpanData> batch = new ArrayList<SpanData>();
+    List<SpanData> sampled = sampler != null ? new ArrayList<SpanData>() : batch;
+    List<SpanTree> trees = new ArrayList<SpanTree>();
+    while (running || queue.size() > 0) {
+      try {
+        queue.drainTo(batch, queue.capacity(), DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (sampler != null) {
+          long discarded = sampler.getDiscardedSpanCount();
+          for (SpanData spanData : batch) {
+            sampler.add(spanData, sampled);
+          }
+          sampler.expire(sampled);
+          recordSampledOut(discarded);
+        }
+        process(sampled, trees);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Failed to export spans", e);
+      } finally {
+        batch.clear();
+        sampled.clear();
+        trees.clear();
+      }
+    }
+    try {
+      if (sampler != null) {
+        long discarded = sampler.getDiscardedSpanCount();
+        sampler.flushAll(sampled);
+        recordSampledOut(discarded);
+      }
+      if (assembler != null) {
+        for (SpanData spanData : sampled) {
+          assembler.add(spanData, trees);
+        }
+        sampled.clear();
+        assembler.flushAll(trees);
+      }
+      if (!sampled.isEmpty()) {
+        send(sampled);
+      }
+      if (!trees.isEmpty()) {
+        sendTrees(trees);
+      }
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to export spans", e);
+    }
+  }
+
+  /*
+   * Sends the spans, or assembles them into trees and sends the trees which are ready.
+   */
+  private void process(List<SpanData> spans, List<SpanTree> trees) {
+    if (assembler == null) {
+      if (!spans.isEmpty()) {
+        send(spans);
+      }
+      return;
+    }
+    for (SpanData spanData : spans) {
+      assembler.add(spanData, trees);
+    }
+    assembler.expire(trees);
+    if (!trees.isEmpty()) {
+      sendTrees(trees);
+    }
+  }
+
+  private void recordSampledOut(long discardedBefore) {
+    long discarded = sampler.getDiscardedSpanCount() - discardedBefore;
+    if (discarded != 0) {
+      ExporterMetrics.recordSampledOut(discarded);
+    }
+  }
+
+  /*
+   * Stops the worker after the queued spans are sent, and releases the senders.
+   */
+  void shutdown() {
+    running = false;
+    if (worker != null) {
+      try {
+        worker.join(SHUTDOWN_TIMEOUT_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (shards != null) {
+      for (ExportShard shard : shards) {
+        shard.close();
+      }
+    }
+    if (daemon != null) {
+      try {
+        daemon.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Failed to close X-Ray daemon channel", e);
+      }
+    }
+  }
+
+  void send(Collection<SpanData> spanDataList) {
+    List<SpanData> spans =
+        spanDataList instanceof List
+            ? (List<SpanData>) spanDataList
+            : new ArrayList<SpanData>(spanDataList);
+    send(spans, encoder::encode, SpanData::getContext, span -> Collections.<SpanId>emptyList());
+  }
+
+  private void sendTrees(List<SpanTree> trees) {
+    send(
+        trees,
+        tree -> encodeTree(tree, trees),
+        tree -> tree.span.getContext(),
+        XRayExporterHandler::embeddedSpanIds);
+  }
+
+  /*
+   * Encodes the tree as one document. If that is larger than MAX_DOCUMENT_SIZE, the root is
+   * encoded alone instead and its children are appended to trees, to be encoded as standalone
+   * subsegment documents in turn, so one large local tree does not lose the whole trace.
+   */
+  private SegmentEncoder.Buffer encodeTree(SpanTree tree, List<SpanTree> trees)
+      throws IOException {
+    SegmentEncoder.Buffer buf = encoder.encode(tree);
+    List<SpanTree> children = tree.getChildren();
+    if (buf.size() <= MAX_DOCUMENT_SIZE || children == null) {
+      return buf;
+    }
+    trees.addAll(tree.removeChildren());
+    return encoder.encode(tree);
+  }
+
+  /*
+   * Returns the IDs of the descendants embedded in the document of the tree.
+   */
+  private static List<SpanId> embeddedSpanIds(SpanTree tree) {
+    List<SpanTree> children = tree.getChildren();
+    if (children == null) {
+      return Collections.emptyList();
+    }
+    List<SpanId> ids = new ArrayList<SpanId>(tree.size() - 1);
+    addSpanIds(children, ids);
+    return ids;
+  }
+
+  private static void addSpanIds(List<SpanTree> trees, List<SpanId> ids) {
+    for (SpanTree tree : trees) {
+      ids.add(tree.span.getContext().getSpanId());
+      if (tree.getChildren() != null) {
+        addSpanIds(tree.getChildren(), ids);
+      }
+    }
+  }
+
+  /*
+   * Encodes one segment document. The encoder may append more segments to the list being sent.
+   */
+  private interface DocumentEncoder<T> {
+    SegmentEncoder.Buffer encode(T segment) throws IOException;
+  }
+
+  /*
+   * Encodes and sends the segments. embedded returns the IDs of the spans embedded in a segment's
+   * document besides its own, which are only needed to remember delivered spans.
+   */
+  private <T> void send(
+      List<T> segments,
+      DocumentEncoder<T> documents,
+      Function<T, SpanContext> contexts,
+      Function<T, List<SpanId>> embedded) {
     Scope scope =
         tracer.spanBuilder("SendXRaySpans").setSampler(probabilitySampler).startScopedSpan();
     try {
-      List<String> encodedSpans = new ArrayList<String>(spanDataList.size());
-      for (SpanData spanData : spanDataList) {
-        TraceSegment tr = generateSegment(this.serviceName, spanData);
-        String s = mapper.writeValueAsString(tr);
-        if (useDaemon == true) {
-          s = "{\"format\": \"json\", \"version\": 1}\n" + s;
-        }
+      if (daemon != null) {
+        sendToDaemon(segments, documents, contexts, embedded);
+        return;
+      }
+      List<List<EncodedSegment>> partitions = new ArrayList<List<EncodedSegment>>(shards.length);
+      for (int i = 0; i < shards.length; i++) {
+        partitions.add(new ArrayList<EncodedSegment>(segments.size() / shards.length + 1));
+      }
+      long encodedBytes = 0;
+      // Indexed, since encoding may append to the list.
+      for (int i = 0; i < segments.size(); i++) {
+        T segment = segments.get(i);
+        SegmentEncoder.Buffer buf = documents.encode(segment);
+        encodedBytes += buf.size();
+        String s = buf.toString();
         logger.log(Level.FINE, s);
-        encodedSpans.add(s);
+        SpanContext context = contexts.apply(segment);
+        partitions
+            .get(shard(context.getTraceId()))
+            .add(
+                exportedSpans == null
+                    ? new EncodedSegment(context.getSpanId(), s)
+                    : new EncodedSegment(
+                        context.getTraceId(), context.getSpanId(), embedded.apply(segment), s));
       }
+      ExporterMetrics.recordEncoded(segments.size(), encodedBytes);
       try {
-        PutTraceSegmentsRequest req =
-            new PutTraceSegmentsRequest().withTraceSegmentDocuments(encodedSpans);
-        PutTraceSegmentsResult res = client.putTraceSegments(req);
-        if (res.getUnprocessedTraceSegments().size() != 0) {
+        // Unprocessed segments are retried or logged by the dispatchers.
+        int dropped = dispatch(partitions);
+        if (dropped != 0) {
           tracer.getCurrentSpan().setStatus(Status.DATA_LOSS);
-          logger.log(
-              Level.WARNING,
-              "UnprocessedTraceSegments exist: count={}",
-              res.getUnprocessedTraceSegments().size());
         }
       } catch (RuntimeException e) {
         tracer
@@ -93,11 +496,66 @@ final class XRayExporterHandler extends SpanExporter.Handler {
                     e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage()));
         throw new RuntimeException(e);
       }
-    } catch (JsonProcessingException e) {
+    } catch (IOException e) {
       tracer.getCurrentSpan().setStatus(Status.UNKNOWN.withDescription(e.getMessage()));
       throw new RuntimeException(e);
     } finally {
       scope.close();
     }
   }
+
+  private int shard(TraceId traceId) {
+    return shards.length == 1 ? 0 : Math.floorMod(traceId.hashCode(), shards.length);
+  }
+
+  /*
+   * Sends every partition with its shard. A single shard is waited for, and its failures are
+   * rethrown. Several shards are only handed their partitions, each blocking just while its own
+   * requests are at the in-flight limit, so a slow or failing endpoint does not hold back the
+   * others; their failures are logged and counted by the dispatchers.
+   */
+  private int dispatch(List<List<EncodedSegment>> partitions) {
+    if (shards.length == 1) {
+      return shards[0].dispatcher.dispatch(split(partitions.get(0)));
+    }
+    for (int i = 0; i < shards.length; i++) {
+      if (!partitions.get(i).isEmpty()) {
+        shards[i].dispatcher.submit(split(partitions.get(i)));
+      }
+    }
+    return 0;
+  }
+
+  private List<List<EncodedSegment>> split(List<EncodedSegment> segments) {
+    return SegmentBatcher.split(
+        segments, e -> e.document, maxSegmentsPerRequest, maxBytesPerRequest);
+  }
+
+  private <T> void sendToDaemon(
+      List<T> segments,
+      DocumentEncoder<T> documents,
+      Function<T, SpanContext> contexts,
+      Function<T, List<SpanId>> embedded)
+      throws IOException {
+    int dropped = 0;
+    long encodedBytes = 0;
+    for (int i = 0; i < segments.size(); i++) {
+      T segment = segments.get(i);
+      SegmentEncoder.Buffer buf = documents.encode(segment);
+      encodedBytes += buf.size();
+      if (!daemon.send(buf.array(), 0, buf.size())) {
+        dropped++;
+      } else if (exportedSpans != null) {
+        SpanContext context = contexts.apply(segment);
+        markExported(context.getTraceId(), context.getSpanId(), embedded.apply(segment));
+      }
+    }
+    ExporterMetrics.recordEncoded(segments.size(), encodedBytes);
+    ExporterMetrics.recordSent(segments.size() - dropped);
+    if (dropped != 0) {
+      ExporterMetrics.recordDropped(dropped);
+      tracer.getCurrentSpan().setStatus(Status.DATA_LOSS);
+      logger.log(Level.WARNING, "Segments not sent to X-Ray daemon: count=" + dropped);
+    }
+  }
 }
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.amazonaws.services.xray.AWSXRay;
+import com.amazonaws.services.xray.model.GetSamplingRulesRequest;
+import com.amazonaws.services.xray.model.GetSamplingRulesResult;
+import com.amazonaws.services.xray.model.GetSamplingTargetsRequest;
+import com.amazonaws.services.xray.model.GetSamplingTargetsResult;
+import com.amazonaws.services.xray.model.SamplingRuleRecord;
+import com.amazonaws.services.xray.model.SamplingStatisticsDocument;
+import com.amazonaws.services.xray.model.SamplingTargetDocument;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.opencensus.trace.Sampler;
+import io.opencensus.trace.Span;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.TraceId;
+import java.io.Closeable;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link Sampler} which applies the sampling rules managed in AWS X-Ray.
+ *
+ * <p>Rules are fetched with GetSamplingRules every five minutes, or sooner when X-Ray reports
+ * that they changed, and the usage of each rule is reported with GetSamplingTargets every ten
+ * seconds, which returns the reservoir quota and fixed rate this process should apply. Both run on
+ * a background thread; until the first rules arrive, one span per second and five percent of the
+ * rest are sampled, like the default X-Ray rule.
+ *
+ * <p>A span with a parent follows the decision of its parent. A root span is matched by name
+ * against the URL path of the rules, in priority order. OpenCensus samplers do not see the HTTP
+ * method, the Host header or custom attributes of a request, so rules which filter on them are
+ * ignored.
+ *
+ * <p>Example of usage:
+ *
+ * <pre>{@code
+ * XRaySampler sampler = XRaySampler.create(AWSXRayClientBuilder.defaultClient(), "my-service");
+ * TraceConfig traceConfig = Tracing.getTraceConfig();
+ * traceConfig.updateActiveTraceParams(
+ *     traceConfig.getActiveTraceParams().toBuilder().setSampler(sampler).build());
+ * }</pre>
+ */
+public final class XRaySampler extends Sampler implements Closeable {
+  private static final Logger logger = Logger.getLogger(XRaySampler.class.getName());
+  static final long RULES_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  static final long TARGETS_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  static final String DEFAULT_RULE_NAME = "Default";
+  private static final double DEFAULT_FIXED_RATE = 0.05;
+  private static final int CLIENT_ID_BYTES = 12;
+
+  private static final Comparator<CentralizedRule> PRIORITY_ORDER =
+      Comparator.<CentralizedRule>comparingInt(rule -> rule.priority)
+          .thenComparing(rule -> rule.name);
+
+  private final AWSXRay client;
+  private final String serviceName;
+  private final String serviceType;
+  private final Ticker ticker;
+  private final String clientId;
+  // Replaced as a whole by the refresh thread.
+  private volatile CentralizedRule[] rules;
+  // Only used by the refresh thread.
+  private long rulesFetchedMillis;
+  @Nullable private ScheduledExecutorService executor;
+
+  XRaySampler(AWSXRay client, String serviceName, String serviceType, Ticker ticker) {
+    this.client = checkNotNull(client, "client");
+    this.serviceName = checkNotNull(serviceName, "serviceName");
+    this.serviceType = checkNotNull(serviceType, "serviceType");
+    this.ticker = ticker;
+    this.clientId = newClientId();
+    this.rules =
+        new CentralizedRule[] {
+          new CentralizedRule(
+              DEFAULT_RULE_NAME, Integer.MAX_VALUE, CentralizedRule.WILDCARD, DEFAULT_FIXED_RATE)
+        };
+  }
+
+  /**
+   * Creates a sampler for the given service and starts fetching its sampling rules.
+   *
+   * @param client the X-Ray client used to fetch rules and report usage.
+   * @param serviceName the service name the rules are matched against.
+   * @return the {@code XRaySampler}.
+   */
+  public static XRaySampler create(AWSXRay client, String serviceName) {
+    return create(client, serviceName, "");
+  }
+
+  /**
+   * Creates a sampler for the given service and starts fetching its sampling rules.
+   *
+   * @param client the X-Ray client used to fetch rules and report usage.
+   * @param serviceName the service name the rules are matched against.
+   * @param serviceType the service type the rules are matched against, e.g. {@code
+   *     AWS::EC2::Instance}.
+   * @return the {@code XRaySampler}.
+   */
+  public static XRaySampler create(AWSXRay client, String serviceName, String serviceType) {
+    XRaySampler sampler = new XRaySampler(client, serviceName, serviceType, Ticker.systemTicker());
+    sampler.start();
+    return sampler;
+  }
+
+  private synchronized void start() {
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("XRayExporter-sampling")
+                .build());
+    executor.scheduleWithFixedDelay(
+        this::refreshRules, 0, RULES_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    executor.scheduleWithFixedDelay(
+        this::refreshTargets,
+        TARGETS_INTERVAL_MILLIS,
+        TARGETS_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public boolean shouldSample(
+      @Nullable SpanContext parentContext,
+      @Nullable Boolean hasRemoteParent,
+      TraceId traceId,
+      SpanId spanId,
+      String name,
+      List<Span> parentLinks) {
+    if (parentContext != null && parentContext.isValid()) {
+      return parentContext.getTraceOptions().isSampled();
+    }
+    long now = ticker.read();
+    for (CentralizedRule rule : rules) {
+      if (rule.matches(name)) {
+        return rule.sample(traceId, now);
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String getDescription() {
+    return "XRaySampler{serviceName=" + serviceName + "}";
+  }
+
+  /** Stops fetching sampling rules. The rules fetched so far stay in effect. */
+  @Override
+  public synchronized void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /*
+   * Fetches the rules and replaces the rule table, keeping the usage of rules which remain.
+   */
+  @VisibleForTesting
+  void refreshRules() {
+    try {
+      long startedMillis = System.currentTimeMillis();
+      List<SamplingRuleRecord> records = new ArrayList<SamplingRuleRecord>();
+      String nextToken = null;
+      do {
+        GetSamplingRulesResult result =
+            client.getSamplingRules(new GetSamplingRulesRequest().withNextToken(nextToken));
+        if (result.getSamplingRuleRecords() != null) {
+          records.addAll(result.getSamplingRuleRecords());
+        }
+        nextToken = result.getNextToken();
+      } while (nextToken != null);
+
+      Map<String, CentralizedRule> old = new HashMap<String, CentralizedRule>();
+      for (CentralizedRule rule : rules) {
+        old.put(rule.name, rule);
+      }
+      List<CentralizedRule> table = new ArrayList<CentralizedRule>(records.size());
+      for (SamplingRuleRecord record : records) {
+        if (record.getSamplingRule() == null || record.getSamplingRule().getRuleName() == null) {
+          continue;
+        }
+        CentralizedRule rule =
+            CentralizedRule.create(
+                record.getSamplingRule(),
+                serviceName,
+                serviceType,
+                old.get(record.getSamplingRule().getRuleName()));
+        if (rule != null) {
+          table.add(rule);
+        }
+      }
+      if (table.isEmpty()) {
+        // X-Ray always has a default rule; keep the local one if it was not returned.
+        logger.log(Level.FINE, "No sampling rules apply to " + serviceName);
+        return;
+      }
+      CentralizedRule[] sorted = table.toArray(new CentralizedRule[0]);
+      Arrays.sort(sorted, PRIORITY_ORDER);
+      rules = sorted;
+      rulesFetchedMillis = startedMillis;
+    } catch (RuntimeException e) {
+      logger.log(Level.FINE, "Failed to fetch X-Ray sampling rules", e);
+    }
+  }
+
+  /*
+   * Reports the usage of the rules and applies the returned targets.
+   */
+  @VisibleForTesting
+  void refreshTargets() {
+    try {
+      CentralizedRule[] current = rules;
+      Date now = new Date();
+      List<SamplingStatisticsDocument> statistics = new ArrayList<SamplingStatisticsDocument>();
+      for (CentralizedRule rule : current) {
+        SamplingStatisticsDocument document = rule.takeStatistics(clientId, now);
+        if (document != null) {
+          statistics.add(document);
+        }
+      }
+      if (statistics.isEmpty()) {
+        return;
+      }
+      GetSamplingTargetsResult result =
+          client.getSamplingTargets(
+              new GetSamplingTargetsRequest().withSamplingStatisticsDocuments(statistics));
+      if (result.getSamplingTargetDocuments() != null) {
+        long nowNanos = ticker.read();
+        long nowMillis = System.currentTimeMillis();
+        for (SamplingTargetDocument target : result.getSamplingTargetDocuments()) {
+          CentralizedRule rule = find(current, target.getRuleName());
+          if (rule != null) {
+            rule.update(target, nowNanos, nowMillis);
+          }
+        }
+      }
+      Date modified = result.getLastRuleModification();
+      if (modified != null && modified.getTime() > rulesFetchedMillis) {
+        refreshRules();
+      }
+    } catch (RuntimeException e) {
+      logger.log(Level.FINE, "Failed to fetch X-Ray sampling targets", e);
+    }
+  }
+
+  @Nullable
+  private static CentralizedRule find(CentralizedRule[] rules, @Nullable String name) {
+    for (CentralizedRule rule : rules) {
+      if (rule.name.equals(name)) {
+        return rule;
+      }
+    }
+    return null;
+  }
+
+  @VisibleForTesting
+  List<CentralizedRule> getRules() {
+    return Arrays.asList(rules);
+  }
+
+  private static String newClientId() {
+    byte[] bytes = new byte[CLIENT_ID_BYTES];
+    new SecureRandom().nextBytes(bytes);
+    return BaseEncoding.base16().lowerCase().encode(bytes);
+  }
+}
@@ -24,6 +24,7 @@ import com.google.common.annotations.VisibleForTesting;
 import io.opencensus.trace.Tracing;
 import io.opencensus.trace.export.SpanExporter;
 import io.opencensus.trace.export.SpanExporter.Handler;
+import java.io.IOException;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -47,7 +48,7 @@ public final class XRayTraceExporter {
 
   @GuardedBy("monitor")
   @Nullable
-  private static Handler handler = null;
+  private static XRayExporterHandler handler = null;
 
   private XRayTraceExporter() {}
 
@@ -74,7 +75,51 @@ public final class XRayTraceExporter {
   public static void createAndRegister(AWSXRay client, String serviceName) {
     synchronized (monitor) {
       checkState(handler == null, "XRay exporter is already registered.");
-      Handler newHandler = new XRayExporterHandler(client, serviceName);
+      XRayExporterHandler newHandler = new XRayExporterHandler(client, serviceName);
+      handler = newHandler;
+
+      register(Tracing.getExportComponent().getSpanExporter(), newHandler);
+    }
+  }
+
+  /**
+   * Creates and registers the XRay Trace exporter to the OpenCensus library. Only one XRay exporter
+   * can be registered at any point.
+   *
+   * @param configuration the {@code XRayExporterConfiguration} used to create the exporter.
+   * @throws IllegalStateException if a XRay exporter is already registered.
+   */
+  public static void createAndRegister(XRayExporterConfiguration configuration) {
+    if (configuration.getXRayClient() == null && configuration.getXRayClients().isEmpty()) {
+      configuration =
+          configuration
+              .toBuilder()
+              .setXRayClient(AWSXRayAsyncClientBuilder.defaultClient())
+              .build();
+    }
+    synchronized (monitor) {
+      checkState(handler == null, "XRay exporter is already registered.");
+      XRayExporterHandler newHandler = new XRayExporterHandler(configuration, null);
+      handler = newHandler;
+
+      register(Tracing.getExportComponent().getSpanExporter(), newHandler);
+    }
+  }
+
+  /**
+   * Creates and registers the XRay Trace exporter which sends segments to a local X-Ray daemon over
+   * UDP. The daemon address is read from {@code AWS_XRAY_DAEMON_ADDRESS} and defaults to {@code
+   * 127.0.0.1:2000}. Only one XRay exporter can be registered at any point.
+   *
+   * @param serviceName the {@link Span#localServiceName() local service name} of the process.
+   * @throws IOException if the UDP channel can not be opened.
+   * @throws IllegalStateException if a XRay exporter is already registered.
+   */
+  public static void createAndRegisterWithDaemon(String serviceName) throws IOException {
+    synchronized (monitor) {
+      checkState(handler == null, "XRay exporter is already registered.");
+      DaemonSender daemon = DaemonSender.create();
+      XRayExporterHandler newHandler = new XRayExporterHandler(null, serviceName, daemon);
       handler = newHandler;
 
       register(Tracing.getExportComponent().getSpanExporter(), newHandler);
@@ -92,7 +137,8 @@ public final class XRayTraceExporter {
   }
 
   /**
-   * Unregisters the XRay Trace exporter from the OpenCensus library.
+   * Unregisters the XRay Trace exporter from the OpenCensus library. Spans which are still queued
+   * in the exporter are sent before this returns.
    *
    * @throws IllegalStateException if a XRay exporter is not registered.
    */
@@ -100,6 +146,7 @@ public final class XRayTraceExporter {
     synchronized (monitor) {
       checkState(handler != null, "XRay exporter is not registered.");
       unregister(Tracing.getExportComponent().getSpanExporter());
+      handler.shutdown();
       handler = null;
     }
   }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveRateLimiterTest {
+  private final FakeTicker ticker = new FakeTicker();
+  private final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(0.5, 0.1, 10, ticker);
+
+  @Test
+  public void unlimitedUntilThrottled() {
+    for (int i = 0; i < 100; i++) {
+      assertEquals(0, limiter.reserve(50));
+    }
+    assertEquals(Double.POSITIVE_INFINITY, limiter.getRate());
+  }
+
+  @Test
+  public void firstThrottlingCutsObservedRate() {
+    limiter.reserve(400);
+    ticker.advance(1, TimeUnit.SECONDS);
+    limiter.reserve(100);
+    limiter.onThrottled();
+    assertEquals(200, limiter.getRate(), 0.001);
+
+    // The bucket starts empty: 100 segments take half a second at 200/s.
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(500), limiter.reserve(100));
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertEquals(0, limiter.reserve(100));
+  }
+
+  @Test
+  public void decreasesOncePerSecond() {
+    limiter.reserve(100);
+    limiter.onThrottled();
+    limiter.onThrottled();
+    assertEquals(50, limiter.getRate(), 0.001);
+
+    ticker.advance(1, TimeUnit.SECONDS);
+    limiter.onThrottled();
+    assertEquals(25, limiter.getRate(), 0.001);
+
+    ticker.advance(1, TimeUnit.SECONDS);
+    limiter.onThrottled();
+    assertEquals(12.5, limiter.getRate(), 0.001);
+    ticker.advance(1, TimeUnit.SECONDS);
+    limiter.onThrottled();
+    assertEquals(10, limiter.getRate(), 0.001);
+  }
+
+  @Test
+  public void successesProbeUpAdditively() {
+    limiter.reserve(1000);
+    limiter.onThrottled();
+    assertEquals(500, limiter.getRate(), 0.001);
+
+    // About a second of traffic at the limit adds a tenth of the rate set by the last decrease.
+    for (int i = 0; i < 10; i++) {
+      limiter.onSuccess(50);
+    }
+    assertTrue(limiter.getRate() > 540 && limiter.getRate() < 550, "rate=" + limiter.getRate());
+  }
+
+  @Test
+  public void bucketHoldsOneSecond() {
+    limiter.reserve(100);
+    limiter.onThrottled();
+    ticker.advance(1, TimeUnit.MINUTES);
+    assertEquals(0, limiter.reserve(50));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), limiter.reserve(50));
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.Annotation;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Link;
+import io.opencensus.trace.MessageEvent;
+import io.opencensus.trace.Span.Kind;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Fails when converting a span allocates more than its budget.
+ *
+ * Each shape is converted many times after a warm-up, so caches are filled and the JIT has
+ * compiled the path, and the bytes allocated by the thread are divided by the number of spans.
+ * The budgets are about twice the values measured on Java 17, which leaves room for Java 8 storing
+ * strings as UTF-16. Lower them when the path gets cheaper, and only raise them for a reason.
+ */
+public class AllocationBudgetTest {
+  private static final int WARMUP_ITERATIONS = 20000;
+  private static final int ITERATIONS = 20000;
+
+  // Bytes per span for: new TraceSegment(), SegmentEncoder.encode() to a String.
+  private enum Shape {
+    PLAIN(1600, 832),
+    HTTP(2400, 1600),
+    SQL(3072, 1792),
+    ERROR(2048, 896);
+
+    final long traceSegmentBudget;
+    final long encodeBudget;
+
+    Shape(long traceSegmentBudget, long encodeBudget) {
+      this.traceSegmentBudget = traceSegmentBudget;
+      this.encodeBudget = encodeBudget;
+    }
+  }
+
+  private interface Conversion {
+    int convert(SpanData span) throws Exception;
+  }
+
+  private final com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  private long sink;
+
+  @Test
+  public void traceSegmentStaysWithinBudget() throws Exception {
+    for (Shape shape : Shape.values()) {
+      long bytes =
+          bytesPerSpan(
+              spanData(shape), span -> new TraceSegment("service", span).name.length());
+      assertTrue(
+          bytes <= shape.traceSegmentBudget,
+          "TraceSegment " + shape + ": " + bytes + " > " + shape.traceSegmentBudget + " bytes");
+    }
+  }
+
+  @Test
+  public void encodeStaysWithinBudget() throws Exception {
+    // The handler sends each document as a String.
+    SegmentEncoder encoder = new SegmentEncoder("service");
+    for (Shape shape : Shape.values()) {
+      long bytes =
+          bytesPerSpan(spanData(shape), span -> encoder.encode(span).toString().length());
+      assertTrue(
+          bytes <= shape.encodeBudget,
+          "encode " + shape + ": " + bytes + " > " + shape.encodeBudget + " bytes");
+    }
+  }
+
+  private long bytesPerSpan(SpanData span, Conversion conversion) throws Exception {
+    assumeTrue(
+        threads.isThreadAllocatedMemorySupported(), "Thread allocation counters not supported");
+    threads.setThreadAllocatedMemoryEnabled(true);
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      sink += conversion.convert(span);
+    }
+    long thread = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < ITERATIONS; i++) {
+      sink += conversion.convert(span);
+    }
+    return (threads.getThreadAllocatedBytes(thread) - before) / ITERATIONS;
+  }
+
+  private static SpanData spanData(Shape shape) {
+    Map<String, AttributeValue> attributes = new HashMap<String, AttributeValue>();
+    SpanId parent = null;
+    Kind kind = Kind.SERVER;
+    Status status = Status.OK;
+    switch (shape) {
+      case PLAIN:
+        break;
+      case HTTP:
+        attributes.put(TraceSegment.HTTP_METHOD, AttributeValue.stringAttributeValue("POST"));
+        attributes.put(
+            TraceSegment.HTTP_URL,
+            AttributeValue.stringAttributeValue("https://api.example.com/v1/orders"));
+        attributes.put(
+            TraceSegment.HTTP_USER_AGENT, AttributeValue.stringAttributeValue("curl/7.58.0"));
+        attributes.put(TraceSegment.HTTP_STATUS_CODE, AttributeValue.longAttributeValue(201));
+        break;
+      case SQL:
+        parent = SpanId.fromLowerBase16("00000000000000a1");
+        kind = Kind.CLIENT;
+        attributes.put(
+            TraceSegment.ATTRIB_SQL_EXEC,
+            AttributeValue.stringAttributeValue("SELECT * FROM orders WHERE id = ?"));
+        break;
+      case ERROR:
+        status = Status.INTERNAL.withDescription("connection reset");
+        break;
+      default:
+        throw new AssertionError(shape);
+    }
+    return SpanData.create(
+        SpanContext.create(
+            TraceId.fromLowerBase16("5759e988bd862e3fe1be46a994272793"),
+            SpanId.fromLowerBase16("53995c3f42cd8ad8"),
+            TraceOptions.builder().setIsSampled(true).build(),
+            Tracestate.builder().build()),
+        parent,
+        parent == null ? null : Boolean.FALSE,
+        "Recv.orders",
+        kind,
+        Timestamp.fromMillis(1519629870001L),
+        SpanData.Attributes.create(attributes, 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<Annotation>>emptyList(), 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<MessageEvent>>emptyList(), 0),
+        SpanData.Links.create(Collections.<Link>emptyList(), 0),
+        0,
+        status,
+        Timestamp.fromMillis(1519629870024L));
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import info.tdoc.exporter.trace.xray.AttributeMappers.Mapping;
+import info.tdoc.exporter.trace.xray.AttributeMappers.Section;
+import info.tdoc.exporter.trace.xray.AttributeMappers.Target;
+import org.junit.jupiter.api.Test;
+
+public class AttributeMappersTest {
+
+  @Test
+  public void exactKeyWinsOverPrefix() {
+    Target exact = Target.of(Section.SQL, "url");
+    Target prefix = Target.metadata("db");
+    AttributeMappers mappers =
+        AttributeMappers.builder().mapPrefix("db.", prefix).mapKey("db.instance", exact).build();
+
+    assertSame(exact, mappers.lookup("db.instance").target);
+    Mapping mapping = mappers.lookup("db.user");
+    assertSame(prefix, mapping.target);
+    assertEquals("user", mapping.fieldName("db.user"));
+    assertEquals("url", mappers.lookup("db.instance").fieldName("db.instance"));
+  }
+
+  @Test
+  public void longestPrefixWins() {
+    Target aws = Target.of(Section.AWS);
+    Target dynamo = Target.metadata("dynamodb");
+    AttributeMappers mappers =
+        AttributeMappers.builder()
+            .mapPrefix("aws.", aws)
+            .mapPrefix("aws.dynamodb.", dynamo)
+            .build();
+
+    assertSame(aws, mappers.lookup("aws.operation").target);
+    assertSame(dynamo, mappers.lookup("aws.dynamodb.table").target);
+    assertEquals("table", mappers.lookup("aws.dynamodb.table").fieldName("aws.dynamodb.table"));
+    // a key equal to a prefix has no field name left, so it falls back to the shorter prefix.
+    assertSame(aws, mappers.lookup("aws.dynamodb.").target);
+  }
+
+  @Test
+  public void unmappedKeys() {
+    AttributeMappers mappers = AttributeMappers.defaults();
+    assertNull(mappers.lookup("aws"));
+    assertNull(mappers.lookup("aws."));
+    assertNull(mappers.lookup("http.route"));
+    assertNull(mappers.lookup(""));
+    assertNull(AttributeMappers.builder().build().lookup("anything"));
+  }
+
+  @Test
+  public void defaults() {
+    AttributeMappers mappers = AttributeMappers.defaults();
+    assertEquals(
+        Section.HTTP_REQUEST, mappers.lookup(TraceSegment.HTTP_METHOD).target.getSection());
+    assertTrue(mappers.lookup(TraceSegment.HTTP_METHOD).target.isAnnotation());
+    assertEquals(Section.SQL, mappers.lookup(TraceSegment.ATTRIB_SQL_EXEC).target.getSection());
+    assertEquals(Section.AWS, mappers.lookup("aws.operation").target.getSection());
+    assertEquals("messaging", mappers.lookup("messaging.system").target.getNamespace());
+  }
+
+  @Test
+  public void toBuilderKeepsRules() {
+    AttributeMappers mappers =
+        AttributeMappers.defaults()
+            .toBuilder()
+            .unmapPrefix("aws.")
+            .unmapKey(TraceSegment.HTTP_URL)
+            .mapKey("peer.service", Target.of(Section.AWS, "remote_service"))
+            .build();
+    assertNull(mappers.lookup("aws.operation"));
+    assertNull(mappers.lookup(TraceSegment.HTTP_URL));
+    assertEquals("remote_service", mappers.lookup("peer.service").fieldName("peer.service"));
+    assertEquals(
+        Section.HTTP_REQUEST, mappers.lookup(TraceSegment.HTTP_METHOD).target.getSection());
+    // the defaults are not changed.
+    assertEquals(Section.AWS, AttributeMappers.defaults().lookup("aws.region").target.getSection());
+  }
+
+  @Test
+  public void metadataNeedsNamespace() {
+    assertThrows(IllegalArgumentException.class, () -> Target.of(Section.METADATA));
+    assertThrows(IllegalArgumentException.class, () -> Target.metadata(""));
+  }
+}
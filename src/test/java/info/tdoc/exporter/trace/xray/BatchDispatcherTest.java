@@ -0,0 +1,324 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.xray.AWSXRay;
+import com.amazonaws.services.xray.AbstractAWSXRayAsync;
+import com.amazonaws.services.xray.model.PutTraceSegmentsRequest;
+import com.amazonaws.services.xray.model.PutTraceSegmentsResult;
+import com.amazonaws.services.xray.model.ThrottledException;
+import com.amazonaws.services.xray.model.UnprocessedTraceSegment;
+import io.opencensus.trace.SpanId;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class BatchDispatcherTest {
+  private static final SpanId SPAN_A = SpanId.fromLowerBase16("000000000000000a");
+  private static final SpanId SPAN_B = SpanId.fromLowerBase16("000000000000000b");
+  private static final List<EncodedSegment> CHUNK =
+      Collections.singletonList(new EncodedSegment(SPAN_A, "{}"));
+
+  @Test
+  public void asyncDispatchBoundsOutstandingRequests() throws Exception {
+    PendingXRayAsyncClient client = new PendingXRayAsyncClient();
+    final BatchDispatcher dispatcher = new BatchDispatcher(client, 2, true);
+
+    assertEquals(0, dispatcher.dispatch(Arrays.asList(CHUNK, CHUNK)));
+    assertEquals(2, client.pending.size());
+
+    Thread blocked = new Thread(() -> dispatcher.dispatch(Collections.singletonList(CHUNK)));
+    blocked.start();
+    blocked.join(100);
+    assertTrue(blocked.isAlive());
+    assertEquals(2, client.pending.size());
+
+    client.complete(new PutTraceSegmentsResult());
+    blocked.join(1000);
+    assertFalse(blocked.isAlive());
+    assertFalse(dispatcher.awaitIdle(10, TimeUnit.MILLISECONDS));
+
+    client.complete(
+        new PutTraceSegmentsResult()
+            .withUnprocessedTraceSegments(new UnprocessedTraceSegment().withId("1")));
+    client.fail(new RuntimeException("boom"));
+    assertTrue(dispatcher.awaitIdle(1, TimeUnit.SECONDS));
+    assertEquals(1, dispatcher.getUnprocessedSegmentCount());
+    assertEquals(1, dispatcher.getFailedRequestCount());
+  }
+
+  @Test
+  public void asyncDispatchRequiresAsyncClient() {
+    assertThrows(
+        IllegalArgumentException.class, () -> new BatchDispatcher(new FakeXRayClient(), 2, true));
+  }
+
+  @Test
+  public void acceptsResultWithoutUnprocessedList() throws Exception {
+    FakeXRayClient client = new FakeXRayClient();
+    BatchDispatcher dispatcher = new BatchDispatcher(client, 2);
+    assertEquals(0, dispatcher.dispatch(Arrays.asList(CHUNK, CHUNK)));
+    assertEquals(2, client.documentCount());
+    assertEquals(0, dispatcher.getFailedRequestCount());
+    assertEquals(0, dispatcher.getUnprocessedSegmentCount());
+
+    PendingXRayAsyncClient async = new PendingXRayAsyncClient();
+    BatchDispatcher asyncDispatcher = new BatchDispatcher(async, 2, true);
+    asyncDispatcher.dispatch(Collections.singletonList(CHUNK));
+    async.complete(new PutTraceSegmentsResult());
+    assertTrue(asyncDispatcher.awaitIdle(1, TimeUnit.SECONDS));
+    assertEquals(0, asyncDispatcher.getDroppedSegmentCount());
+  }
+
+  @Test
+  public void syncDispatchRethrowsFailure() {
+    FakeXRayClient client =
+        new FakeXRayClient() {
+          @Override
+          public PutTraceSegmentsResult putTraceSegments(PutTraceSegmentsRequest request) {
+            throw new IllegalStateException("boom");
+          }
+        };
+    BatchDispatcher dispatcher = new BatchDispatcher(client, 2);
+    assertThrows(
+        IllegalStateException.class, () -> dispatcher.dispatch(Arrays.asList(CHUNK, CHUNK)));
+    assertEquals(2, dispatcher.getFailedRequestCount());
+  }
+
+  @Test
+  public void retriesOnlyUnprocessedSegments() {
+    UnprocessingXRayClient client = new UnprocessingXRayClient(SPAN_B.toLowerBase16(), 1);
+    BatchDispatcher dispatcher = retrying(client, false, fastRetries(3, 100));
+    List<EncodedSegment> chunk =
+        Arrays.asList(new EncodedSegment(SPAN_A, "a"), new EncodedSegment(SPAN_B, "b"));
+
+    assertEquals(0, dispatcher.dispatch(Collections.singletonList(chunk)));
+    dispatcher.close();
+    assertEquals(2, client.requests.size());
+    assertEquals(Arrays.asList("a", "b"), client.requests.get(0).getTraceSegmentDocuments());
+    assertEquals(Collections.singletonList("b"), client.requests.get(1).getTraceSegmentDocuments());
+    assertEquals(1, dispatcher.getUnprocessedSegmentCount());
+    assertEquals(1, dispatcher.getRetriedSegmentCount());
+    assertEquals(0, dispatcher.getDroppedSegmentCount());
+  }
+
+  @Test
+  public void dropsSegmentsOutOfRetries() {
+    UnprocessingXRayClient client =
+        new UnprocessingXRayClient(SPAN_A.toLowerBase16(), Integer.MAX_VALUE);
+    BatchDispatcher dispatcher = retrying(client, false, fastRetries(2, 100));
+
+    assertEquals(0, dispatcher.dispatch(Collections.singletonList(CHUNK)));
+    awaitDropped(dispatcher, 1);
+    dispatcher.close();
+    assertEquals(3, client.requests.size());
+    assertEquals(2, dispatcher.getRetriedSegmentCount());
+    assertEquals(1, dispatcher.getDroppedSegmentCount());
+  }
+
+  @Test
+  public void dropsUnknownAndInvalidSegments() {
+    FakeXRayClient client =
+        new FakeXRayClient() {
+          @Override
+          public PutTraceSegmentsResult putTraceSegments(PutTraceSegmentsRequest request) {
+            super.putTraceSegments(request);
+            return new PutTraceSegmentsResult()
+                .withUnprocessedTraceSegments(
+                    new UnprocessedTraceSegment().withId("1"),
+                    new UnprocessedTraceSegment()
+                        .withId(SPAN_A.toLowerBase16())
+                        .withErrorCode("InvalidSegment"));
+          }
+        };
+    BatchDispatcher dispatcher = retrying(client, false, fastRetries(3, 100));
+
+    assertEquals(2, dispatcher.dispatch(Collections.singletonList(CHUNK)));
+    dispatcher.close();
+    assertEquals(1, client.requests.size());
+    assertEquals(0, dispatcher.getRetriedSegmentCount());
+  }
+
+  @Test
+  public void retryBudgetLimitsRetries() {
+    UnprocessingXRayClient client =
+        new UnprocessingXRayClient(SPAN_A.toLowerBase16(), Integer.MAX_VALUE);
+    BatchDispatcher dispatcher = retrying(client, false, fastRetries(3, 1));
+
+    assertEquals(0, dispatcher.dispatch(Collections.singletonList(CHUNK)));
+    dispatcher.close();
+    assertEquals(2, client.requests.size());
+    assertEquals(1, dispatcher.getRetriedSegmentCount());
+    assertEquals(1, dispatcher.getDroppedSegmentCount());
+  }
+
+  @Test
+  public void retriesThrottledRequest() {
+    final AtomicInteger calls = new AtomicInteger();
+    FakeXRayClient client =
+        new FakeXRayClient() {
+          @Override
+          public PutTraceSegmentsResult putTraceSegments(PutTraceSegmentsRequest request) {
+            if (calls.getAndIncrement() == 0) {
+              throw new ThrottledException("slow down");
+            }
+            return super.putTraceSegments(request);
+          }
+        };
+    BatchDispatcher dispatcher = retrying(client, false, fastRetries(3, 100));
+
+    assertEquals(0, dispatcher.dispatch(Collections.singletonList(CHUNK)));
+    dispatcher.close();
+    assertEquals(1, client.documentCount());
+    assertEquals(1, dispatcher.getFailedRequestCount());
+    assertEquals(0, dispatcher.getDroppedSegmentCount());
+  }
+
+  @Test
+  public void asyncRetriesUnprocessedSegments() throws Exception {
+    PendingXRayAsyncClient client = new PendingXRayAsyncClient();
+    BatchDispatcher dispatcher = retrying(client, true, fastRetries(3, 100));
+
+    dispatcher.dispatch(Collections.singletonList(CHUNK));
+    client.complete(
+        new PutTraceSegmentsResult()
+            .withUnprocessedTraceSegments(
+                new UnprocessedTraceSegment().withId(SPAN_A.toLowerBase16())));
+    client.complete(new PutTraceSegmentsResult());
+    dispatcher.close();
+    assertEquals(1, dispatcher.getRetriedSegmentCount());
+    assertEquals(0, dispatcher.getDroppedSegmentCount());
+  }
+
+  @Test
+  public void throttlingSlowsDownRequests() {
+    UnprocessingXRayClient client =
+        new UnprocessingXRayClient(SPAN_A.toLowerBase16(), Integer.MAX_VALUE);
+    AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+    BatchDispatcher dispatcher =
+        new BatchDispatcher(client, 2, false, new RetryPolicy(0), limiter, null);
+
+    assertEquals(1, dispatcher.dispatch(Collections.singletonList(CHUNK)));
+    assertEquals(AdaptiveRateLimiter.DEFAULT_MIN_RATE, limiter.getRate());
+    dispatcher.close();
+  }
+
+  @Test
+  public void spillsSegmentsOutOfRetries() throws Exception {
+    FakeXRayClient client =
+        new FakeXRayClient() {
+          @Override
+          public PutTraceSegmentsResult putTraceSegments(PutTraceSegmentsRequest request) {
+            throw new ThrottledException("slow down");
+          }
+        };
+    Path directory = Files.createTempDirectory("spill");
+    try {
+      SpillQueue spill = new SpillQueue(directory, 1024, 1024);
+      BatchDispatcher dispatcher =
+          new BatchDispatcher(client, 2, false, new RetryPolicy(0), null, spill);
+
+      assertEquals(0, dispatcher.dispatch(Arrays.asList(CHUNK, CHUNK)));
+      assertEquals(2, spill.size());
+      assertEquals(2, dispatcher.getSpilledSegmentCount());
+      assertEquals(0, dispatcher.getDroppedSegmentCount());
+      dispatcher.close();
+    } finally {
+      for (File f : directory.toFile().listFiles()) {
+        f.delete();
+      }
+      directory.toFile().delete();
+    }
+  }
+
+  private static void awaitDropped(BatchDispatcher dispatcher, long count) {
+    long deadline = System.currentTimeMillis() + 1000;
+    while (dispatcher.getDroppedSegmentCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.yield();
+    }
+  }
+
+  private static BatchDispatcher retrying(AWSXRay client, boolean async, RetryPolicy policy) {
+    return new BatchDispatcher(client, 2, async, policy, null, null);
+  }
+
+  private static RetryPolicy fastRetries(int maxRetries, int budget) {
+    return new RetryPolicy(maxRetries, 1, 2, 0, budget);
+  }
+
+  /*
+   * A client which reports one segment unprocessed in the first n requests.
+   */
+  private static class UnprocessingXRayClient extends FakeXRayClient {
+    private final String id;
+    private final AtomicInteger remaining;
+
+    UnprocessingXRayClient(String id, int n) {
+      this.id = id;
+      this.remaining = new AtomicInteger(n);
+    }
+
+    @Override
+    public PutTraceSegmentsResult putTraceSegments(PutTraceSegmentsRequest request) {
+      PutTraceSegmentsResult result = super.putTraceSegments(request);
+      if (remaining.getAndDecrement() > 0) {
+        result.withUnprocessedTraceSegments(
+            new UnprocessedTraceSegment().withId(id).withErrorCode("ThrottledException"));
+      }
+      return result;
+    }
+  }
+
+  /*
+   * An async client which keeps callbacks until the test completes them.
+   */
+  private static final class PendingXRayAsyncClient extends AbstractAWSXRayAsync {
+    final BlockingQueue<AsyncHandler<PutTraceSegmentsRequest, PutTraceSegmentsResult>> pending =
+        new LinkedBlockingQueue<AsyncHandler<PutTraceSegmentsRequest, PutTraceSegmentsResult>>();
+
+    @Override
+    public Future<PutTraceSegmentsResult> putTraceSegmentsAsync(
+        PutTraceSegmentsRequest request,
+        AsyncHandler<PutTraceSegmentsRequest, PutTraceSegmentsResult> handler) {
+      pending.add(handler);
+      return null;
+    }
+
+    void complete(PutTraceSegmentsResult result) throws InterruptedException {
+      pending.take().onSuccess(null, result);
+    }
+
+    void fail(Exception e) throws InterruptedException {
+      pending.take().onError(e);
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.amazonaws.services.xray.model.SamplingRule;
+import com.amazonaws.services.xray.model.SamplingTargetDocument;
+import io.opencensus.trace.TraceId;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class CentralizedRuleTest {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final TraceId TRACE_ID =
+      TraceId.fromBytes(new byte[] {0x70, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 1});
+
+  @Test
+  public void globs() {
+    assertTrue(CentralizedRule.globMatches("*", "/anything"));
+    assertTrue(CentralizedRule.globMatches(null, "/anything"));
+    assertTrue(CentralizedRule.globMatches("/api/*", "/API/users"));
+    assertTrue(CentralizedRule.globMatches("/api/*/items", "/api/1/2/items"));
+    assertTrue(CentralizedRule.globMatches("/user?", "/users"));
+    assertTrue(CentralizedRule.globMatches("a**b", "ab"));
+    assertFalse(CentralizedRule.globMatches("/user?", "/user"));
+    assertFalse(CentralizedRule.globMatches("/api/*", "/app/users"));
+    assertFalse(CentralizedRule.globMatches("", "x"));
+    assertTrue(CentralizedRule.globMatches("", ""));
+  }
+
+  @Test
+  public void quotaIsPerSecond() {
+    CentralizedRule rule = new CentralizedRule("r", 1, "*", 0);
+    rule.update(new SamplingTargetDocument().withReservoirQuota(3), 0, 0);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(rule.sample(TRACE_ID, 10 * SECOND));
+    }
+    assertFalse(rule.sample(TRACE_ID, 10 * SECOND + SECOND / 2));
+    assertTrue(rule.sample(TRACE_ID, 11 * SECOND));
+  }
+
+  @Test
+  public void fixedRateUsesTheTraceId() {
+    CentralizedRule rule = new CentralizedRule("r", 1, "*", 0.5);
+    rule.update(new SamplingTargetDocument().withReservoirQuota(0), 0, 0);
+    // OpenCensus samples on the first eight bytes, 0x70... is above half of Long.MAX_VALUE.
+    assertFalse(rule.sample(TRACE_ID, 0));
+    rule.update(new SamplingTargetDocument().withFixedRate(0.9), 0, 0);
+    assertTrue(rule.sample(TRACE_ID, 0));
+  }
+
+  @Test
+  public void refreshTakesTheFetchedRateAndKeepsTheQuota() {
+    SamplingRule fetched =
+        new SamplingRule()
+            .withRuleName("r")
+            .withPriority(1)
+            .withFixedRate(0.0)
+            .withServiceName("*")
+            .withServiceType("*")
+            .withURLPath("*")
+            .withVersion(1);
+    CentralizedRule old = CentralizedRule.create(fetched, "svc", "", null);
+    old.update(new SamplingTargetDocument().withReservoirQuota(0), 0, 0);
+    assertFalse(old.sample(TRACE_ID, 0));
+
+    CentralizedRule refreshed =
+        CentralizedRule.create(fetched.withFixedRate(0.9), "svc", "", old);
+    assertTrue(refreshed.sample(TRACE_ID, 0));
+    // The quota of 0 still applies, so nothing is borrowed from the reservoir.
+    assertFalse(
+        CentralizedRule.create(fetched.withFixedRate(0.0), "svc", "", refreshed)
+            .sample(TRACE_ID, 0));
+  }
+
+  @Test
+  public void reservoirHoldsUnderContention() throws Exception {
+    CentralizedRule rule = new CentralizedRule("r", 1, "*", 0);
+    rule.update(new SamplingTargetDocument().withReservoirQuota(100), 0, 0);
+    AtomicInteger sampled = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] =
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  return;
+                }
+                for (int i = 0; i < 1000; i++) {
+                  if (rule.sample(TRACE_ID, 5 * SECOND)) {
+                    sampled.incrementAndGet();
+                  }
+                }
+              });
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(100, sampled.get());
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DaemonSenderTest {
+  private LocalXRayDaemon daemon;
+  private DaemonSender sender;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    daemon = new LocalXRayDaemon();
+    sender = new DaemonSender(daemon.getAddress());
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    sender.close();
+    daemon.close();
+  }
+
+  @Test
+  public void parseAddress() {
+    assertEquals(new InetSocketAddress("127.0.0.1", 2000), DaemonSender.parseAddress(null));
+    assertEquals(new InetSocketAddress("127.0.0.1", 2000), DaemonSender.parseAddress(""));
+    assertEquals(
+        new InetSocketAddress("127.0.0.2", 3000), DaemonSender.parseAddress("127.0.0.2:3000"));
+    assertEquals(
+        new InetSocketAddress("127.0.0.3", 2001),
+        DaemonSender.parseAddress("tcp:127.0.0.2:2000 udp:127.0.0.3:2001"));
+    assertThrows(IllegalArgumentException.class, () -> DaemonSender.parseAddress("127.0.0.1"));
+    assertThrows(
+        IllegalArgumentException.class, () -> DaemonSender.parseAddress("tcp:127.0.0.1:2000"));
+  }
+
+  @Test
+  public void sendEachDocumentAsDatagram() throws Exception {
+    assertTrue(sender.send("{\"id\":\"1\"}"));
+    assertTrue(sender.send("{\"id\":\"2\"}"));
+
+    assertEquals("{\"format\": \"json\", \"version\": 1}\n{\"id\":\"1\"}", daemon.receive());
+    assertEquals("{\"format\": \"json\", \"version\": 1}\n{\"id\":\"2\"}", daemon.receive());
+    assertEquals(0, sender.getDroppedCount());
+  }
+
+  @Test
+  public void dropTooLargeDocument() throws Exception {
+    char[] large = new char[DaemonSender.MAX_DATAGRAM_SIZE];
+    Arrays.fill(large, 'a');
+
+    assertFalse(sender.send(new String(large)));
+    assertEquals(1, sender.getDroppedCount());
+  }
+
+  @Test
+  public void sendLargestDocumentWhichFitsIntoDatagram() throws Exception {
+    int largest = DaemonSender.MAX_DATAGRAM_SIZE - DaemonSender.HEADER.length;
+    byte[] document = new byte[largest];
+    Arrays.fill(document, (byte) 'a');
+    assertTrue(sender.send(document));
+    assertEquals(DaemonSender.MAX_DATAGRAM_SIZE, daemon.receive().length());
+
+    // Below 64 KiB, but over the UDP payload limit.
+    byte[] tooLarge = new byte[64 * 1024 - DaemonSender.HEADER.length - 1];
+    assertFalse(sender.send(tooLarge));
+    assertEquals(1, sender.getDroppedCount());
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.opencensus.stats.Aggregation;
+import io.opencensus.stats.View;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class ExporterMetricsTest {
+  @Test
+  public void viewsAreUniqueAndNamedAfterMeasures() {
+    Set<String> names = new HashSet<String>();
+    for (View view : ExporterMetrics.views()) {
+      assertEquals(view.getMeasure().getName(), view.getName().asString());
+      assertTrue(names.add(view.getName().asString()), view.getName().asString());
+    }
+    assertEquals(12, names.size());
+  }
+
+  @Test
+  public void unprocessedSegmentsAreTaggedWithErrorCode() {
+    for (View view : ExporterMetrics.views()) {
+      if (view.getMeasure() == ExporterMetrics.SEGMENTS_UNPROCESSED) {
+        assertEquals(Collections.singletonList(ExporterMetrics.ERROR_CODE), view.getColumns());
+      } else if (view.getMeasure() == ExporterMetrics.REQUEST_LATENCY) {
+        assertTrue(view.getAggregation() instanceof Aggregation.Distribution);
+      } else {
+        assertTrue(view.getColumns().isEmpty());
+      }
+    }
+  }
+
+  @Test
+  public void tagContextsArePreCreated() {
+    assertSame(
+        ExporterMetrics.errorCodeTags("ThrottledException"),
+        ExporterMetrics.errorCodeTags("ThrottledException"));
+    assertSame(
+        ExporterMetrics.errorCodeTags(ExporterMetrics.OTHER_ERROR_CODE),
+        ExporterMetrics.errorCodeTags("SomethingNew"));
+    assertSame(
+        ExporterMetrics.errorCodeTags(ExporterMetrics.OTHER_ERROR_CODE),
+        ExporterMetrics.errorCodeTags(null));
+  }
+
+  @Test
+  public void registersViewsOnce() {
+    ExporterMetrics.registerViews();
+    ExporterMetrics.registerViews();
+    ExporterMetrics.recordRequest(10, 9, 1000000);
+    ExporterMetrics.recordUnprocessed("ThrottledException", 1);
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A ticker which only moves when the test advances it.
+ */
+final class FakeTicker extends Ticker {
+  private long nanos;
+
+  void advance(long duration, TimeUnit unit) {
+    nanos += unit.toNanos(duration);
+  }
+
+  @Override
+  public long read() {
+    return nanos;
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import com.amazonaws.services.xray.AbstractAWSXRay;
+import com.amazonaws.services.xray.model.PutTraceSegmentsRequest;
+import com.amazonaws.services.xray.model.PutTraceSegmentsResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * An in-memory X-Ray client which records every PutTraceSegments request.
+ */
+class FakeXRayClient extends AbstractAWSXRay {
+  final List<PutTraceSegmentsRequest> requests =
+      Collections.synchronizedList(new ArrayList<PutTraceSegmentsRequest>());
+  final AtomicInteger inFlight = new AtomicInteger();
+  final AtomicInteger maxInFlight = new AtomicInteger();
+  volatile long latencyMillis = 0;
+
+  @Override
+  public PutTraceSegmentsResult putTraceSegments(PutTraceSegmentsRequest request) {
+    int n = inFlight.incrementAndGet();
+    maxInFlight.accumulateAndGet(n, Math::max);
+    try {
+      if (latencyMillis > 0) {
+        Thread.sleep(latencyMillis);
+      }
+      requests.add(request);
+      return new PutTraceSegmentsResult();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  int documentCount() {
+    int count = 0;
+    synchronized (requests) {
+      for (PutTraceSegmentsRequest r : requests) {
+        count += r.getTraceSegmentDocuments().size();
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class IdCodecTest {
+  private static final byte FF = (byte) 0xFF;
+
+  @Test
+  public void spanIdMatchesFormatter() {
+    Random random = new Random(1);
+    byte[] spanId = new byte[8];
+    for (int i = 0; i < 100; i++) {
+      random.nextBytes(spanId);
+      assertEquals(formatHex(spanId, 0, 8), IdCodec.spanIdToString(spanId));
+    }
+    assertEquals(
+        "ffffffffffffffff", IdCodec.spanIdToString(new byte[] {FF, FF, FF, FF, FF, FF, FF, FF}));
+  }
+
+  @Test
+  public void traceId() {
+    byte[] traceId = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, FF};
+    assertEquals(
+        "1-5a93c420-05060708090a0b0c0d0e0fff", IdCodec.traceIdToString(traceId, 1519633440L));
+  }
+
+  @Test
+  public void toHexPadsWithZero() {
+    assertEquals("000000000000000a", IdCodec.toHex(10, 16));
+    assertEquals("7fffffffffffffff", IdCodec.toHex(Long.MAX_VALUE, 16));
+    assertEquals("ffffffff", IdCodec.toHex(0xffffffffL, 8));
+    assertEquals("00000001", IdCodec.toHex(1, 8));
+  }
+
+  @Test
+  public void epochOf() {
+    assertEquals(0x5a93c420L, IdCodec.epochOf(new byte[] {0x5a, (byte) 0x93, (byte) 0xc4, 0x20}));
+    // read as a signed 32-bit value like ByteBuffer.getInt
+    assertEquals(-1L, IdCodec.epochOf(new byte[] {FF, FF, FF, FF}));
+  }
+
+  private static String formatHex(byte[] bytes, int offset, int len) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = offset; i < offset + len; i++) {
+      sb.append(String.format("%02x", bytes[i]));
+    }
+    return sb.toString();
+  }
+}
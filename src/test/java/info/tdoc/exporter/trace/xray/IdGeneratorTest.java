@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class IdGeneratorTest {
+
+  @Test
+  public void threadLocalRandomIsShared() {
+    assertTrue(IdGenerator.threadLocalRandom() == IdGenerator.threadLocalRandom());
+  }
+
+  @Test
+  public void generatorsProduceDistinctIds() {
+    for (IdGenerator generator :
+        new IdGenerator[] {IdGenerator.threadLocalRandom(), IdGenerator.secureRandom()}) {
+      Set<Long> ids = new HashSet<>();
+      for (int i = 0; i < 1000; i++) {
+        ids.add(generator.nextId());
+      }
+      assertEquals(1000, ids.size());
+    }
+  }
+
+  @Test
+  public void derivedIdsFitTheirWidth() {
+    IdGenerator allOnes = () -> -1L;
+    assertEquals(Long.MAX_VALUE, TraceSegment.randomSegmentId(allOnes));
+    assertEquals(0xffffffffL, TraceSegment.randomExceptionId(allOnes));
+    assertEquals(
+        "7fffffffffffffff",
+        IdCodec.toHex(TraceSegment.randomSegmentId(allOnes), IdCodec.SPAN_ID_LENGTH));
+  }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+  @Test
+  public void smallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 10; i++) {
+      histogram.record(i);
+    }
+    assertEquals(10, histogram.getCount());
+    assertEquals(5.5, histogram.getMean(), 0.0001);
+    assertEquals(5, histogram.percentile(50));
+    assertEquals(9, histogram.percentile(90));
+    assertEquals(10, histogram.percentile(100));
+    assertEquals(10, histogram.getMax());
+  }
+
+  @Test
+  public void largeValuesKeepRelativePrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 1; value <= 100000; value++) {
+      histogram.record(value);
+    }
+    long p99 = histogram.percentile(99);
+    assertTrue(p99 >= 99000 && p99 <= 99000 * 1.07, "p99=" + p99);
+    assertEquals(100000, histogram.percentile(100));
+  }
+
+  @Test
+  public void bucketsCoverTheirValues() {
+    long[] values = {0, 15, 16, 17, 31, 32, 1000, 123456789L, Long.MAX_VALUE};
+    for (long value : values) {
+      int index = LatencyHistogram.index(value);
+      assertTrue(LatencyHistogram.upperBound(index) >= value, "value=" + value);
+      if (index > 0) {
+        assertTrue(LatencyHistogram.upperBound(index - 1) < value, "value=" + value);
+      }
+    }
+  }
+
+  @Test
+  public void emptyHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.percentile(99));
+    assertEquals(0, histogram.getMean(), 0);
+  }
+}
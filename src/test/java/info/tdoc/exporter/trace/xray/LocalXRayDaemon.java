@@ -0,0 +1,62 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+
+/*
+ * A stand-in for the X-Ray daemon which receives segment datagrams on a loopback port.
+ */
+final class LocalXRayDaemon implements Closeable {
+  private final DatagramSocket socket;
+
+  LocalXRayDaemon() throws IOException {
+    this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    this.socket.setSoTimeout(2000);
+  }
+
+  InetSocketAddress getAddress() {
+    return (InetSocketAddress) socket.getLocalSocketAddress();
+  }
+
+  /*
+   * Returns the next datagram payload, or null if nothing arrives within the timeout.
+   */
+  String receive() throws IOException {
+    byte[] buf = new byte[DaemonSender.MAX_DATAGRAM_SIZE];
+    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+    try {
+      socket.receive(packet);
+    } catch (SocketTimeoutException e) {
+      return null;
+    }
+    return new String(packet.getData(), 0, packet.getLength(), UTF_8);
+  }
+
+  @Override
+  public void close() {
+    socket.close();
+  }
+}
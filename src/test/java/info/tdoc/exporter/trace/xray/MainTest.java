@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.opencensus.trace.export.SpanData;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class MainTest {
+  @Test
+  public void parsesOptions() {
+    Main.Options options =
+        Main.Options.parse(
+            new String[] {
+              "--spans=500", "--rate=1000", "--attributes=2", "--depth=4", "--fanout=2",
+              "--error-rate=0.5", "--sink=api", "--endpoint=http://localhost:2000",
+              "--region=us-east-1", "--async"
+            });
+    assertEquals(500, options.spans);
+    assertEquals(1000, options.rate, 0);
+    assertEquals(2, options.attributes);
+    assertEquals(4, options.depth);
+    assertEquals(2, options.fanout);
+    assertEquals(0.5, options.errorRate, 0);
+    assertEquals("api", options.sink);
+    assertEquals("http://localhost:2000", options.endpoint);
+    assertTrue(options.async);
+  }
+
+  @Test
+  public void defaults() {
+    Main.Options options = Main.Options.parse(new String[0]);
+    assertEquals("stub", options.sink);
+    assertEquals(0, options.rate, 0);
+    assertNull(options.endpoint);
+  }
+
+  @Test
+  public void rejectsInvalidOptions() {
+    assertThrows(IllegalArgumentException.class, () -> parse("--unknown=1"));
+    assertThrows(IllegalArgumentException.class, () -> parse("--spans"));
+    assertThrows(IllegalArgumentException.class, () -> parse("--spans=many"));
+    assertThrows(IllegalArgumentException.class, () -> parse("--error-rate=2"));
+    assertThrows(IllegalArgumentException.class, () -> parse("--sink=file"));
+    assertThrows(IllegalArgumentException.class, () -> parse("--endpoint=http://x"));
+    assertThrows(IllegalArgumentException.class, () -> parse("spans=1"));
+  }
+
+  @Test
+  public void generatesTraceTrees() {
+    Main.Options options = parse("--depth=3", "--fanout=2", "--attributes=3", "--error-rate=1");
+    List<SpanData> spans = new ArrayList<SpanData>();
+    new Main.SpanGenerator(options, new Random(1)).next(spans, 7);
+    assertEquals(7, spans.size());
+    assertNull(spans.get(0).getParentSpanId());
+    for (SpanData span : spans.subList(1, 7)) {
+      assertEquals(spans.get(0).getContext().getTraceId(), span.getContext().getTraceId());
+      assertTrue(span.getParentSpanId() != null);
+    }
+    assertEquals(3, spans.get(0).getAttributes().getAttributeMap().size());
+    assertTrue(!spans.get(0).getStatus().isOk());
+  }
+
+  @Test
+  public void runsAgainstTheStubSink() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Main.run(parse("--spans=250", "--batch=50"), new PrintStream(bytes, true, "UTF-8"));
+    String report = bytes.toString("UTF-8");
+    assertTrue(report.contains("stub received        250 segments"), report);
+    assertTrue(report.contains("dropped segments     0"), report);
+    assertTrue(report.contains("failed export calls  0"), report);
+  }
+
+  private static Main.Options parse(String... args) {
+    return Main.Options.parse(args);
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.xray.model.ThrottledException;
+import com.amazonaws.services.xray.model.UnprocessedTraceSegment;
+import org.junit.jupiter.api.Test;
+
+public class RetryPolicyTest {
+  @Test
+  public void backoffIsJitteredAndCapped() {
+    RetryPolicy policy = new RetryPolicy(10, 100, 1000, 0.1, 10);
+    for (int i = 0; i < 100; i++) {
+      long first = policy.backoffMillis(0);
+      assertTrue(first >= 0 && first <= 100, "first=" + first);
+      long third = policy.backoffMillis(2);
+      assertTrue(third >= 0 && third <= 400, "third=" + third);
+      long late = policy.backoffMillis(62);
+      assertTrue(late >= 0 && late <= 1000, "late=" + late);
+    }
+  }
+
+  @Test
+  public void limitsAttempts() {
+    RetryPolicy policy = new RetryPolicy(2);
+    assertTrue(policy.isEnabled());
+    assertTrue(policy.canRetry(0));
+    assertTrue(policy.canRetry(1));
+    assertFalse(policy.canRetry(2));
+    assertFalse(new RetryPolicy(0).isEnabled());
+  }
+
+  @Test
+  public void budgetIsRefilledByFirstAttempts() {
+    RetryPolicy policy = new RetryPolicy(3, 100, 1000, 0.5, 2);
+    assertTrue(policy.tryWithdraw(2));
+    assertFalse(policy.tryWithdraw(1));
+    policy.deposit(1);
+    assertFalse(policy.tryWithdraw(1));
+    policy.deposit(1);
+    assertTrue(policy.tryWithdraw(1));
+    policy.deposit(100);
+    assertEquals(2.0, policy.getBudget());
+  }
+
+  @Test
+  public void classifiesFailures() {
+    assertTrue(RetryPolicy.isRetryable(new ThrottledException("slow down")));
+    assertTrue(RetryPolicy.isRetryable(serviceException("ThrottlingException", 400)));
+    assertTrue(RetryPolicy.isRetryable(serviceException("InternalFailure", 500)));
+    assertFalse(RetryPolicy.isRetryable(serviceException("InvalidRequestException", 400)));
+    assertFalse(RetryPolicy.isRetryable(new IllegalStateException("boom")));
+
+    assertTrue(RetryPolicy.isRetryable(new UnprocessedTraceSegment().withErrorCode("Throttled")));
+    assertFalse(
+        RetryPolicy.isRetryable(new UnprocessedTraceSegment().withErrorCode("InvalidSegment")));
+  }
+
+  private static AmazonServiceException serviceException(String errorCode, int statusCode) {
+    AmazonServiceException e = new AmazonServiceException(errorCode);
+    e.setErrorCode(errorCode);
+    e.setStatusCode(statusCode);
+    return e;
+  }
+}
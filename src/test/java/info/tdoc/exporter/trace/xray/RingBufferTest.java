@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import info.tdoc.exporter.trace.xray.XRayExporterConfiguration.OverflowPolicy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class RingBufferTest {
+  @Test
+  public void dropNewest() throws Exception {
+    RingBuffer<Integer> buffer =
+        new RingBuffer<Integer>(2, OverflowPolicy.DROP_NEWEST, 0, TimeUnit.MILLISECONDS);
+    assertTrue(buffer.offer(1));
+    assertTrue(buffer.offer(2));
+    assertFalse(buffer.offer(3));
+
+    assertEquals(Arrays.asList(1, 2), drain(buffer));
+    assertEquals(1, buffer.getDroppedCount());
+  }
+
+  @Test
+  public void dropOldest() throws Exception {
+    RingBuffer<Integer> buffer =
+        new RingBuffer<Integer>(2, OverflowPolicy.DROP_OLDEST, 0, TimeUnit.MILLISECONDS);
+    for (int i = 1; i <= 5; i++) {
+      assertTrue(buffer.offer(i));
+    }
+
+    assertEquals(Arrays.asList(4, 5), drain(buffer));
+    assertEquals(3, buffer.getDroppedCount());
+  }
+
+  @Test
+  public void offerAllCountsEvictedElements() throws Exception {
+    RingBuffer<Integer> oldest =
+        new RingBuffer<Integer>(2, OverflowPolicy.DROP_OLDEST, 0, TimeUnit.MILLISECONDS);
+    assertEquals(0, oldest.offerAll(Arrays.asList(1, 2)));
+    assertEquals(3, oldest.offerAll(Arrays.asList(3, 4, 5)));
+    assertEquals(Arrays.asList(4, 5), drain(oldest));
+
+    RingBuffer<Integer> newest =
+        new RingBuffer<Integer>(2, OverflowPolicy.DROP_NEWEST, 0, TimeUnit.MILLISECONDS);
+    assertEquals(3, newest.offerAll(Arrays.asList(1, 2, 3, 4, 5)));
+    assertEquals(Arrays.asList(1, 2), drain(newest));
+    assertEquals(3, newest.getDroppedCount());
+  }
+
+  @Test
+  public void blockUntilTimeout() throws Exception {
+    RingBuffer<Integer> buffer =
+        new RingBuffer<Integer>(1, OverflowPolicy.BLOCK, 50, TimeUnit.MILLISECONDS);
+    assertTrue(buffer.offer(1));
+    long start = System.nanoTime();
+    assertFalse(buffer.offer(2));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(1, buffer.getDroppedCount());
+  }
+
+  @Test
+  public void offerAllBlocksOnceForTheWholeBatch() throws Exception {
+    RingBuffer<Integer> buffer =
+        new RingBuffer<Integer>(1, OverflowPolicy.BLOCK, 50, TimeUnit.MILLISECONDS);
+    long start = System.nanoTime();
+    assertEquals(9, buffer.offerAll(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10)));
+    long elapsed = System.nanoTime() - start;
+    assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(50));
+    assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(250), "blocked " + elapsed + "ns");
+    assertEquals(Arrays.asList(1), drain(buffer));
+  }
+
+  @Test
+  public void blockUntilDrained() throws Exception {
+    final RingBuffer<Integer> buffer =
+        new RingBuffer<Integer>(1, OverflowPolicy.BLOCK, 5, TimeUnit.SECONDS);
+    assertTrue(buffer.offer(1));
+    Thread consumer =
+        new Thread(
+            () -> {
+              try {
+                Thread.sleep(50);
+                drain(buffer);
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+            });
+    consumer.start();
+    assertTrue(buffer.offer(2));
+    consumer.join();
+    assertEquals(Arrays.asList(2), drain(buffer));
+    assertEquals(0, buffer.getDroppedCount());
+  }
+
+  @Test
+  public void wrapAround() throws Exception {
+    RingBuffer<Integer> buffer =
+        new RingBuffer<Integer>(3, OverflowPolicy.DROP_NEWEST, 0, TimeUnit.MILLISECONDS);
+    List<Integer> out = new ArrayList<Integer>();
+    for (int i = 0; i < 10; i++) {
+      buffer.offer(i);
+      buffer.offer(i + 100);
+      buffer.drainTo(out, 2, 0, TimeUnit.MILLISECONDS);
+    }
+    assertEquals(20, out.size());
+    assertEquals(Integer.valueOf(109), out.get(19));
+    assertEquals(0, buffer.size());
+  }
+
+  private static List<Integer> drain(RingBuffer<Integer> buffer) throws InterruptedException {
+    List<Integer> out = new ArrayList<Integer>();
+    buffer.drainTo(out, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS);
+    return out;
+  }
+}
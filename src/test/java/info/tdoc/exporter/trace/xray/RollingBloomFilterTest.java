@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.TraceId;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class RollingBloomFilterTest {
+  private final FakeTicker ticker = new FakeTicker();
+  private final Random random = new Random(1);
+
+  @Test
+  public void dropsPairsSeenBefore() {
+    RollingBloomFilter filter = new RollingBloomFilter(30, TimeUnit.SECONDS, 1000, 0.001, ticker);
+    TraceId traceId = TraceId.generateRandomId(random);
+    SpanId first = SpanId.generateRandomId(random);
+    SpanId second = SpanId.generateRandomId(random);
+    assertTrue(filter.add(traceId, first));
+    assertTrue(filter.add(traceId, second));
+    assertFalse(filter.add(traceId, first));
+    assertTrue(filter.add(TraceId.generateRandomId(random), first));
+  }
+
+  @Test
+  public void lookupDoesNotAdd() {
+    RollingBloomFilter filter = new RollingBloomFilter(30, TimeUnit.SECONDS, 1000, 0.001, ticker);
+    TraceId traceId = TraceId.generateRandomId(random);
+    SpanId spanId = SpanId.generateRandomId(random);
+    assertFalse(filter.mightContain(traceId, spanId));
+    assertFalse(filter.mightContain(traceId, spanId));
+    assertTrue(filter.add(traceId, spanId));
+    assertTrue(filter.mightContain(traceId, spanId));
+    ticker.advance(10, TimeUnit.SECONDS);
+    assertTrue(filter.mightContain(traceId, spanId));
+  }
+
+  @Test
+  public void remembersForTheWindow() {
+    RollingBloomFilter filter = new RollingBloomFilter(30, TimeUnit.SECONDS, 1000, 0.001, ticker);
+    TraceId traceId = TraceId.generateRandomId(random);
+    SpanId spanId = SpanId.generateRandomId(random);
+    assertTrue(filter.add(traceId, spanId));
+    for (int i = 0; i < 3; i++) {
+      ticker.advance(10, TimeUnit.SECONDS);
+      assertFalse(filter.add(traceId, spanId), "after " + (i + 1) * 10 + "s");
+    }
+    // The pair was last added 30s ago, in the generation which is cleared now.
+    ticker.advance(10, TimeUnit.SECONDS);
+    filter.add(TraceId.generateRandomId(random), SpanId.generateRandomId(random));
+    ticker.advance(10, TimeUnit.SECONDS);
+    assertTrue(filter.add(traceId, spanId));
+  }
+
+  @Test
+  public void longPauseForgetsEverything() {
+    RollingBloomFilter filter = new RollingBloomFilter(30, TimeUnit.SECONDS, 1000, 0.001, ticker);
+    TraceId traceId = TraceId.generateRandomId(random);
+    SpanId spanId = SpanId.generateRandomId(random);
+    filter.add(traceId, spanId);
+    ticker.advance(1, TimeUnit.HOURS);
+    assertTrue(filter.add(traceId, spanId));
+  }
+
+  @Test
+  public void falsePositiveRateHoldsAtExpectedLoad() {
+    int expected = 30000;
+    int perGeneration = expected / (RollingBloomFilter.GENERATIONS - 1);
+    RollingBloomFilter filter =
+        new RollingBloomFilter(30, TimeUnit.SECONDS, expected, 0.01, ticker);
+    // Fill the older generations with their share of the expected load, as in steady state.
+    for (int g = 0; g < RollingBloomFilter.GENERATIONS - 1; g++) {
+      for (int i = 0; i < perGeneration; i++) {
+        filter.add(TraceId.generateRandomId(random), SpanId.generateRandomId(random));
+      }
+      ticker.advance(10, TimeUnit.SECONDS);
+    }
+    // New pairs fill the newest generation up to its share.
+    int falsePositives = 0;
+    for (int i = 0; i < perGeneration; i++) {
+      if (!filter.add(TraceId.generateRandomId(random), SpanId.generateRandomId(random))) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < perGeneration * 0.01, "falsePositives=" + falsePositives);
+  }
+
+  @Test
+  public void defaultSizing() {
+    RollingBloomFilter filter =
+        new RollingBloomFilter(
+            60,
+            TimeUnit.SECONDS,
+            XRayExporterConfiguration.DEFAULT_DEDUP_EXPECTED_SPANS,
+            XRayExporterConfiguration.DEFAULT_DEDUP_FALSE_POSITIVE_RATE,
+            ticker);
+    double mebibytes =
+        filter.getBitsPerGeneration() * RollingBloomFilter.GENERATIONS / 8.0 / (1 << 20);
+    assertTrue(mebibytes > 3 && mebibytes < 4, "MiB=" + mebibytes);
+    assertTrue(filter.getHashCount() >= 14 && filter.getHashCount() <= 16);
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import info.tdoc.exporter.trace.xray.AttributeMappers.Section;
+import io.opencensus.trace.AttributeValue;
+import org.junit.jupiter.api.Test;
+
+public class SegmentAttributesTest {
+  private static final AttributeValue GET = AttributeValue.stringAttributeValue("GET");
+  private static final AttributeValue QUERY = AttributeValue.stringAttributeValue("select 1");
+
+  @Test
+  public void routesMappedKeys() {
+    SegmentAttributes captured = new SegmentAttributes(AttributeMappers.defaults());
+    assertTrue(captured.accept("STRING", AttributeValue.stringAttributeValue("x")));
+    assertEquals(0, captured.size());
+
+    assertTrue(captured.accept(TraceSegment.ATTRIB_SQL_EXEC, QUERY));
+    assertTrue(captured.has(Section.SQL));
+    assertFalse(captured.has(Section.HTTP_REQUEST));
+    assertEquals(QUERY, captured.find(Section.SQL, "sanitized_query"));
+
+    assertTrue(captured.accept(TraceSegment.HTTP_METHOD, GET));
+    assertTrue(captured.has(Section.HTTP_REQUEST));
+    assertEquals(GET, captured.find(Section.HTTP_REQUEST, "method"));
+    assertNull(captured.find(Section.HTTP_REQUEST, "url"));
+
+    assertFalse(captured.accept("aws.region", AttributeValue.stringAttributeValue("us-east-1")));
+    assertEquals(Section.AWS, captured.section(2));
+    assertEquals("region", captured.field(2));
+  }
+
+  @Test
+  public void growsAndClears() {
+    SegmentAttributes captured = new SegmentAttributes(AttributeMappers.defaults());
+    for (int i = 0; i < 20; i++) {
+      captured.accept("grpc.key" + i, GET);
+    }
+    assertEquals(20, captured.size());
+    assertEquals("grpc", captured.namespace(19));
+    assertEquals("key19", captured.field(19));
+    captured.clear();
+    assertEquals(0, captured.size());
+    assertFalse(captured.has(Section.METADATA));
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class SegmentBatcherTest {
+  @Test
+  public void splitByDocumentCount() {
+    List<String> docs = new ArrayList<String>();
+    for (int i = 0; i < 7; i++) {
+      docs.add("{\"id\":\"" + i + "\"}");
+    }
+    List<List<String>> chunks = SegmentBatcher.split(docs, 3, 1024);
+    assertEquals(3, chunks.size());
+    assertEquals(docs.subList(0, 3), chunks.get(0));
+    assertEquals(docs.subList(3, 6), chunks.get(1));
+    assertEquals(docs.subList(6, 7), chunks.get(2));
+  }
+
+  @Test
+  public void splitByRequestSize() {
+    // each document takes 10 bytes: 5 chars, 2 escaped quotes and 3 bytes of list overhead.
+    List<String> docs = Arrays.asList("\"abc\"", "\"def\"", "\"ghi\"");
+    assertEquals(10, SegmentBatcher.requestSize("\"abc\""));
+
+    List<List<String>> chunks = SegmentBatcher.split(docs, 50, 25);
+    assertEquals(2, chunks.size());
+    assertEquals(Arrays.asList("\"abc\"", "\"def\""), chunks.get(0));
+    assertEquals(Arrays.asList("\"ghi\""), chunks.get(1));
+  }
+
+  @Test
+  public void oversizedDocumentGetsItsOwnChunk() {
+    List<String> docs = Arrays.asList("a", "bbbbbbbbbbbbbbbbbbbb", "c");
+    List<List<String>> chunks = SegmentBatcher.split(docs, 50, 10);
+    assertEquals(3, chunks.size());
+    assertEquals(Arrays.asList("bbbbbbbbbbbbbbbbbbbb"), chunks.get(1));
+  }
+
+  @Test
+  public void requestSizeCountsUtf8Bytes() {
+    assertEquals(3 + 2, SegmentBatcher.requestSize("\u00e9"));
+    assertEquals(3 + 3, SegmentBatcher.requestSize("\u3042"));
+    assertEquals(3 + 4, SegmentBatcher.requestSize("\ud83d\ude00"));
+    assertEquals(3 + 2, SegmentBatcher.requestSize("\\"));
+  }
+}
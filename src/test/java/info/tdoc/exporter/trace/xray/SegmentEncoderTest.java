@@ -0,0 +1,353 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableMap;
+import info.tdoc.exporter.trace.xray.AttributeMappers.Section;
+import info.tdoc.exporter.trace.xray.AttributeMappers.Target;
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Span.Kind;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import java.util.Collections;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.junit.jupiter.api.Test;
+
+public class SegmentEncoderTest {
+  private static final String serviceName = "testService";
+  private static final SpanId PARENT_ID = SpanId.fromBytes(new byte[] {8, 7, 6, 5, 4, 3, 2, 1});
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private final SegmentEncoder encoder = new SegmentEncoder(serviceName);
+
+  @Test
+  public void rootSpanParity() throws Exception {
+    assertParity(serviceName, span(null, null, sampleAttributes(), Status.OK));
+  }
+
+  @Test
+  public void remoteParentParity() throws Exception {
+    assertParity(serviceName, span(PARENT_ID, true, sampleAttributes(), Status.OK));
+  }
+
+  @Test
+  public void localChildParity() throws Exception {
+    JsonNode node =
+        assertParity(serviceName, span(PARENT_ID, false, sampleAttributes(), Status.OK));
+    assertEquals("subsegment", node.get("type").asText());
+    assertEquals("test", node.get("name").asText());
+  }
+
+  @Test
+  public void errorParity() throws Exception {
+    JsonNode node =
+        assertParity(
+            serviceName,
+            span(null, null, sampleAttributes(), Status.NOT_FOUND.withDescription("missing")));
+    assertTrue(node.get("error").asBoolean());
+    assertEquals("missing", node.get("cause").get("exceptions").get(0).get("message").asText());
+  }
+
+  @Test
+  public void sqlParity() throws Exception {
+    JsonNode node =
+        assertParity(
+            serviceName,
+            span(
+                null,
+                null,
+                ImmutableMap.of(
+                    TraceSegment.ATTRIB_SQL_EXEC,
+                    AttributeValue.stringAttributeValue("select 1")),
+                Status.INTERNAL));
+    JsonNode sql = node.get("subsegments").get(0);
+    assertEquals("select 1", sql.get("sql").get("sanitized_query").asText());
+    assertEquals(node.get("id"), sql.get("parent_id"));
+  }
+
+  @Test
+  public void emptyServiceNameUsesSpanName() throws Exception {
+    JsonNode node = assertParity("", span(null, null, sampleAttributes(), Status.OK));
+    assertEquals("test", node.get("name").asText());
+  }
+
+  @Test
+  public void nameAttributeOverridesSpanName() throws Exception {
+    JsonNode node =
+        assertParity(
+            serviceName,
+            span(
+                null,
+                null,
+                ImmutableMap.of("name", AttributeValue.longAttributeValue(42L)),
+                Status.OK));
+    assertEquals(42L, node.get("annotations").get("name").asLong());
+  }
+
+  @Test
+  public void inProgressSpan() throws Exception {
+    SpanData sd =
+        SpanData.create(
+            sampleSpanContext(),
+            null,
+            null,
+            "test",
+            Kind.SERVER,
+            Timestamp.fromMillis(1519629870001L),
+            SpanData.Attributes.create(sampleAttributes(), 0),
+            SpanData.TimedEvents.create(Collections.emptyList(), 0),
+            SpanData.TimedEvents.create(Collections.emptyList(), 0),
+            SpanData.Links.create(Collections.emptyList(), 0),
+            0,
+            null,
+            null);
+    JsonNode node = mapper.readTree(encoder.encodeToString(sd));
+    assertTrue(node.get("in_progress").asBoolean());
+    assertFalse(node.has("end_time"));
+  }
+
+  @Test
+  public void reuseBufferOnSameThread() throws Exception {
+    SegmentEncoder.Buffer first = encoder.encode(span(null, null, sampleAttributes(), Status.OK));
+    String firstDocument = first.toString();
+    SegmentEncoder.Buffer second =
+        encoder.encode(span(PARENT_ID, true, sampleAttributes(), Status.OK));
+    assertSame(first, second);
+    assertTrue(firstDocument.startsWith("{\"name\":\"testService\""));
+    assertTrue(second.toString().contains("\"namespace\":\"remote\""));
+    assertFalse(second.toString().contains("}{"));
+  }
+
+  @Test
+  public void httpParity() throws Exception {
+    JsonNode node =
+        assertParity(
+            serviceName,
+            span(
+                null,
+                null,
+                ImmutableMap.of(
+                    TraceSegment.HTTP_METHOD, AttributeValue.stringAttributeValue("GET"),
+                    TraceSegment.HTTP_URL, AttributeValue.stringAttributeValue("/users"),
+                    "STRING", AttributeValue.stringAttributeValue("x")),
+                Status.NOT_FOUND));
+    JsonNode http = node.get("http");
+    assertEquals("GET", http.get("request").get("method").asText());
+    assertEquals("/users", http.get("request").get("url").asText());
+    assertEquals("404", http.get("response").get("status").asText());
+    assertEquals("GET", node.get("annotations").get(TraceSegment.HTTP_METHOD).asText());
+  }
+
+  @Test
+  public void httpStatusCodeAttributeWins() throws Exception {
+    JsonNode node =
+        assertParity(
+            serviceName,
+            span(
+                null,
+                null,
+                ImmutableMap.of(
+                    TraceSegment.HTTP_STATUS_CODE, AttributeValue.longAttributeValue(201L)),
+                Status.OK));
+    assertEquals("201", node.get("http").get("response").get("status").asText());
+  }
+
+  @Test
+  public void mappedAttributesParity() throws Exception {
+    JsonNode node =
+        assertParity(
+            serviceName,
+            span(
+                null,
+                null,
+                ImmutableMap.<String, AttributeValue>builder()
+                    .put("aws.operation", AttributeValue.stringAttributeValue("PutItem"))
+                    .put("aws.retries", AttributeValue.longAttributeValue(2L))
+                    .put("grpc.method", AttributeValue.stringAttributeValue("Get"))
+                    .put("messaging.system", AttributeValue.stringAttributeValue("sqs"))
+                    .put("grpc.status", AttributeValue.longAttributeValue(0L))
+                    .put("STRING", AttributeValue.stringAttributeValue("x"))
+                    .build(),
+                Status.OK));
+    assertEquals("PutItem", node.get("aws").get("operation").asText());
+    assertEquals(2L, node.get("aws").get("retries").asLong());
+    assertEquals("Get", node.get("metadata").get("grpc").get("method").asText());
+    assertEquals(0L, node.get("metadata").get("grpc").get("status").asLong());
+    assertEquals("sqs", node.get("metadata").get("messaging").get("system").asText());
+    assertFalse(node.get("annotations").has("aws.operation"));
+    assertTrue(node.get("annotations").has("STRING"));
+  }
+
+  @Test
+  public void customMappersParity() throws Exception {
+    AttributeMappers mappers =
+        AttributeMappers.builder()
+            .mapKey("db.statement", Target.of(Section.SQL, "sanitized_query"))
+            .mapKey("db.type", Target.of(Section.SQL, "database_type"))
+            .mapKey("http.client_ip", Target.of(Section.HTTP_REQUEST, "client_ip"))
+            .mapKey("http.length", Target.of(Section.HTTP_RESPONSE, "content_length"))
+            .build();
+    SpanData sd =
+        span(
+            null,
+            null,
+            ImmutableMap.of(
+                "db.statement", AttributeValue.stringAttributeValue("select 1"),
+                "db.type", AttributeValue.stringAttributeValue("PostgreSQL"),
+                "http.client_ip", AttributeValue.stringAttributeValue("10.0.0.1"),
+                "http.length", AttributeValue.longAttributeValue(42L)),
+            Status.OK);
+    JsonNode expected =
+        mapper.readTree(
+            mapper.writeValueAsString(
+                new TraceSegment(serviceName, sd, IdGenerator.threadLocalRandom(), mappers)));
+    JsonNode actual =
+        mapper.readTree(
+            new SegmentEncoder(
+                    serviceName,
+                    new TraceIdCache(TraceIdCache.DEFAULT_SIZE),
+                    IdGenerator.threadLocalRandom(),
+                    mappers)
+                .encodeToString(sd));
+    assertEquals(withoutRandomIds(expected), withoutRandomIds(actual));
+
+    JsonNode sql = actual.get("subsegments").get(0).get("sql");
+    assertEquals("PostgreSQL", sql.get("database_type").asText());
+    assertEquals("10.0.0.1", actual.get("http").get("request").get("client_ip").asText());
+    assertEquals("42", actual.get("http").get("response").get("content_length").asText());
+    assertEquals("200", actual.get("http").get("response").get("status").asText());
+    assertEquals(1, actual.get("annotations").size());
+  }
+
+  @Test
+  public void embedsLocalChildren() throws Exception {
+    SpanTree root = new SpanTree(span(null, null, sampleAttributes(), Status.OK));
+    SpanTree child =
+        new SpanTree(
+            span(
+                SpanId.fromBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}),
+                false,
+                ImmutableMap.of(
+                    TraceSegment.ATTRIB_SQL_EXEC, AttributeValue.stringAttributeValue("select 1")),
+                Status.OK));
+    root.addChild(child);
+    child.addChild(new SpanTree(span(PARENT_ID, false, sampleAttributes(), Status.OK)));
+
+    JsonNode node = mapper.readTree(encoder.encode(root).toString());
+    assertEquals(serviceName, node.get("name").asText());
+    JsonNode embedded = node.get("subsegments").get(0);
+    assertEquals("test", embedded.get("name").asText());
+    assertFalse(embedded.has("trace_id"));
+    assertFalse(embedded.has("parent_id"));
+    assertFalse(embedded.has("type"));
+    JsonNode sql = embedded.get("subsegments").get(0);
+    assertEquals("select 1", sql.get("sql").get("sanitized_query").asText());
+    assertEquals(node.get("trace_id"), sql.get("trace_id"));
+    JsonNode grandchild = embedded.get("subsegments").get(1);
+    assertEquals("0102030405060708", grandchild.get("id").asText());
+    assertFalse(grandchild.has("subsegments"));
+  }
+
+  @Test
+  public void usesConfiguredIdGenerator() throws Exception {
+    SegmentEncoder encoder =
+        new SegmentEncoder(
+            serviceName, new TraceIdCache(TraceIdCache.DEFAULT_SIZE), () -> 0x0123456789abcdefL);
+    JsonNode node =
+        mapper.readTree(
+            encoder.encodeToString(
+                span(null, null, sampleAttributes(), Status.INTERNAL.withDescription("boom"))));
+    assertEquals("89abcdef", node.get("cause").get("exceptions").get(0).get("id").asText());
+  }
+
+  /*
+   * Checks that the encoder writes the same document as TraceSegment, ignoring random IDs.
+   */
+  private JsonNode assertParity(String name, SpanData sd) throws Exception {
+    JsonNode expected = mapper.readTree(mapper.writeValueAsString(new TraceSegment(name, sd)));
+    JsonNode actual = mapper.readTree(new SegmentEncoder(name).encodeToString(sd));
+    assertEquals(withoutRandomIds(expected), withoutRandomIds(actual));
+    return actual;
+  }
+
+  private static JsonNode withoutRandomIds(JsonNode node) {
+    JsonNode copy = node.deepCopy();
+    if (copy.has("cause")) {
+      ((ObjectNode) copy.get("cause").get("exceptions").get(0)).remove("id");
+    }
+    if (copy.has("subsegments")) {
+      for (JsonNode sub : copy.get("subsegments")) {
+        ((ObjectNode) sub).remove("id");
+      }
+    }
+    return copy;
+  }
+
+  private static SpanData span(
+      @Nullable SpanId parentId,
+      @Nullable Boolean hasRemoteParent,
+      Map<String, AttributeValue> attributes,
+      Status status) {
+    return SpanData.create(
+        sampleSpanContext(),
+        parentId,
+        hasRemoteParent,
+        "test",
+        Kind.SERVER,
+        Timestamp.fromMillis(1519629870001L),
+        SpanData.Attributes.create(attributes, 0),
+        SpanData.TimedEvents.create(Collections.emptyList(), 0),
+        SpanData.TimedEvents.create(Collections.emptyList(), 0),
+        SpanData.Links.create(Collections.emptyList(), 0),
+        0,
+        status,
+        Timestamp.fromMillis(1519630148002L));
+  }
+
+  private static SpanContext sampleSpanContext() {
+    return SpanContext.create(
+        TraceId.fromBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}),
+        SpanId.fromBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}),
+        TraceOptions.builder().setIsSampled(true).build(),
+        Tracestate.builder().build());
+  }
+
+  private static ImmutableMap<String, AttributeValue> sampleAttributes() {
+    return ImmutableMap.of(
+        "BOOL", AttributeValue.booleanAttributeValue(false),
+        "LONG", AttributeValue.longAttributeValue(Long.MAX_VALUE),
+        "DOUBLE", AttributeValue.doubleAttributeValue(0.5),
+        "STRING",
+            AttributeValue.stringAttributeValue(
+                "Judge of a man by his questions rather than by his answers. -- Voltaire"));
+  }
+}
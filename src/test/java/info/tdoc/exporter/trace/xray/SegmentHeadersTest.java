@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import info.tdoc.exporter.trace.xray.SegmentHeaders.Kind;
+import org.junit.jupiter.api.Test;
+
+public class SegmentHeadersTest {
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  @Test
+  public void fragmentsByKind() {
+    SegmentHeaders headers = new SegmentHeaders("my-service", 16);
+    assertEquals("\"name\":\"my-service\",", headers.get("GET /", Kind.SEGMENT).getValue());
+    assertEquals(
+        "\"name\":\"my-service\",\"namespace\":\"remote\",",
+        headers.get("GET /", Kind.REMOTE).getValue());
+    assertEquals(
+        "\"name\":\"GET /\",\"type\":\"subsegment\",",
+        headers.get("GET /", Kind.SUBSEGMENT).getValue());
+    assertEquals("\"name\":\"GET /\",", headers.get("GET /", Kind.EMBEDDED).getValue());
+  }
+
+  @Test
+  public void fragmentsAreCachedPerSpanName() {
+    SegmentHeaders headers = new SegmentHeaders("my-service", 1);
+    assertSame(headers.get("a", Kind.SEGMENT), headers.get("b", Kind.SEGMENT));
+    assertSame(headers.get("a", Kind.SUBSEGMENT), headers.get("a", Kind.SUBSEGMENT));
+    // over the cache size, fragments are still correct.
+    assertEquals(
+        "\"name\":\"b\",\"type\":\"subsegment\",", headers.get("b", Kind.SUBSEGMENT).getValue());
+  }
+
+  @Test
+  public void emptyServiceNameUsesSanitizedSpanName() throws Exception {
+    SegmentHeaders headers = new SegmentHeaders("", 16);
+    JsonNode node = mapper.readTree("{" + headers.get("a<b>", Kind.REMOTE).getValue() + "\"x\":1}");
+    assertEquals("ab", node.get("name").asText());
+    assertEquals("remote", node.get("namespace").asText());
+  }
+
+  @Test
+  public void valuesAreEscaped() throws Exception {
+    SegmentHeaders headers = new SegmentHeaders("say \"hi\"\\", 16);
+    JsonNode node = mapper.readTree("{" + headers.get("x", Kind.SEGMENT).getValue() + "\"x\":1}");
+    assertEquals("say \"hi\"\\", node.get("name").asText());
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.google.common.base.Strings;
+import org.junit.jupiter.api.Test;
+
+public class SegmentNameSanitizerTest {
+
+  @Test
+  public void validNamesAreKept() {
+    String name = "GET /users/{id}";
+    assertEquals("GET /users/id", SegmentNameSanitizer.sanitizeUncached(name));
+    String valid = "Recv.grpc:Service/Method_1 a=b+c%d&e#f\\g-h@i";
+    assertSame(valid, SegmentNameSanitizer.sanitizeUncached(valid));
+    // letters and digits outside ASCII (here CJK ideographs and an Arabic-Indic digit) are allowed.
+    assertEquals("\u65e5\u672c\u0661", SegmentNameSanitizer.sanitizeUncached("\u65e5\u672c\u0661"));
+  }
+
+  @Test
+  public void invalidCharactersAreRemoved() {
+    assertEquals("ab", SegmentNameSanitizer.sanitizeUncached("a<b>"));
+    assertEquals("a b", SegmentNameSanitizer.sanitizeUncached("a (b)"));
+    assertEquals("x", SegmentNameSanitizer.sanitizeUncached("x\u2603!"));
+    assertEquals(
+        SegmentNameSanitizer.DEFAULT_NAME, SegmentNameSanitizer.sanitizeUncached("(*)"));
+    assertEquals(SegmentNameSanitizer.DEFAULT_NAME, SegmentNameSanitizer.sanitizeUncached(""));
+  }
+
+  @Test
+  public void longNamesAreTruncated() {
+    String a = Strings.repeat("a", 300);
+    assertEquals(200, SegmentNameSanitizer.sanitizeUncached(a).length());
+    assertEquals(200, SegmentNameSanitizer.sanitizeUncached("!" + a).length());
+    // a surrogate pair is not split at the limit.
+    String pair = "\ud835\udc00"; // MATHEMATICAL BOLD CAPITAL A
+    String truncated =
+        SegmentNameSanitizer.sanitizeUncached(Strings.repeat("a", 199) + pair + "b");
+    assertEquals(Strings.repeat("a", 199), truncated);
+    assertEquals(
+        Strings.repeat("a", 198) + pair,
+        SegmentNameSanitizer.sanitizeUncached(Strings.repeat("a", 198) + pair + "b"));
+  }
+
+  @Test
+  public void cacheIsBounded() {
+    SegmentNameSanitizer sanitizer = new SegmentNameSanitizer(2);
+    String first = sanitizer.sanitize("a<1>");
+    assertSame(first, sanitizer.sanitize("a<1>"));
+    sanitizer.sanitize("a<2>");
+    sanitizer.sanitize("a<3>");
+    assertEquals(2, sanitizer.cacheSize());
+    assertEquals("a3", sanitizer.sanitize("a<3>"));
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.amazonaws.services.xray.model.PutTraceSegmentsRequest;
+import com.amazonaws.services.xray.model.PutTraceSegmentsResult;
+import com.amazonaws.services.xray.model.ThrottledException;
+import io.opencensus.trace.SpanId;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SpillDrainerTest {
+  private Path directory;
+  private SpillQueue queue;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("spill");
+    queue = new SpillQueue(directory, 1024, 1024);
+    for (int i = 1; i <= 3; i++) {
+      queue.append(
+          new EncodedSegment(
+              SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) i}), "{\"n\":" + i + "}"));
+    }
+  }
+
+  @AfterEach
+  public void tearDown() {
+    File[] files = directory.toFile().listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    directory.toFile().delete();
+  }
+
+  @Test
+  public void replaysInOrder() {
+    FakeXRayClient client = new FakeXRayClient();
+    SpillDrainer drainer = new SpillDrainer(queue, new BatchDispatcher(client, 1), 2, 1024);
+
+    assertTrue(drainer.replayOnce());
+    assertTrue(drainer.replayOnce());
+    assertFalse(drainer.replayOnce());
+    assertEquals(2, client.requests.size());
+    assertEquals(
+        Arrays.asList("{\"n\":1}", "{\"n\":2}"),
+        client.requests.get(0).getTraceSegmentDocuments());
+    assertEquals(Arrays.asList("{\"n\":3}"), client.requests.get(1).getTraceSegmentDocuments());
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void keepsChunkWhileServiceFails() {
+    FakeXRayClient client =
+        new FakeXRayClient() {
+          @Override
+          public PutTraceSegmentsResult putTraceSegments(PutTraceSegmentsRequest request) {
+            throw new ThrottledException("slow down");
+          }
+        };
+    SpillDrainer drainer = new SpillDrainer(queue, new BatchDispatcher(client, 1), 2, 1024);
+
+    assertThrows(ThrottledException.class, drainer::replayOnce);
+    assertEquals(3, queue.size());
+  }
+
+  @Test
+  public void dropsChunkOnPermanentFailure() {
+    FakeXRayClient client =
+        new FakeXRayClient() {
+          @Override
+          public PutTraceSegmentsResult putTraceSegments(PutTraceSegmentsRequest request) {
+            throw new IllegalStateException("boom");
+          }
+        };
+    SpillDrainer drainer = new SpillDrainer(queue, new BatchDispatcher(client, 1), 2, 1024);
+
+    assertTrue(drainer.replayOnce());
+    assertEquals(1, queue.size());
+  }
+}
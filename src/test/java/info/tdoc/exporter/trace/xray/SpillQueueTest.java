@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.opencensus.trace.SpanId;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SpillQueueTest {
+  private static final int FILE_SIZE = 256;
+
+  private Path directory;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("spill");
+  }
+
+  @AfterEach
+  public void tearDown() {
+    File[] files = directory.toFile().listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    directory.toFile().delete();
+  }
+
+  @Test
+  public void keepsOrder() throws IOException {
+    SpillQueue queue = new SpillQueue(directory, 4 * FILE_SIZE, FILE_SIZE);
+    for (int i = 1; i <= 3; i++) {
+      assertTrue(queue.append(segment(i)));
+    }
+    assertEquals(3, queue.size());
+
+    assertEquals(documents(1, 2), documents(queue.peek(2, Integer.MAX_VALUE)));
+    assertEquals(documents(1, 2, 3), documents(queue.peek(10, Integer.MAX_VALUE)));
+    queue.remove(2);
+    List<EncodedSegment> rest = queue.peek(10, Integer.MAX_VALUE);
+    assertEquals(documents(3), documents(rest));
+    assertEquals(spanId(3), rest.get(0).spanId);
+    queue.remove(1);
+    assertTrue(queue.isEmpty());
+    assertTrue(queue.peek(10, Integer.MAX_VALUE).isEmpty());
+  }
+
+  @Test
+  public void peekStopsAtMaxBytes() throws IOException {
+    SpillQueue queue = new SpillQueue(directory, 4 * FILE_SIZE, FILE_SIZE);
+    for (int i = 1; i <= 3; i++) {
+      queue.append(segment(i));
+    }
+    // Every document is 11 bytes; the first one is returned even if it exceeds the limit.
+    assertEquals(documents(1), documents(queue.peek(10, 1)));
+    assertEquals(documents(1, 2), documents(queue.peek(10, 22)));
+  }
+
+  @Test
+  public void rollsFilesWithinMaxBytes() throws IOException {
+    SpillQueue queue = new SpillQueue(directory, 2 * FILE_SIZE, FILE_SIZE);
+    int appended = 0;
+    while (queue.append(segment(appended + 1))) {
+      appended++;
+    }
+    // (256 - 16) / (12 + 11) records per file.
+    assertEquals(20, appended);
+    assertEquals(2, spillFiles());
+
+    // Reading spans files and deletes the ones read.
+    queue.remove(10);
+    assertEquals(documents(11), documents(queue.peek(1, Integer.MAX_VALUE)));
+    assertEquals(1, spillFiles());
+    assertTrue(queue.append(segment(21)));
+    assertEquals(2, spillFiles());
+  }
+
+  @Test
+  public void survivesRestart() throws IOException {
+    SpillQueue queue = new SpillQueue(directory, 4 * FILE_SIZE, FILE_SIZE);
+    for (int i = 1; i <= 15; i++) {
+      queue.append(segment(i));
+    }
+    queue.remove(2);
+    queue.close();
+
+    SpillQueue reopened = new SpillQueue(directory, 4 * FILE_SIZE, FILE_SIZE);
+    assertEquals(13, reopened.size());
+    List<EncodedSegment> segments = reopened.peek(20, Integer.MAX_VALUE);
+    assertEquals(documents(3, 4, 5, 6, 7, 8, 9, 10), documents(segments));
+    reopened.remove(8);
+    assertEquals(documents(11, 12, 13, 14, 15), documents(reopened.peek(20, Integer.MAX_VALUE)));
+
+    // Appends continue after the last record.
+    assertTrue(reopened.append(segment(16)));
+    reopened.remove(5);
+    assertEquals(documents(16), documents(reopened.peek(20, Integer.MAX_VALUE)));
+  }
+
+  @Test
+  public void ignoresTornRecord() throws IOException {
+    SpillQueue queue = new SpillQueue(directory, 4 * FILE_SIZE, FILE_SIZE);
+    queue.append(segment(1));
+    queue.close();
+    // A length pointing past the end of the file, as if the process died while writing.
+    File file = directory.toFile().listFiles()[0];
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(SpillQueue.HEADER_SIZE + 23);
+      raf.writeInt(FILE_SIZE);
+    }
+
+    SpillQueue reopened = new SpillQueue(directory, 4 * FILE_SIZE, FILE_SIZE);
+    assertEquals(documents(1), documents(reopened.peek(10, Integer.MAX_VALUE)));
+    assertTrue(reopened.append(segment(2)));
+    assertEquals(documents(1, 2), documents(reopened.peek(10, Integer.MAX_VALUE)));
+  }
+
+  @Test
+  public void rejectsOversizedDocument() throws IOException {
+    SpillQueue queue = new SpillQueue(directory, 4 * FILE_SIZE, FILE_SIZE);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < FILE_SIZE; i++) {
+      sb.append('x');
+    }
+    assertFalse(queue.append(new EncodedSegment(spanId(1), sb.toString())));
+    assertTrue(queue.isEmpty());
+  }
+
+  private int spillFiles() {
+    return directory.toFile().listFiles().length;
+  }
+
+  private static EncodedSegment segment(int n) {
+    return new EncodedSegment(spanId(n), document(n));
+  }
+
+  private static String document(int n) {
+    return String.format("{\"n\":%05d}", n);
+  }
+
+  private static SpanId spanId(int n) {
+    return SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) n});
+  }
+
+  private static List<String> documents(int... ns) {
+    List<String> documents = new ArrayList<String>();
+    for (int n : ns) {
+      documents.add(document(n));
+    }
+    return documents;
+  }
+
+  private static List<String> documents(List<EncodedSegment> segments) {
+    List<String> documents = new ArrayList<String>();
+    for (EncodedSegment segment : segments) {
+      documents.add(segment.document);
+    }
+    return documents;
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class SystemCoarseClockTest {
+
+  @Test
+  public void truncateToMinute() {
+    assertEquals(1546300800L, SystemCoarseClock.truncateToMinute(1546300800000L));
+    assertEquals(1546300800L, SystemCoarseClock.truncateToMinute(1546300859999L));
+    assertEquals(1546300860L, SystemCoarseClock.truncateToMinute(1546300860000L));
+    assertEquals(-60L, SystemCoarseClock.truncateToMinute(-1L));
+  }
+
+  @Test
+  public void systemClockIsWithinOneTickOfNow() {
+    long before = SystemCoarseClock.truncateToMinute(System.currentTimeMillis());
+    long value = CoarseClock.system().minuteEpochSecond();
+    long after =
+        SystemCoarseClock.truncateToMinute(
+            System.currentTimeMillis() + SystemCoarseClock.TICK_MILLIS);
+    assertEquals(0, value % 60);
+    assertTrue(before - 60 <= value && value <= after, "value=" + value);
+  }
+}
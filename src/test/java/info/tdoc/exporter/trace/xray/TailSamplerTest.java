@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Span.Kind;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class TailSamplerTest {
+  private final FakeTicker ticker = new FakeTicker();
+  private final TailSampler sampler = new TailSampler(10, TimeUnit.SECONDS, 100, 0, ticker);
+  private final List<SpanData> out = new ArrayList<SpanData>();
+
+  @Test
+  public void ordinaryTracesAreDiscardedAfterTheWindow() {
+    sampler.add(span(1, 2, 10, Status.OK), out);
+    sampler.add(span(1, 1, 20, Status.OK), out);
+    sampler.expire(out);
+    assertEquals(0, out.size());
+    assertEquals(2, sampler.getBufferedSpanCount());
+
+    ticker.advance(10, TimeUnit.SECONDS);
+    sampler.expire(out);
+    assertEquals(0, out.size());
+    assertEquals(0, sampler.getBufferedSpanCount());
+    assertEquals(2, sampler.getDiscardedSpanCount());
+  }
+
+  @Test
+  public void failedTracesAreKept() {
+    sampler.add(span(1, 2, 10, Status.INTERNAL), out);
+    sampler.add(span(1, 1, 20, Status.OK), out);
+    sampler.add(span(2, 1, 20, Status.RESOURCE_EXHAUSTED), out);
+    sampler.add(span(3, 1, 20, Status.OK), out);
+    ticker.advance(10, TimeUnit.SECONDS);
+    sampler.expire(out);
+    assertEquals(3, out.size());
+    assertEquals(1, sampler.getDiscardedSpanCount());
+  }
+
+  @Test
+  public void httpErrorsAreInteresting() {
+    assertTrue(TailSampler.isInteresting(span(1, 1, 10, Status.OK, 503)));
+    assertTrue(TailSampler.isInteresting(span(1, 1, 10, Status.OK, 429)));
+    assertFalse(TailSampler.isInteresting(span(1, 1, 10, Status.OK, 200)));
+    assertFalse(TailSampler.isInteresting(span(1, 1, 10, Status.OK)));
+  }
+
+  @Test
+  public void lateSpansFollowTheDecision() {
+    sampler.add(span(1, 1, 10, Status.INTERNAL), out);
+    sampler.add(span(2, 1, 10, Status.OK), out);
+    sampler.flushAll(out);
+    assertEquals(1, out.size());
+
+    sampler.add(span(1, 2, 10, Status.OK), out);
+    sampler.add(span(2, 2, 10, Status.OK), out);
+    assertEquals(2, out.size());
+    assertEquals(0, sampler.getBufferedSpanCount());
+    assertEquals(2, sampler.getDiscardedSpanCount());
+  }
+
+  @Test
+  public void sampleRateOneKeepsEverything() {
+    TailSampler all = new TailSampler(10, TimeUnit.SECONDS, 100, 1, ticker);
+    for (int i = 1; i <= 20; i++) {
+      all.add(span(i, 1, 10, Status.OK), out);
+    }
+    all.flushAll(out);
+    assertEquals(20, out.size());
+  }
+
+  @Test
+  public void oldestTracesAreDecidedOverTheMemoryCap() {
+    TailSampler small = new TailSampler(10, TimeUnit.SECONDS, 3, 0, ticker);
+    small.add(span(1, 1, 10, Status.INTERNAL), out);
+    small.add(span(1, 2, 10, Status.OK), out);
+    small.add(span(2, 1, 10, Status.OK), out);
+    assertEquals(0, out.size());
+    small.add(span(3, 1, 10, Status.OK), out);
+    assertEquals(2, out.size());
+    assertEquals(2, small.getBufferedSpanCount());
+  }
+
+  @Test
+  public void latencyOutliersAreKept() {
+    for (int i = 1; i <= 200; i++) {
+      sampler.add(span(i, 1, 10 + i % 10, Status.OK), out);
+    }
+    sampler.flushAll(out);
+    assertEquals(Long.MAX_VALUE, sampler.getOutlierMicros());
+    ticker.advance(1, TimeUnit.MINUTES);
+    sampler.expire(out);
+    assertTrue(sampler.getOutlierMicros() < 20 * 1000, "" + sampler.getOutlierMicros());
+
+    sampler.add(span(201, 1, 15, Status.OK), out);
+    sampler.add(span(202, 1, 1000, Status.OK), out);
+    sampler.flushAll(out);
+    assertEquals(1, out.size());
+    assertEquals(traceId(202), out.get(0).getContext().getTraceId());
+  }
+
+  private static SpanData span(int trace, int spanId, int millis, Status status) {
+    return span(trace, spanId, millis, status, 0);
+  }
+
+  private static SpanData span(int trace, int spanId, int millis, Status status, int httpStatus) {
+    Map<String, AttributeValue> attributes =
+        httpStatus == 0
+            ? Collections.<String, AttributeValue>emptyMap()
+            : Collections.singletonMap(
+                TraceSegment.HTTP_STATUS_CODE, AttributeValue.longAttributeValue(httpStatus));
+    return SpanData.create(
+        SpanContext.create(
+            traceId(trace),
+            SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) spanId}),
+            TraceOptions.builder().setIsSampled(true).build(),
+            Tracestate.builder().build()),
+        null,
+        null,
+        "span" + spanId,
+        Kind.SERVER,
+        Timestamp.fromMillis(1519629870000L),
+        SpanData.Attributes.create(attributes, 0),
+        SpanData.TimedEvents.create(Collections.emptyList(), 0),
+        SpanData.TimedEvents.create(Collections.emptyList(), 0),
+        SpanData.Links.create(Collections.emptyList(), 0),
+        0,
+        status,
+        Timestamp.fromMillis(1519629870000L + millis));
+  }
+
+  private static TraceId traceId(int n) {
+    byte[] bytes = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 0, 0, 0, 0, 0, 0, 0, 0};
+    bytes[14] = (byte) (n >> 8);
+    bytes[15] = (byte) n;
+    return TraceId.fromBytes(bytes);
+  }
+}
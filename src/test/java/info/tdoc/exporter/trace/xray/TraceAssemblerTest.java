@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import io.opencensus.common.Timestamp;
+import io.opencensus.trace.Span.Kind;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.junit.jupiter.api.Test;
+
+public class TraceAssemblerTest {
+  private final FakeTicker ticker = new FakeTicker();
+  private final TraceAssembler assembler =
+      new TraceAssembler(10, TimeUnit.SECONDS, 100, ticker);
+  private final List<SpanTree> out = new ArrayList<SpanTree>();
+
+  @Test
+  public void rootWithoutChildrenIsEmittedAtOnce() {
+    SpanData root = span(1, 1, 0, null);
+    assembler.add(root, out);
+    assertEquals(1, out.size());
+    assertSame(root, out.get(0).span);
+    assertNull(out.get(0).getChildren());
+    assertEquals(0, assembler.getBufferedSpanCount());
+  }
+
+  @Test
+  public void childrenAreNestedIntoTheirRoot() {
+    // grandchild, child and root end in this order.
+    assembler.add(span(1, 3, 2, false), out);
+    assembler.add(span(1, 4, 1, false), out);
+    assembler.add(span(1, 2, 1, false), out);
+    assertEquals(0, out.size());
+    assertEquals(3, assembler.getBufferedSpanCount());
+
+    SpanData root = span(1, 1, 0, true);
+    assembler.add(root, out);
+    assertEquals(1, out.size());
+    SpanTree tree = out.get(0);
+    assertSame(root, tree.span);
+    assertEquals(4, tree.size());
+    assertEquals(2, tree.getChildren().size());
+    SpanTree child = tree.getChildren().get(1);
+    assertEquals(spanId(2), child.span.getContext().getSpanId());
+    assertEquals(spanId(3), child.getChildren().get(0).span.getContext().getSpanId());
+    assertEquals(0, assembler.getBufferedSpanCount());
+  }
+
+  @Test
+  public void orphansAreFlushedAfterTheWindow() {
+    assembler.add(span(1, 3, 2, false), out);
+    assembler.add(span(1, 2, 1, false), out);
+    ticker.advance(5, TimeUnit.SECONDS);
+    assembler.add(span(2, 5, 4, false), out);
+    assembler.expire(out);
+    assertEquals(0, out.size());
+
+    ticker.advance(5, TimeUnit.SECONDS);
+    assembler.expire(out);
+    assertEquals(1, out.size());
+    assertEquals(spanId(2), out.get(0).span.getContext().getSpanId());
+    assertEquals(2, out.get(0).size());
+    assertEquals(1, assembler.getBufferedSpanCount());
+
+    ticker.advance(5, TimeUnit.SECONDS);
+    assembler.expire(out);
+    assertEquals(2, out.size());
+    assertEquals(0, assembler.getBufferedSpanCount());
+  }
+
+  @Test
+  public void lateChildIsBufferedUntilTheWindow() {
+    assembler.add(span(1, 1, 0, null), out);
+    assembler.add(span(1, 2, 1, false), out);
+    assertEquals(1, out.size());
+    assertEquals(1, assembler.getBufferedSpanCount());
+    assembler.flushAll(out);
+    assertEquals(2, out.size());
+    assertEquals(spanId(2), out.get(1).span.getContext().getSpanId());
+  }
+
+  @Test
+  public void oldestTracesAreFlushedOverTheMemoryCap() {
+    TraceAssembler small = new TraceAssembler(10, TimeUnit.SECONDS, 3, ticker);
+    small.add(span(1, 2, 1, false), out);
+    small.add(span(1, 3, 1, false), out);
+    small.add(span(2, 2, 1, false), out);
+    assertEquals(0, out.size());
+    small.add(span(3, 2, 1, false), out);
+    assertEquals(2, out.size());
+    assertEquals(traceId(1), out.get(0).span.getContext().getTraceId());
+    assertEquals(2, small.getBufferedSpanCount());
+  }
+
+  private static SpanData span(
+      int trace, int spanId, int parentSpanId, @Nullable Boolean hasRemoteParent) {
+    return SpanData.create(
+        SpanContext.create(
+            traceId(trace),
+            spanId(spanId),
+            TraceOptions.builder().setIsSampled(true).build(),
+            Tracestate.builder().build()),
+        parentSpanId == 0 ? null : spanId(parentSpanId),
+        hasRemoteParent,
+        "span" + spanId,
+        Kind.SERVER,
+        Timestamp.fromMillis(1519629870001L),
+        SpanData.Attributes.create(Collections.emptyMap(), 0),
+        SpanData.TimedEvents.create(Collections.emptyList(), 0),
+        SpanData.TimedEvents.create(Collections.emptyList(), 0),
+        SpanData.Links.create(Collections.emptyList(), 0),
+        0,
+        Status.OK,
+        Timestamp.fromMillis(1519630148002L));
+  }
+
+  private static TraceId traceId(int n) {
+    byte[] bytes = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 0};
+    bytes[15] = (byte) n;
+    return TraceId.fromBytes(bytes);
+  }
+
+  private static SpanId spanId(int n) {
+    return SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) n});
+  }
+}
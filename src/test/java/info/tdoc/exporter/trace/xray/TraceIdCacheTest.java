@@ -0,0 +1,88 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import io.opencensus.trace.TraceId;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+
+public class TraceIdCacheTest {
+  private final Random random = new Random(1);
+  private final AtomicInteger conversions = new AtomicInteger();
+  private final AtomicInteger minute = new AtomicInteger();
+
+  // Converts like the real cache but with a controllable minute.
+  private final Function<TraceId, String> converter =
+      traceId -> {
+        conversions.incrementAndGet();
+        return IdCodec.traceIdToString(traceId.getBytes(), minute.get() * 60L);
+      };
+
+  @Test
+  public void spansOfOneTraceKeepTheirEpoch() {
+    TraceIdCache cache = new TraceIdCache(16, converter);
+    TraceId traceId = TraceId.generateRandomId(random);
+
+    String first = cache.get(traceId);
+    minute.incrementAndGet();
+    assertSame(first, cache.get(traceId));
+    assertSame(first, cache.get(TraceId.fromBytes(traceId.getBytes())));
+    assertEquals(1, conversions.get());
+  }
+
+  @Test
+  public void collidingTraceEvictsPreviousOne() {
+    TraceIdCache cache = new TraceIdCache(1, converter);
+    TraceId a = TraceId.generateRandomId(random);
+    TraceId b = TraceId.generateRandomId(random);
+
+    String first = cache.get(a);
+    cache.get(b);
+    minute.incrementAndGet();
+    String evicted = cache.get(a);
+    assertEquals(3, conversions.get());
+    assertEquals(first.substring(11), evicted.substring(11));
+  }
+
+  @Test
+  public void sizeIsRoundedUpToPowerOfTwo() {
+    assertEquals(1, new TraceIdCache(1).size());
+    assertEquals(8, new TraceIdCache(5).size());
+    assertEquals(8192, new TraceIdCache(TraceIdCache.DEFAULT_SIZE).size());
+  }
+
+  @Test
+  public void defaultConverter() {
+    TraceId traceId = TraceId.generateRandomId(random);
+    assertEquals(
+        TraceSegment.convertToAmazonTraceID(traceId).substring(11),
+        new TraceIdCache(16).get(traceId).substring(11));
+  }
+
+  @Test
+  public void injectedClock() {
+    // an all-zero trace ID has no plausible epoch, so the clock supplies it.
+    TraceId traceId = TraceId.fromBytes(new byte[TraceId.SIZE]);
+    TraceIdCache cache = new TraceIdCache(16, () -> 0x5c2ab280L);
+    assertEquals("1-5c2ab280-000000000000000000000000", cache.get(traceId));
+  }
+}
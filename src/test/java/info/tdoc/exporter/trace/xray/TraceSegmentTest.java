@@ -89,6 +89,38 @@ public class TraceSegmentTest {
     }
   }
 
+  @Test
+  public void httpAttributesPopulateHttpBlock() {
+    final SpanData sd =
+        SpanData.create(
+            sampleSpanContext(),
+            null,
+            null,
+            "test",
+            Kind.SERVER,
+            Timestamp.fromMillis(1519629870001L),
+            SpanData.Attributes.create(
+                ImmutableMap.of(
+                    TraceSegment.HTTP_METHOD, AttributeValue.stringAttributeValue("POST"),
+                    TraceSegment.HTTP_URL, AttributeValue.stringAttributeValue("/orders"),
+                    TraceSegment.HTTP_USER_AGENT, AttributeValue.stringAttributeValue("curl")),
+                0),
+            SpanData.TimedEvents.create(Lists.newArrayList(), 0),
+            SpanData.TimedEvents.create(Lists.newArrayList(), 0),
+            SpanData.Links.create(Lists.newArrayList(), 0),
+            0,
+            Status.UNAVAILABLE,
+            Timestamp.fromMillis(1519630148002L));
+
+    TraceSegment tr = new TraceSegment(serviceName, sd);
+    assertEquals("POST", tr.http.request.method);
+    assertEquals("/orders", tr.http.request.url);
+    assertEquals("curl", tr.http.request.user_agent);
+    assertEquals("503", tr.http.response.status);
+    assertEquals("POST", tr.annotations.get(TraceSegment.HTTP_METHOD));
+    assertEquals("test", tr.annotations.get("name"));
+  }
+
   private static SpanContext sampleSpanContext() {
     return SpanContext.create(
         TraceId.fromBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}),
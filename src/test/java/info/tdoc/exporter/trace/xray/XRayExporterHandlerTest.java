@@ -21,6 +21,8 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import info.tdoc.exporter.trace.xray.XRayExporterConfiguration.OverflowPolicy;
+import io.opencensus.common.Duration;
 import io.opencensus.common.Timestamp;
 import io.opencensus.trace.Annotation;
 import io.opencensus.trace.AttributeValue;
@@ -44,10 +46,18 @@ import org.junit.jupiter.api.TestInstance;
 import org.junit.jupiter.api.TestInstance.Lifecycle;
 import org.junit.jupiter.api.extension.ExtendWith;
 import com.amazonaws.services.xray.AWSXRay;
+import com.amazonaws.services.xray.AbstractAWSXRay;
+import com.amazonaws.services.xray.model.PutTraceSegmentsRequest;
+import com.amazonaws.services.xray.model.PutTraceSegmentsResult;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class XRayExporterHandlerTest {
   private static final byte FF = (byte) 0xFF;
@@ -83,6 +93,492 @@ public class XRayExporterHandlerTest {
     // TODO: mock
   }
 
+  @Test
+  public void exportToDaemonSendsOneDatagramPerSpan() throws Exception {
+    try (LocalXRayDaemon daemon = new LocalXRayDaemon();
+        DaemonSender sender = new DaemonSender(daemon.getAddress())) {
+      XRayExporterHandler daemonHandler = new XRayExporterHandler(null, "test", sender);
+      daemonHandler.export(Lists.newArrayList(sampleSpanData("a"), sampleSpanData("b")));
+
+      String first = daemon.receive();
+      String second = daemon.receive();
+      assertTrue(first.startsWith("{\"format\": \"json\", \"version\": 1}\n{"));
+      assertTrue(first.contains("\"trace_id\":\"1-"));
+      assertTrue(second.startsWith("{\"format\": \"json\", \"version\": 1}\n{"));
+      assertEquals(0, sender.getDroppedCount());
+    }
+  }
+
+  @Test
+  public void exportToDaemonSplitsTreesOverTheDatagramLimit() throws Exception {
+    SpanId rootId = sampleSpanContext().getSpanId();
+    SpanContext childContext =
+        SpanContext.create(
+            sampleSpanContext().getTraceId(),
+            SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 2, 1}),
+            sampleSpanContext().getTraceOptions(),
+            sampleSpanContext().getTracestate());
+    SpanData child = childSpanData(childContext, rootId, "child");
+    // The largest UDP payload over IPv4, less the daemon header, plus one byte.
+    int size = 65535 - 20 - 8 - DaemonSender.HEADER.length + 1;
+    SpanData root = paddedSpanData("root", 0);
+    SpanTree tree = new SpanTree(root);
+    tree.addChild(new SpanTree(child));
+    root = paddedSpanData("root", size - new SegmentEncoder("test").encode(tree).size());
+
+    try (LocalXRayDaemon daemon = new LocalXRayDaemon();
+        DaemonSender sender = new DaemonSender(daemon.getAddress())) {
+      XRayExporterHandler daemonHandler =
+          new XRayExporterHandler(
+              XRayExporterConfiguration.builder()
+                  .setServiceName("test")
+                  .setQueueCapacity(100)
+                  .setTraceAssemblyWindow(Duration.create(10, 0))
+                  .build(),
+              sender);
+      daemonHandler.export(Arrays.asList(child, root));
+      daemonHandler.shutdown();
+
+      String first = daemon.receive();
+      String second = daemon.receive();
+      assertTrue(first.contains("\"name\":\"root\""), first);
+      assertTrue(!first.contains("\"subsegments\""));
+      assertTrue(second.contains("\"name\":\"child\""), second);
+      assertEquals(0, sender.getDroppedCount());
+    }
+  }
+
+  @Test
+  public void exportSplitsBatchIntoConcurrentRequests() {
+    FakeXRayClient client = new FakeXRayClient();
+    client.latencyMillis = 50;
+    XRayExporterHandler chunkedHandler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("test")
+                .setXRayClient(client)
+                .setMaxSegmentsPerRequest(10)
+                .setMaxInFlightRequests(3)
+                .build(),
+            null);
+
+    List<SpanData> spans = new ArrayList<SpanData>();
+    for (int i = 0; i < 95; i++) {
+      spans.add(sampleSpanData("span" + i));
+    }
+    chunkedHandler.export(spans);
+
+    assertEquals(10, client.requests.size());
+    assertEquals(95, client.documentCount());
+    assertTrue(client.maxInFlight.get() > 1);
+    assertTrue(client.maxInFlight.get() <= 3);
+  }
+
+  @Test
+  public void exportWithQueueHandsSpansToWorker() {
+    FakeXRayClient client = new FakeXRayClient();
+    XRayExporterHandler queuedHandler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("test")
+                .setXRayClient(client)
+                .setQueueCapacity(100)
+                .setOverflowPolicy(OverflowPolicy.DROP_NEWEST)
+                .build(),
+            null);
+
+    List<SpanData> spans = new ArrayList<SpanData>();
+    for (int i = 0; i < 150; i++) {
+      spans.add(sampleSpanData("span" + i));
+    }
+    queuedHandler.export(spans);
+    queuedHandler.shutdown();
+
+    assertEquals(150, client.documentCount() + queuedHandler.getDroppedSpanCount());
+    assertTrue(client.documentCount() >= 100);
+  }
+
+  @Test
+  public void exportWithTraceAssemblyNestsLocalChildren() {
+    FakeXRayClient client = new FakeXRayClient();
+    XRayExporterHandler assemblingHandler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("test")
+                .setXRayClient(client)
+                .setQueueCapacity(100)
+                .setTraceAssemblyWindow(Duration.create(10, 0))
+                .build(),
+            null);
+
+    SpanId rootId = sampleSpanContext().getSpanId();
+    List<SpanData> spans = new ArrayList<SpanData>();
+    for (int i = 1; i <= 5; i++) {
+      SpanContext child =
+          SpanContext.create(
+              sampleSpanContext().getTraceId(),
+              SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 2, (byte) i}),
+              sampleSpanContext().getTraceOptions(),
+              sampleSpanContext().getTracestate());
+      spans.add(childSpanData(child, rootId, "child" + i));
+    }
+    spans.add(sampleSpanData("root"));
+    assemblingHandler.export(spans);
+    assemblingHandler.shutdown();
+
+    assertEquals(1, client.documentCount());
+    String document = client.requests.get(0).getTraceSegmentDocuments().get(0);
+    assertTrue(document.contains("\"name\":\"child5\""));
+  }
+
+  @Test
+  public void exportWithTraceAssemblySplitsLargeTrees() {
+    FakeXRayClient client = new FakeXRayClient();
+    XRayExporterHandler assemblingHandler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("test")
+                .setXRayClient(client)
+                .setQueueCapacity(1000)
+                .setTraceAssemblyWindow(Duration.create(10, 0))
+                .build(),
+            null);
+
+    SpanId rootId = sampleSpanContext().getSpanId();
+    List<SpanData> spans = new ArrayList<SpanData>();
+    for (int i = 1; i <= 400; i++) {
+      SpanContext child =
+          SpanContext.create(
+              sampleSpanContext().getTraceId(),
+              SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, (byte) (2 + i / 256), (byte) i}),
+              sampleSpanContext().getTraceOptions(),
+              sampleSpanContext().getTracestate());
+      spans.add(childSpanData(child, rootId, "child" + i));
+    }
+    spans.add(sampleSpanData("root"));
+    assemblingHandler.export(spans);
+    assemblingHandler.shutdown();
+
+    assertEquals(401, client.documentCount());
+    for (PutTraceSegmentsRequest request : client.requests) {
+      for (String document : request.getTraceSegmentDocuments()) {
+        assertTrue(document.length() <= XRayExporterHandler.MAX_DOCUMENT_SIZE);
+        assertTrue(!document.contains("\"subsegments\""), document);
+      }
+    }
+  }
+
+  @Test
+  public void exportWithTailSamplingSkipsOrdinaryTraces() {
+    FakeXRayClient client = new FakeXRayClient();
+    XRayExporterHandler samplingHandler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("test")
+                .setXRayClient(client)
+                .setQueueCapacity(100)
+                .setTailSamplingWindow(Duration.create(10, 0))
+                .setTailSamplingRate(0)
+                .build(),
+            null);
+
+    SpanContext failed =
+        SpanContext.create(
+            TraceId.fromBytes(new byte[] {FF, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2}),
+            SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 2, 0}),
+            sampleSpanContext().getTraceOptions(),
+            sampleSpanContext().getTracestate());
+    SpanData failedSpan =
+        SpanData.create(
+            failed,
+            null,
+            null,
+            "failed",
+            Kind.SERVER,
+            Timestamp.fromMillis(1519629870001L),
+            SpanData.Attributes.create(sampleAttributes(), 0),
+            SpanData.TimedEvents.create(
+                Collections.<SpanData.TimedEvent<Annotation>>emptyList(), 0),
+            SpanData.TimedEvents.create(
+                Collections.<SpanData.TimedEvent<MessageEvent>>emptyList(), 0),
+            SpanData.Links.create(Collections.<Link>emptyList(), 0),
+            0,
+            Status.INTERNAL,
+            Timestamp.fromMillis(1519630148002L));
+    samplingHandler.export(Arrays.asList(sampleSpanData("ok"), failedSpan));
+    samplingHandler.shutdown();
+
+    assertEquals(1, client.documentCount());
+    String document = client.requests.get(0).getTraceSegmentDocuments().get(0);
+    assertTrue(document.contains("\"name\":\"failed\""));
+  }
+
+  @Test
+  public void exportShardsTracesAcrossClients() {
+    List<FakeXRayClient> clients =
+        Arrays.asList(new FakeXRayClient(), new FakeXRayClient(), new FakeXRayClient());
+    clients.get(2).latencyMillis = 50;
+    XRayExporterHandler shardedHandler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("test")
+                .setXRayClients(new ArrayList<AWSXRay>(clients))
+                .build(),
+            null);
+
+    int[] expected = new int[clients.size()];
+    List<SpanData> spans = new ArrayList<SpanData>();
+    for (int i = 0; i < 60; i++) {
+      TraceId traceId = shardTraceId(i);
+      expected[Math.floorMod(traceId.hashCode(), clients.size())] += 2;
+      spans.add(shardSpanData(traceId, 1, "root" + i));
+      spans.add(shardSpanData(traceId, 2, "child" + i));
+    }
+    shardedHandler.export(spans);
+    shardedHandler.shutdown();
+
+    for (int i = 0; i < clients.size(); i++) {
+      assertTrue(expected[i] > 0);
+      assertEquals(expected[i], clients.get(i).documentCount());
+    }
+  }
+
+  @Test
+  public void failingShardDoesNotStopTheOthers() {
+    AWSXRay failing =
+        new AbstractAWSXRay() {
+          @Override
+          public PutTraceSegmentsResult putTraceSegments(PutTraceSegmentsRequest request) {
+            throw new IllegalStateException("unavailable");
+          }
+        };
+    FakeXRayClient healthy = new FakeXRayClient();
+    XRayExporterHandler shardedHandler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("test")
+                .setXRayClients(Arrays.asList(failing, healthy))
+                .build(),
+            null);
+
+    int expected = 0;
+    List<SpanData> spans = new ArrayList<SpanData>();
+    for (int i = 0; i < 20; i++) {
+      TraceId traceId = shardTraceId(i);
+      if (Math.floorMod(traceId.hashCode(), 2) == 1) {
+        expected++;
+      }
+      spans.add(shardSpanData(traceId, 1, "root" + i));
+    }
+    shardedHandler.export(spans);
+    shardedHandler.shutdown();
+
+    assertTrue(expected > 0);
+    assertEquals(expected, healthy.documentCount());
+    assertEquals(20 - expected, shardedHandler.getDroppedSegmentCount());
+  }
+
+  @Test
+  public void slowShardDoesNotHoldBackTheOthers() throws Exception {
+    FakeXRayClient slow = new FakeXRayClient();
+    slow.latencyMillis = 1000;
+    FakeXRayClient healthy = new FakeXRayClient();
+    XRayExporterHandler shardedHandler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("test")
+                .setXRayClients(Arrays.asList(slow, healthy))
+                .setMaxInFlightRequests(4)
+                .build(),
+            null);
+
+    int expected = 0;
+    for (int batch = 0; batch < 3; batch++) {
+      List<SpanData> spans = new ArrayList<SpanData>();
+      for (int i = batch * 10; i < batch * 10 + 10; i++) {
+        TraceId traceId = shardTraceId(i);
+        if (Math.floorMod(traceId.hashCode(), 2) == 1) {
+          expected++;
+        }
+        spans.add(shardSpanData(traceId, 1, "root" + i));
+      }
+      shardedHandler.export(spans);
+    }
+    for (int i = 0; i < 50 && healthy.documentCount() < expected; i++) {
+      Thread.sleep(10);
+    }
+
+    assertTrue(expected > 0);
+    assertEquals(expected, healthy.documentCount());
+    assertEquals(0, slow.documentCount());
+    shardedHandler.shutdown();
+    assertEquals(30 - expected, slow.documentCount());
+  }
+
+  @Test
+  public void exportWithDedupDropsSpansExportedBefore() {
+    FakeXRayClient client = new FakeXRayClient();
+    XRayExporterHandler dedupHandler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("test")
+                .setXRayClient(client)
+                .setDedupWindow(Duration.create(60, 0))
+                .build(),
+            null);
+
+    SpanData first = shardSpanData(shardTraceId(1), 1, "first");
+    SpanData second = shardSpanData(shardTraceId(2), 1, "second");
+    dedupHandler.export(Arrays.asList(first));
+    dedupHandler.export(Arrays.asList(first, second));
+    dedupHandler.export(Arrays.asList(second));
+    dedupHandler.shutdown();
+
+    assertEquals(2, client.documentCount());
+    assertEquals(2, dedupHandler.getDuplicateSpanCount());
+  }
+
+  @Test
+  public void exportWithDedupRemembersEmbeddedChildren() throws Exception {
+    FakeXRayClient client = new FakeXRayClient();
+    XRayExporterHandler dedupHandler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("test")
+                .setXRayClient(client)
+                .setQueueCapacity(100)
+                .setTraceAssemblyWindow(Duration.create(10, 0))
+                .setDedupWindow(Duration.create(60, 0))
+                .build(),
+            null);
+
+    SpanData child = shardSpanData(shardTraceId(1), 2, "child");
+    dedupHandler.export(Arrays.asList(child, shardSpanData(shardTraceId(1), 1, "root")));
+    for (int i = 0; i < 100 && client.documentCount() == 0; i++) {
+      Thread.sleep(10);
+    }
+    // The spans are remembered right after the client returns.
+    Thread.sleep(50);
+    dedupHandler.export(Arrays.asList(child));
+    dedupHandler.shutdown();
+
+    assertEquals(1, client.documentCount());
+    assertEquals(1, dedupHandler.getDuplicateSpanCount());
+  }
+
+  @Test
+  public void exportWithDedupResendsSpansWhichWereNotDelivered() {
+    FakeXRayClient client =
+        new FakeXRayClient() {
+          private boolean failed;
+
+          @Override
+          public PutTraceSegmentsResult putTraceSegments(PutTraceSegmentsRequest request) {
+            if (!failed) {
+              failed = true;
+              throw new IllegalStateException("unavailable");
+            }
+            return super.putTraceSegments(request);
+          }
+        };
+    XRayExporterHandler dedupHandler =
+        new XRayExporterHandler(
+            XRayExporterConfiguration.builder()
+                .setServiceName("test")
+                .setXRayClient(client)
+                .setDedupWindow(Duration.create(60, 0))
+                .build(),
+            null);
+
+    SpanData span = shardSpanData(shardTraceId(1), 1, "span");
+    assertThrows(RuntimeException.class, () -> dedupHandler.export(Arrays.asList(span)));
+    dedupHandler.export(Arrays.asList(span));
+    dedupHandler.shutdown();
+
+    assertEquals(1, client.documentCount());
+    assertEquals(0, dedupHandler.getDuplicateSpanCount());
+  }
+
+  private static TraceId shardTraceId(int i) {
+    return TraceId.fromBytes(
+        new byte[] {0x5c, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) (i >> 8), (byte) i});
+  }
+
+  private static SpanData shardSpanData(TraceId traceId, int spanId, String name) {
+    return SpanData.create(
+        SpanContext.create(
+            traceId,
+            SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) spanId}),
+            sampleSpanContext().getTraceOptions(),
+            sampleSpanContext().getTracestate()),
+        spanId == 1 ? null : SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, 1}),
+        spanId == 1 ? null : Boolean.FALSE,
+        name,
+        Kind.SERVER,
+        Timestamp.fromMillis(1519629870001L),
+        SpanData.Attributes.create(sampleAttributes(), 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<Annotation>>emptyList(), 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<MessageEvent>>emptyList(), 0),
+        SpanData.Links.create(Collections.<Link>emptyList(), 0),
+        0,
+        Status.OK,
+        Timestamp.fromMillis(1519630148002L));
+  }
+
+  private static SpanData paddedSpanData(String name, int padding) {
+    char[] chars = new char[padding];
+    Arrays.fill(chars, 'a');
+    return SpanData.create(
+        sampleSpanContext(),
+        null,
+        null,
+        name,
+        Kind.SERVER,
+        Timestamp.fromMillis(1519629870001L),
+        SpanData.Attributes.create(
+            ImmutableMap.of("padding", AttributeValue.stringAttributeValue(new String(chars))), 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<Annotation>>emptyList(), 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<MessageEvent>>emptyList(), 0),
+        SpanData.Links.create(Collections.<Link>emptyList(), 0),
+        0,
+        Status.OK,
+        Timestamp.fromMillis(1519630148002L));
+  }
+
+  private static SpanData childSpanData(SpanContext context, SpanId parentId, String name) {
+    return SpanData.create(
+        context,
+        parentId,
+        false,
+        name,
+        Kind.CLIENT,
+        Timestamp.fromMillis(1519629870001L),
+        SpanData.Attributes.create(sampleAttributes(), 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<Annotation>>emptyList(), 0),
+        SpanData.TimedEvents.create(Collections.<SpanData.TimedEvent<MessageEvent>>emptyList(), 0),
+        SpanData.Links.create(Collections.<Link>emptyList(), 0),
+        0,
+        Status.OK,
+        Timestamp.fromMillis(1519630148002L));
+  }
+
+  private static SpanData sampleSpanData(String name) {
+    return SpanData.create(
+        sampleSpanContext(),
+        null,
+        null,
+        name,
+        Kind.SERVER,
+        Timestamp.fromMillis(1519629870001L),
+        SpanData.Attributes.create(sampleAttributes(), 0),
+        SpanData.TimedEvents.create(singletonList(sampleAnnotation()), 0),
+        SpanData.TimedEvents.create(singletonList(sampleMessageEvent()), 0),
+        SpanData.Links.create(sampleLinks(), 0),
+        0,
+        Status.OK,
+        Timestamp.fromMillis(1519630148002L));
+  }
+
   private static SpanContext sampleSpanContext() {
     return SpanContext.create(
         TraceId.fromBytes(new byte[] {FF, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1}),
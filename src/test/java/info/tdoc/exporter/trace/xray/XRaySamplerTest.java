@@ -0,0 +1,256 @@
+/*
+ * Copyright 2019, Shirou WAKAYAMA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.tdoc.exporter.trace.xray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.amazonaws.services.xray.AbstractAWSXRay;
+import com.amazonaws.services.xray.model.GetSamplingRulesRequest;
+import com.amazonaws.services.xray.model.GetSamplingRulesResult;
+import com.amazonaws.services.xray.model.GetSamplingTargetsRequest;
+import com.amazonaws.services.xray.model.GetSamplingTargetsResult;
+import com.amazonaws.services.xray.model.SamplingRule;
+import com.amazonaws.services.xray.model.SamplingRuleRecord;
+import com.amazonaws.services.xray.model.SamplingStatisticsDocument;
+import com.amazonaws.services.xray.model.SamplingTargetDocument;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class XRaySamplerTest {
+  private final FakeTicker ticker = new FakeTicker();
+  private final SamplingApi api = new SamplingApi();
+  private final XRaySampler sampler = new XRaySampler(api, "orders", "", ticker);
+
+  @Test
+  public void defaultRuleBorrowsOnePerSecondBeforeRulesArrive() {
+    assertTrue(sample("/orders", 1));
+    assertFalse(sample("/orders", 2));
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertTrue(sample("/orders", 3));
+  }
+
+  @Test
+  public void rulesAreSortedAndFiltered() {
+    api.rules.add(rule("Default", 10000, "*", "*", 0, 0));
+    api.rules.add(rule("health", 1, "*", "/health", 0, 0));
+    api.rules.add(rule("orders", 5, "order*", "/orders/*", 0, 1));
+    api.rules.add(rule("other-service", 2, "billing", "*", 0, 1));
+    api.rules.add(rule("by-method", 3, "*", "*", 0, 1).withHTTPMethod("POST"));
+    sampler.refreshRules();
+
+    List<CentralizedRule> rules = sampler.getRules();
+    assertEquals(3, rules.size());
+    assertEquals("health", rules.get(0).name);
+    assertEquals("orders", rules.get(1).name);
+    assertEquals("Default", rules.get(2).name);
+    assertEquals(3, api.rulesRequests);
+
+    // Every rule borrows one span per second before its first target.
+    assertTrue(sample("/health", 1));
+    assertFalse(sample("/health", 2));
+    assertTrue(sample("/ORDERS/42", 3));
+    assertFalse(sample("/orders/43", 4));
+    assertTrue(sample("/cart", 5));
+    assertFalse(sample("/cart", 6));
+  }
+
+  @Test
+  public void parentDecisionIsFollowed() {
+    api.rules.add(rule("Default", 10000, "*", "*", 0, 0));
+    sampler.refreshRules();
+    sampler.refreshTargets();
+    SpanContext sampled = parent(true);
+    SpanContext notSampled = parent(false);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(sampler.shouldSample(sampled, true, traceId(i), spanId(), "/", NO_LINKS));
+      assertFalse(sampler.shouldSample(notSampled, true, traceId(i), spanId(), "/", NO_LINKS));
+    }
+  }
+
+  @Test
+  public void targetsSetQuotaAndRate() {
+    api.rules.add(rule("Default", 10000, "*", "*", 0, 0));
+    sampler.refreshRules();
+    for (int i = 0; i < 4; i++) {
+      sample("/", i);
+    }
+    api.targets.add(
+        new SamplingTargetDocument()
+            .withRuleName("Default")
+            .withFixedRate(1.0)
+            .withReservoirQuota(0)
+            .withReservoirQuotaTTL(new Date(System.currentTimeMillis() + 10000)));
+    sampler.refreshTargets();
+
+    assertEquals(1, api.statistics.size());
+    SamplingStatisticsDocument statistics = api.statistics.get(0);
+    assertEquals("Default", statistics.getRuleName());
+    assertEquals(4, (int) statistics.getRequestCount());
+    assertEquals(1, (int) statistics.getSampledCount());
+    assertEquals(1, (int) statistics.getBorrowCount());
+    assertEquals(24, statistics.getClientID().length());
+    assertEquals(1.0, sampler.getRules().get(0).getFixedRate(), 0);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(sample("/", i));
+    }
+
+    api.targets.clear();
+    api.targets.add(new SamplingTargetDocument().withRuleName("Default").withFixedRate(0.0));
+    sampler.refreshTargets();
+    // The quota of 0 holds until its TTL, then the reservoir borrows again.
+    assertFalse(sample("/", 1));
+    ticker.advance(11, TimeUnit.SECONDS);
+    assertTrue(sample("/", 2));
+    assertFalse(sample("/", 3));
+  }
+
+  @Test
+  public void unusedRulesAreNotReported() {
+    api.rules.add(rule("Default", 10000, "*", "*", 0, 0));
+    sampler.refreshRules();
+    sampler.refreshTargets();
+    assertEquals(0, api.targetsRequests);
+  }
+
+  @Test
+  public void modifiedRulesAreFetchedAgain() {
+    api.rules.add(rule("Default", 10000, "*", "*", 0, 0));
+    sampler.refreshRules();
+    sample("/", 1);
+    int before = api.rulesRequests;
+    api.rules.add(rule("new", 1, "*", "/new", 0, 0));
+    api.lastRuleModification = new Date(System.currentTimeMillis() + 1000);
+    sampler.refreshTargets();
+    assertEquals(before + 1, api.rulesRequests);
+    assertEquals("new", sampler.getRules().get(0).name);
+  }
+
+  @Test
+  public void failuresKeepTheCurrentRules() {
+    api.rules.add(rule("Default", 10000, "*", "*", 0, 0));
+    sampler.refreshRules();
+    api.failing = true;
+    sampler.refreshRules();
+    sample("/", 1);
+    sampler.refreshTargets();
+    assertEquals(1, sampler.getRules().size());
+  }
+
+  @Test
+  public void ruleForOtherServiceTypeIsIgnored() {
+    SamplingRule rule = rule("ec2", 1, "*", "*", 1, 1).withServiceType("AWS::EC2::Instance");
+    assertNull(CentralizedRule.create(rule, "orders", "", null));
+    assertTrue(CentralizedRule.create(rule, "orders", "AWS::EC2::Instance", null) != null);
+  }
+
+  private boolean sample(String name, int trace) {
+    return sampler.shouldSample(null, null, traceId(trace), spanId(), name, NO_LINKS);
+  }
+
+  private static final List<io.opencensus.trace.Span> NO_LINKS =
+      Collections.<io.opencensus.trace.Span>emptyList();
+
+  private static SamplingRule rule(
+      String name, int priority, String service, String path, double rate, int reservoir) {
+    return new SamplingRule()
+        .withRuleName(name)
+        .withPriority(priority)
+        .withServiceName(service)
+        .withServiceType("*")
+        .withHost("*")
+        .withHTTPMethod("*")
+        .withResourceARN("*")
+        .withURLPath(path)
+        .withFixedRate(rate)
+        .withReservoirSize(reservoir)
+        .withVersion(1);
+  }
+
+  private static SpanContext parent(boolean sampled) {
+    return SpanContext.create(
+        traceId(1),
+        spanId(),
+        TraceOptions.builder().setIsSampled(sampled).build(),
+        Tracestate.builder().build());
+  }
+
+  private static TraceId traceId(int n) {
+    byte[] bytes = new byte[16];
+    // OpenCensus samples on the first eight bytes; these fail a fixed rate of 0.5 or less.
+    bytes[0] = 0x70;
+    bytes[15] = (byte) n;
+    return TraceId.fromBytes(bytes);
+  }
+
+  private static SpanId spanId() {
+    return SpanId.fromBytes(new byte[] {0, 0, 0, 0, 0, 0, 0, 1});
+  }
+
+  /*
+   * A local stand-in for the X-Ray sampling API, returning rules two per page.
+   */
+  private static final class SamplingApi extends AbstractAWSXRay {
+    final List<SamplingRule> rules = new ArrayList<SamplingRule>();
+    final List<SamplingTargetDocument> targets = new ArrayList<SamplingTargetDocument>();
+    final List<SamplingStatisticsDocument> statistics = new ArrayList<SamplingStatisticsDocument>();
+    Date lastRuleModification;
+    boolean failing;
+    int rulesRequests;
+    int targetsRequests;
+
+    @Override
+    public GetSamplingRulesResult getSamplingRules(GetSamplingRulesRequest request) {
+      rulesRequests++;
+      if (failing) {
+        throw new IllegalStateException("unavailable");
+      }
+      int from = request.getNextToken() == null ? 0 : Integer.parseInt(request.getNextToken());
+      int to = Math.min(from + 2, rules.size());
+      List<SamplingRuleRecord> records = new ArrayList<SamplingRuleRecord>();
+      for (SamplingRule rule : rules.subList(from, to)) {
+        records.add(new SamplingRuleRecord().withSamplingRule(rule));
+      }
+      return new GetSamplingRulesResult()
+          .withSamplingRuleRecords(records)
+          .withNextToken(to < rules.size() ? Integer.toString(to) : null);
+    }
+
+    @Override
+    public GetSamplingTargetsResult getSamplingTargets(GetSamplingTargetsRequest request) {
+      targetsRequests++;
+      if (failing) {
+        throw new IllegalStateException("unavailable");
+      }
+      statistics.addAll(request.getSamplingStatisticsDocuments());
+      return new GetSamplingTargetsResult()
+          .withSamplingTargetDocuments(new ArrayList<SamplingTargetDocument>(targets))
+          .withLastRuleModification(lastRuleModification);
+    }
+  }
+}